@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+#
+# Measures the time from starting the container until the first request has been
+# served successfully, once for a cold start (no class data sharing, no lazy
+# initialization) and once for the fast-start profile of the image.
+#
+# Usage: ENV_FILE=.env ./benchmarks/startup.sh
+#
+# The env file needs the same variables as a regular start, see the README.
+# Every run starts a fresh container, so results are comparable between runs.
+
+set -euo pipefail
+
+IMAGE=${IMAGE:-link-rating-startup-benchmark}
+RUNS=${RUNS:-5}
+PORT=${PORT:-18080}
+URL_PATH=${URL_PATH:-/}
+ENV_FILE=${ENV_FILE:-.env}
+
+cd "$(dirname "$0")/.."
+if [ "${SKIP_BUILD:-false}" != "true" ] ; then
+  docker build -q -t "$IMAGE" . > /dev/null
+fi
+
+# prints the milliseconds until the first http 200 response
+measure() {
+  local profile=$1
+  local java_opts=$2
+  local start end container
+
+  start=$(date +%s%N)
+  container=$(docker run -d -p "$PORT:8080" --env-file "$ENV_FILE" \
+    -e SPRING_PROFILES_ACTIVE="$profile" -e JAVA_TOOL_OPTIONS="$java_opts" "$IMAGE")
+  until curl -sf -o /dev/null "http://localhost:$PORT$URL_PATH" ; do
+    sleep 0.05
+  done
+  end=$(date +%s%N)
+  docker rm -f "$container" > /dev/null
+
+  echo $(( (end - start) / 1000000 ))
+}
+
+report() {
+  local name=$1
+  shift
+  local sorted
+  sorted=$(printf '%s\n' "$@" | sort -n)
+  printf '%-12s runs=%d min=%sms median=%sms max=%sms\n' "$name" "$#" \
+    "$(echo "$sorted" | head -1)" "$(echo "$sorted" | sed -n "$(( ($# + 1) / 2 ))p")" "$(echo "$sorted" | tail -1)"
+}
+
+cold=()
+fast=()
+for i in $(seq 1 "$RUNS") ; do
+  cold+=("$(measure default -Xshare:off)")
+  fast+=("$(measure fast-start "")")
+done
+
+echo "time to first served request on $URL_PATH"
+report cold "${cold[@]}"
+report fast-start "${fast[@]}"
@@ -0,0 +1,57 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+// exposes the state of the async appender configured in logback-spring.xml
+@Component
+@Lazy(false)
+public class AsyncLoggingMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncLoggingMetrics.class);
+
+    public AsyncLoggingMetrics(MeterRegistry registry) {
+        final LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        final Appender<ILoggingEvent> appender = context.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("ASYNC");
+        if (!(appender instanceof DiscardCountingAsyncAppender)) {
+            logger.warn("no async appender named [ASYNC] configured, not exposing logging metrics");
+            return;
+        }
+
+        final DiscardCountingAsyncAppender asyncAppender = (DiscardCountingAsyncAppender) appender;
+        Gauge.builder("logging.async.queue.depth", asyncAppender, DiscardCountingAsyncAppender::getNumberOfElementsInQueue)
+                .description("number of log events waiting to be written")
+                .register(registry);
+        Gauge.builder("logging.async.queue.remaining", asyncAppender, DiscardCountingAsyncAppender::getRemainingCapacity)
+                .description("remaining capacity of the log event queue")
+                .register(registry);
+        FunctionCounter.builder("logging.async.discarded", asyncAppender, DiscardCountingAsyncAppender::getDiscardedCount)
+                .description("log events dropped because the queue was almost full")
+                .register(registry);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append only store of small values in a single memory mapped file, with the position of every value kept in
+ * memory. Reads are a copy out of the page cache without any locking, writes are serialized.
+ *
+ * Every record consists of the key length, the value length and a CRC32 over key and value, followed by the UTF-8
+ * key and the value. The index is rebuilt by reading all records on startup, reading stops at the first record with
+ * a zero length key or a wrong checksum, which is where the last write before a crash ended. A key can only be
+ * written once, there are no updates or deletes.
+ */
+class BlobStore implements Closeable {
+
+    private static final int HEADER_SIZE = 12;
+
+    private final FileChannel channel;
+    private final long maxSize;
+    // offset of the value in the upper, its length in the lower 32 bits
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+
+    private volatile MappedByteBuffer buffer;
+    private int position = 0;
+
+    BlobStore(Path file, int initialSize, int maxSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxSize = maxSize;
+        final long size = Math.min(maxSize, Math.max(initialSize, channel.size()));
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        load();
+    }
+
+    private void load() {
+        final ByteBuffer buffer = this.buffer.duplicate();
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            final int keyLength = buffer.getInt(position);
+            final int valueLength = buffer.getInt(position + 4);
+            final int end = position + HEADER_SIZE + keyLength + valueLength;
+            if (keyLength <= 0 || valueLength < 0 || end > buffer.capacity() || end < position) {
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            buffer.get(position + HEADER_SIZE, key);
+            if (checksum(buffer, position + HEADER_SIZE, keyLength + valueLength) != buffer.getInt(position + 8)) {
+                break;
+            }
+            index.put(new String(key, StandardCharsets.UTF_8), offsetAndLength(position + HEADER_SIZE + keyLength, valueLength));
+            position = end;
+        }
+    }
+
+    // null if there is no such key, values may be empty
+    byte[] get(String key) {
+        final Long entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final byte[] value = new byte[(int) (entry & 0xFFFFFFFFL)];
+        buffer.duplicate().get((int) (entry >>> 32), value);
+        return value;
+    }
+
+    boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    // false if the key exists already or the store is full
+    synchronized boolean put(String key, byte[] value) throws IOException {
+        if (index.containsKey(key)) {
+            return false;
+        }
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long end = (long) position + HEADER_SIZE + keyBytes.length + value.length;
+        if (end > buffer.capacity() && !grow(end)) {
+            return false;
+        }
+
+        final ByteBuffer buffer = this.buffer.duplicate();
+        buffer.put(position + HEADER_SIZE, keyBytes);
+        buffer.put(position + HEADER_SIZE + keyBytes.length, value);
+        buffer.putInt(position + 4, value.length);
+        buffer.putInt(position + 8, checksum(buffer, position + HEADER_SIZE, keyBytes.length + value.length));
+        // written last, a record without its key length is not read on startup
+        buffer.putInt(position, keyBytes.length);
+        index.put(key, offsetAndLength(position + HEADER_SIZE + keyBytes.length, value.length));
+        position = (int) end;
+        return true;
+    }
+
+    // a new mapping of the whole file, readers still using the old one see the same pages
+    private boolean grow(long required) throws IOException {
+        if (required > maxSize) {
+            return false;
+        }
+        final long size = Math.min(maxSize, Math.max(required, (long) buffer.capacity() * 2));
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(offset).limit(offset + length));
+        return (int) crc.getValue();
+    }
+
+    private static long offsetAndLength(int offset, int length) {
+        return ((long) offset << 32) | length;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.oauth2.client.web.AuthorizationRequestRepository;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.util.SerializationUtils;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.time.Duration;
+
+/**
+ * Remembers the state of a running github login in a short lived encrypted cookie, as the callback
+ * may end up on another instance than the one that redirected to github.
+ */
+public class CookieOAuth2AuthorizationRequestRepository implements AuthorizationRequestRepository<OAuth2AuthorizationRequest> {
+
+    static final String COOKIE_NAME = "LINKRATING_OAUTH2_REQUEST";
+    private static final Duration MAX_AGE = Duration.ofMinutes(5);
+
+    private final SessionCookieCodec codec;
+
+    public CookieOAuth2AuthorizationRequestRepository(SessionCookieCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest loadAuthorizationRequest(HttpServletRequest request) {
+        final Cookie cookie = WebUtils.getCookie(request, COOKIE_NAME);
+        if (cookie == null || cookie.getValue().isEmpty()) {
+            return null;
+        }
+        final byte[] data = codec.decode(COOKIE_NAME, cookie.getValue());
+        if (data == null) {
+            return null;
+        }
+        final Object authorizationRequest = SerializationUtils.deserialize(data);
+        return authorizationRequest instanceof OAuth2AuthorizationRequest ? (OAuth2AuthorizationRequest) authorizationRequest : null;
+    }
+
+    @Override
+    public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request,
+                                         HttpServletResponse response) {
+        if (authorizationRequest == null) {
+            addCookie(request, response, "", Duration.ZERO);
+            return;
+        }
+        final String value = codec.encode(COOKIE_NAME, SerializationUtils.serialize(authorizationRequest));
+        addCookie(request, response, value, MAX_AGE);
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request) {
+        // no access to the response here, the cookie simply expires
+        return loadAuthorizationRequest(request);
+    }
+
+    @Override
+    public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request, HttpServletResponse response) {
+        final OAuth2AuthorizationRequest authorizationRequest = loadAuthorizationRequest(request);
+        if (authorizationRequest != null) {
+            addCookie(request, response, "", Duration.ZERO);
+        }
+        return authorizationRequest;
+    }
+
+    private static void addCookie(HttpServletRequest request, HttpServletResponse response, String value, Duration maxAge) {
+        final ResponseCookie cookie = ResponseCookie.from(COOKIE_NAME, value)
+                .path("/")
+                .httpOnly(true)
+                .secure(request.isSecure())
+                .sameSite("Lax")
+                .maxAge(maxAge)
+                .build();
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie.toString());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.oauth2.core.user.OAuth2UserAuthority;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the logged in github user in an encrypted cookie instead of the HTTP session, so that any instance can
+ * serve any request. Only the attributes needed for rendering and authorization are stored, the cookie is renewed
+ * once less than half of its lifetime is left.
+ */
+public class CookieSecurityContextRepository implements SecurityContextRepository {
+
+    public static final String COOKIE_NAME = "LINKRATING_SESSION";
+
+    private static final Logger logger = LoggerFactory.getLogger(CookieSecurityContextRepository.class);
+    private static final String REGISTRATION_ID = "github";
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final SessionCookieCodec codec;
+    private final AdminService adminService;
+    private final Duration timeout;
+    private final Clock clock;
+
+    public CookieSecurityContextRepository(SessionCookieCodec codec, AdminService adminService, Duration timeout) {
+        this(codec, adminService, timeout, Clock.systemUTC());
+    }
+
+    CookieSecurityContextRepository(SessionCookieCodec codec, AdminService adminService, Duration timeout, Clock clock) {
+        this.codec = codec;
+        this.adminService = adminService;
+        this.timeout = timeout;
+        this.clock = clock;
+    }
+
+    @Override
+    public SecurityContext loadContext(HttpRequestResponseHolder holder) {
+        final SecurityContext context = SecurityContextHolder.createEmptyContext();
+        final Map<String, Object> payload = readPayload(holder.getRequest());
+        if (payload == null) {
+            return context;
+        }
+
+        final long expiresAt = ((Number) payload.remove("exp")).longValue();
+        final boolean admin = Boolean.TRUE.equals(payload.remove("admin"));
+        final List<GrantedAuthority> authorities = new ArrayList<>();
+        authorities.add(new OAuth2UserAuthority(payload));
+        if (admin) {
+            authorities.add(new SimpleGrantedAuthority("ROLE_ADMIN"));
+        }
+        final OAuth2User user = new DefaultOAuth2User(authorities, payload, "id");
+        final OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(user, authorities, REGISTRATION_ID);
+        context.setAuthentication(token);
+
+        // sliding expiration, the cookie is written before the response gets committed
+        if (expiresAt - clock.millis() < timeout.toMillis() / 2) {
+            writeCookie(holder.getRequest(), holder.getResponse(), token);
+        }
+        return context;
+    }
+
+    // the cookie is only written on login, so there is nothing to do at the end of a request
+    @Override
+    public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        return readPayload(request) != null;
+    }
+
+    public void writeCookie(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        final OAuth2User user = (OAuth2User) authentication.getPrincipal();
+        final String login = user.getAttribute("login");
+        final Map<String, Object> payload = new HashMap<>();
+        payload.put("id", user.getAttribute("id"));
+        payload.put("login", login);
+        payload.put("avatar_url", user.getAttribute("avatar_url"));
+        payload.put("admin", adminService.get().contains(login));
+        payload.put("exp", clock.millis() + timeout.toMillis());
+
+        try {
+            final String value = codec.encode(COOKIE_NAME, mapper.writeValueAsBytes(payload));
+            addCookie(request, response, value, timeout);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void clearCookie(HttpServletRequest request, HttpServletResponse response) {
+        addCookie(request, response, "", Duration.ZERO);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readPayload(HttpServletRequest request) {
+        final Cookie cookie = WebUtils.getCookie(request, COOKIE_NAME);
+        if (cookie == null || cookie.getValue().isEmpty()) {
+            return null;
+        }
+        final byte[] data = codec.decode(COOKIE_NAME, cookie.getValue());
+        if (data == null) {
+            logger.debug("ignoring session cookie that could not be decrypted");
+            return null;
+        }
+        try {
+            final Map<String, Object> payload = mapper.readValue(data, Map.class);
+            final Object expiresAt = payload.get("exp");
+            if (!(expiresAt instanceof Number) || ((Number) expiresAt).longValue() < clock.millis()) {
+                return null;
+            }
+            return payload;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void addCookie(HttpServletRequest request, HttpServletResponse response, String value, Duration maxAge) {
+        final ResponseCookie cookie = ResponseCookie.from(COOKIE_NAME, value)
+                .path("/")
+                .httpOnly(true)
+                .secure(request.isSecure())
+                .sameSite("Lax")
+                .maxAge(maxAge)
+                .build();
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie.toString());
+    }
+}
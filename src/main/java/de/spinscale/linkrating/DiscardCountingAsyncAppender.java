@@ -0,0 +1,58 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An async appender, that counts the events it discards. Events are only discarded once the queue has less remaining
+ * capacity than the discarding threshold, and only up to the configured discard level. ERROR events are never
+ * discarded, the appender blocks instead, as long as neverBlock is not set.
+ */
+public class DiscardCountingAsyncAppender extends AsyncAppender {
+
+    private final LongAdder discarded = new LongAdder();
+    private Level discardLevel = Level.INFO;
+
+    public void setDiscardLevel(String level) {
+        final Level parsedLevel = Level.toLevel(level, Level.INFO);
+        this.discardLevel = parsedLevel.isGreaterOrEqual(Level.ERROR) ? Level.WARN : parsedLevel;
+    }
+
+    public Level getDiscardLevel() {
+        return discardLevel;
+    }
+
+    // only called when the queue is below the discarding threshold
+    @Override
+    protected boolean isDiscardable(ILoggingEvent event) {
+        final boolean discardable = event.getLevel().toInt() <= discardLevel.toInt();
+        if (discardable) {
+            discarded.increment();
+        }
+        return discardable;
+    }
+
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a 64 bit SimHash fingerprint of title and description of every link in memory, to find links that are
+ * almost the same as a newly submitted one. The fingerprints are split into four bands of 16 bits, two fingerprints
+ * differing in at most three bits share at least one band, so only the links in four buckets need to be compared.
+ */
+@Component
+@Lazy(false)
+public class DuplicateIndex implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateIndex.class);
+
+    static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final int maxDistance;
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+    // key is the band number in the upper bits and the value of the band in the lower 16 bits
+    private final Map<Integer, Map<String, Long>> buckets = new ConcurrentHashMap<>();
+
+    public DuplicateIndex(ElasticsearchOperations elasticsearchOperations,
+                          @Value("${linkrating.duplicates.max-distance:3}") int maxDistance) {
+        if (maxDistance < 0 || maxDistance >= BANDS) {
+            throw new IllegalArgumentException("linkrating.duplicates.max-distance must be between 0 and " + (BANDS - 1));
+        }
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.maxDistance = maxDistance;
+    }
+
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (event.getType() == LinkChangedEvent.Type.DELETED) {
+            remove(event.getId());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildInBackground() {
+        final Thread thread = new Thread(this::rebuild, "duplicate-index-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void rebuild() {
+        final NativeSearchQuery query = new NativeSearchQuery(QueryBuilders.matchAllQuery());
+        query.addSourceFilter(new FetchSourceFilter(new String[] { "title", "description" }, null));
+        int count = 0;
+        try (SearchHitsIterator<Link> iterator = elasticsearchOperations.searchForStream(query, Link.class)) {
+            while (iterator.hasNext()) {
+                final Link link = iterator.next().getContent();
+                add(link.getId(), fingerprint(link));
+                count++;
+            }
+            logger.info("loaded [{}] link fingerprints for duplicate detection", count);
+        } catch (Exception e) {
+            logger.error("error loading link fingerprints, duplicate detection only knows about [{}] links", count, e);
+        }
+    }
+
+    public void add(String id, long fingerprint) {
+        final Long previous = fingerprints.put(id, fingerprint);
+        if (previous != null) {
+            removeFromBuckets(id, previous);
+        }
+        for (int band = 0; band < BANDS; band++) {
+            buckets.computeIfAbsent(bucket(fingerprint, band), k -> new ConcurrentHashMap<>()).put(id, fingerprint);
+        }
+    }
+
+    public void remove(String id) {
+        final Long fingerprint = fingerprints.remove(id);
+        if (fingerprint != null) {
+            removeFromBuckets(id, fingerprint);
+        }
+    }
+
+    // returns the id of the most similar link within the maximum distance, or null if there is none
+    public String findDuplicate(long fingerprint) {
+        String duplicate = null;
+        int bestDistance = maxDistance + 1;
+        for (int band = 0; band < BANDS; band++) {
+            final Map<String, Long> candidates = buckets.get(bucket(fingerprint, band));
+            if (candidates == null) {
+                continue;
+            }
+            for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+                final int distance = Long.bitCount(candidate.getValue() ^ fingerprint);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    duplicate = candidate.getKey();
+                }
+            }
+        }
+        return duplicate;
+    }
+
+    int size() {
+        return fingerprints.size();
+    }
+
+    private void removeFromBuckets(String id, long fingerprint) {
+        for (int band = 0; band < BANDS; band++) {
+            buckets.computeIfPresent(bucket(fingerprint, band), (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private static int bucket(long fingerprint, int band) {
+        return band << BAND_BITS | (int) (fingerprint >>> (band * BAND_BITS)) & 0xFFFF;
+    }
+
+    public static long fingerprint(Link link) {
+        return simHash((link.getTitle() == null ? "" : link.getTitle()) + " " + (link.getDescription() == null ? "" : link.getDescription()));
+    }
+
+    // words and pairs of adjacent words are the features, so that reordering changes the fingerprint a bit as well
+    static long simHash(String text) {
+        final String[] words = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+        final int[] weights = new int[64];
+        String previous = null;
+        for (String word : words) {
+            if (word.length() < 2) {
+                continue;
+            }
+            addFeature(weights, hash(word));
+            if (previous != null) {
+                addFeature(weights, hash(previous + " " + word));
+            }
+            previous = word;
+        }
+
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    private static void addFeature(int[] weights, long hash) {
+        for (int bit = 0; bit < 64; bit++) {
+            weights[bit] += (hash >>> bit & 1) == 1 ? 1 : -1;
+        }
+    }
+
+    // FNV-1a followed by the murmur3 finalizer, so that similar strings do not end up with similar hashes
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Protects request threads from a slow or unavailable cluster. Only a limited number of searches may run at the
+ * same time, further ones are rejected right away instead of queueing up. Every search has a time budget, after
+ * which it is cancelled. After a number of consecutive failures the circuit opens and all searches are rejected,
+ * until a single trial search is let through once the open duration has passed.
+ */
+@Component
+public class ElasticsearchGuard {
+
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchGuard.class);
+
+    // starts a request using the async client methods and returns the handle to cancel it
+    @FunctionalInterface
+    public interface AsyncCall<T> {
+        Cancellable start(ActionListener<T> listener);
+    }
+
+    private final Semaphore permits;
+    private final Duration timeBudget;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Clock clock;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // null while the circuit is closed
+    private final AtomicReference<Instant> openUntil = new AtomicReference<>();
+    private final AtomicBoolean trialRunning = new AtomicBoolean();
+
+    @Autowired
+    public ElasticsearchGuard(@Value("${linkrating.elasticsearch.max-concurrent-requests:20}") int maxConcurrentRequests,
+                              @Value("${linkrating.elasticsearch.time-budget:2s}") Duration timeBudget,
+                              @Value("${linkrating.elasticsearch.failure-threshold:5}") int failureThreshold,
+                              @Value("${linkrating.elasticsearch.open-duration:10s}") Duration openDuration) {
+        this(maxConcurrentRequests, timeBudget, failureThreshold, openDuration, Clock.systemUTC());
+    }
+
+    ElasticsearchGuard(int maxConcurrentRequests, Duration timeBudget, int failureThreshold, Duration openDuration, Clock clock) {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("linkrating.elasticsearch.max-concurrent-requests must be at least 1");
+        }
+        this.permits = new Semaphore(maxConcurrentRequests);
+        this.timeBudget = timeBudget;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    public <T> T execute(AsyncCall<T> call) throws IOException {
+        final boolean trial = acquireCircuit();
+        if (!permits.tryAcquire()) {
+            if (trial) {
+                trialRunning.set(false);
+            }
+            throw new IOException("too many concurrent requests to Elasticsearch, rejecting request");
+        }
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Cancellable cancellable = null;
+        try {
+            cancellable = call.start(ActionListener.wrap(future::complete, future::completeExceptionally));
+            final T result = future.get(timeBudget.toMillis(), TimeUnit.MILLISECONDS);
+            onSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            cancellable.cancel();
+            onFailure();
+            throw new IOException("Elasticsearch request did not finish within [" + timeBudget + "]", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            // the cluster answered, but did not like the request
+            if (cause instanceof ElasticsearchStatusException && ((ElasticsearchStatusException) cause).status().getStatus() < 500) {
+                onSuccess();
+                throw (ElasticsearchStatusException) cause;
+            }
+            onFailure();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            if (cancellable != null) {
+                cancellable.cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for Elasticsearch", e);
+        } catch (RuntimeException e) {
+            onFailure();
+            throw e;
+        } finally {
+            if (trial) {
+                trialRunning.set(false);
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * For calls through {@link org.springframework.data.elasticsearch.core.ElasticsearchOperations}, which has no
+     * async methods. These share the concurrency limit and the circuit with all other calls, but cannot be cancelled,
+     * so they are bounded by the socket timeout of the client instead of the time budget. Rejected calls throw the
+     * same exception as an unreachable cluster.
+     */
+    public <T> T executeBlocking(Supplier<T> call) {
+        final boolean trial;
+        try {
+            trial = acquireCircuit();
+        } catch (IOException e) {
+            throw new DataAccessResourceFailureException(e.getMessage(), e);
+        }
+        if (!permits.tryAcquire()) {
+            if (trial) {
+                trialRunning.set(false);
+            }
+            throw new DataAccessResourceFailureException("too many concurrent requests to Elasticsearch, rejecting request");
+        }
+
+        try {
+            final T result = call.get();
+            onSuccess();
+            return result;
+        } catch (RuntimeException e) {
+            if (isClientError(e)) {
+                onSuccess();
+            } else {
+                onFailure();
+            }
+            throw e;
+        } finally {
+            if (trial) {
+                trialRunning.set(false);
+            }
+            permits.release();
+        }
+    }
+
+    // the template wraps the exceptions of the client
+    private static boolean isClientError(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ElasticsearchStatusException) {
+                return ((ElasticsearchStatusException) cause).status().getStatus() < 500;
+            }
+        }
+        return false;
+    }
+
+    public boolean isOpen() {
+        return openUntil.get() != null;
+    }
+
+    // returns true if this call is the trial call of a half open circuit
+    private boolean acquireCircuit() throws IOException {
+        final Instant until = openUntil.get();
+        if (until == null) {
+            return false;
+        }
+        if (clock.instant().isBefore(until) || !trialRunning.compareAndSet(false, true)) {
+            throw new IOException("circuit to Elasticsearch is open, rejecting request");
+        }
+        return true;
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (openUntil.getAndSet(null) != null) {
+            logger.info("Elasticsearch request succeeded, closing circuit");
+        }
+    }
+
+    private void onFailure() {
+        final int failures = consecutiveFailures.incrementAndGet();
+        if (failures >= failureThreshold) {
+            final Instant until = clock.instant().plus(openDuration);
+            if (openUntil.getAndSet(until) == null) {
+                logger.warn("[{}] consecutive Elasticsearch requests failed, opening circuit for [{}]", failures, openDuration);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+
+// every rendered list of links queues the favicons of hosts not seen before
+public class FaviconInterceptor implements HandlerInterceptor {
+
+    private final Favicons favicons;
+
+    public FaviconInterceptor(Favicons favicons) {
+        this.favicons = favicons;
+    }
+
+    @Override
+    public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler, ModelAndView modelAndView) {
+        if (modelAndView == null) {
+            return;
+        }
+        final Object links = modelAndView.getModel().get("links");
+        if (links instanceof Collection) {
+            favicons.prefetch((Collection<?>) links);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The favicons of the hosts of all shown links, fetched once per host in the background and stored as a small PNG,
+ * so that visitors neither wait for nor send requests to the linked sites. Hosts without a usable favicon are stored
+ * with an empty value, so they are not fetched again either.
+ */
+@Component
+public class Favicons {
+
+    private static final Logger logger = LoggerFactory.getLogger(Favicons.class);
+
+    static final int SIZE = 32;
+    static final int MAX_DIMENSION = 512;
+    private static final int MAX_REDIRECTS = 3;
+    private static final int MAX_BYTES = 100 * 1024;
+    private static final byte[] NONE = new byte[0];
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G' };
+    // hosts failing with a network error are tried again after this
+    private static final long RETRY_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_FAILED_HOSTS = 10_000;
+
+    private final BlobStore store;
+    private final boolean enabled;
+    // the host is filled in, tests point it at a local server
+    private final String urlTemplate;
+    private final Duration timeout;
+    private final PublicAddressGuard guard;
+    private final HttpClient httpClient;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> failedAt = new ConcurrentHashMap<>();
+    // nothing is fetched anymore once the store reached its maximum size
+    private volatile boolean full = false;
+
+    @Autowired
+    public Favicons(@Value("${linkrating.favicons.enabled:true}") boolean enabled,
+                    @Value("${linkrating.favicons.file:${java.io.tmpdir}/linkrating-favicons.bin}") String file,
+                    @Value("${linkrating.favicons.max-file-size:64MB}") DataSize maxFileSize,
+                    @Value("${linkrating.favicons.threads:2}") int threads,
+                    @Value("${linkrating.favicons.timeout:5s}") Duration timeout,
+                    @Value("${linkrating.enrichment.allow-private-addresses:false}") boolean allowPrivateAddresses) throws IOException {
+        this(enabled, "https://%s/favicon.ico", new BlobStore(Path.of(file), 1024 * 1024, maxFileSize(maxFileSize)), threads, timeout, allowPrivateAddresses);
+    }
+
+    // offsets in the store are ints
+    private static int maxFileSize(DataSize maxFileSize) {
+        if (maxFileSize.toBytes() <= 0 || maxFileSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("linkrating.favicons.max-file-size must be between 1 byte and 2GB, was [" + maxFileSize + "]");
+        }
+        return (int) maxFileSize.toBytes();
+    }
+
+    Favicons(boolean enabled, String urlTemplate, BlobStore store, int threads, Duration timeout, boolean allowPrivateAddresses) {
+        this.enabled = enabled;
+        this.urlTemplate = urlTemplate;
+        this.store = store;
+        this.timeout = timeout;
+        this.guard = new PublicAddressGuard(allowPrivateAddresses);
+        // redirects are followed manually, so that every target is checked by the guard
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        // a full queue only delays an icon until the host shows up on a page again
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1000), r -> {
+            final Thread thread = new Thread(r, "favicons-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        logger.debug("loaded [{}] favicons", store.size());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        executor.shutdownNow();
+        store.close();
+    }
+
+    // null if the favicon has not been fetched yet, empty if the host has none
+    public byte[] get(String host) {
+        return store.get(host);
+    }
+
+    // called with the links of every rendered page, only hosts not stored yet cost more than a lookup
+    public void prefetch(Collection<?> links) {
+        if (!enabled || full) {
+            return;
+        }
+        for (Object link : links) {
+            if (link instanceof Link) {
+                final String host = ((Link) link).getHost();
+                if (host != null && !store.contains(host)) {
+                    schedule(host);
+                }
+            }
+        }
+    }
+
+    private void schedule(String host) {
+        final Long failed = failedAt.get(host);
+        if (failed != null && System.currentTimeMillis() - failed < RETRY_AFTER_MILLIS) {
+            return;
+        }
+        if (!inFlight.add(host)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    fetch(host);
+                } finally {
+                    inFlight.remove(host);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(host);
+        }
+    }
+
+    void fetch(String host) {
+        try {
+            final byte[] icon = download(URI.create(String.format(Locale.ROOT, urlTemplate, host)));
+            final byte[] png = icon == null ? null : normalize(icon);
+            failedAt.remove(host);
+            store(host, png == null ? NONE : png);
+        } catch (IOException e) {
+            if (failedAt.size() >= MAX_FAILED_HOSTS) {
+                failedAt.clear();
+            }
+            failedAt.put(host, System.currentTimeMillis());
+            logger.debug("could not fetch favicon of [{}]: {}", host, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void store(String host, byte[] value) throws IOException {
+        if (!store.put(host, value) && !store.contains(host)) {
+            if (!full) {
+                logger.warn("favicon store is full with [{}] hosts, not fetching favicons anymore", store.size());
+            }
+            full = true;
+        }
+    }
+
+    boolean isFull() {
+        return full;
+    }
+
+    // null if the host has no favicon, an IOException for anything worth trying again later
+    private byte[] download(URI uri) throws IOException, InterruptedException {
+        URI current = uri;
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            if (!guard.isAllowed(current)) {
+                return null;
+            }
+            final HttpRequest request = HttpRequest.newBuilder(current)
+                    .timeout(timeout)
+                    .header("User-Agent", "linkrating")
+                    .GET()
+                    .build();
+            final HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream body = response.body()) {
+                final int status = response.statusCode();
+                if (status >= 300 && status < 400) {
+                    final String location = response.headers().firstValue("Location").orElse(null);
+                    if (location == null) {
+                        return null;
+                    }
+                    current = current.resolve(location);
+                    continue;
+                }
+                if (status >= 500 || status == 429) {
+                    throw new IOException("status [" + status + "]");
+                }
+                if (status != 200) {
+                    return null;
+                }
+                final byte[] bytes = body.readNBytes(MAX_BYTES + 1);
+                return bytes.length > MAX_BYTES ? null : bytes;
+            }
+        }
+        return null;
+    }
+
+    // any image format the JDK reads plus ICO files, scaled to a square PNG. Null if it cannot be read
+    static byte[] normalize(byte[] bytes) {
+        try {
+            final BufferedImage image = isIco(bytes) ? readIco(bytes) : readImage(bytes);
+            if (image == null) {
+                return null;
+            }
+            final BufferedImage scaled = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+            final Graphics2D graphics = scaled.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                graphics.drawImage(image, 0, 0, SIZE, SIZE, null);
+            } finally {
+                graphics.dispose();
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(scaled, "png", out);
+            return out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isIco(byte[] bytes) {
+        return bytes.length >= 6 && bytes[0] == 0 && bytes[1] == 0 && bytes[2] == 1 && bytes[3] == 0;
+    }
+
+    // an ICO file is a directory of images, each either a PNG or a bitmap without the file header
+    private static BufferedImage readIco(byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        final int count = buffer.getShort(4) & 0xFFFF;
+        int best = -1;
+        int bestWidth = 0;
+        for (int i = 0; i < count && 6 + i * 16 + 16 <= bytes.length; i++) {
+            final int width = bytes[6 + i * 16] == 0 ? 256 : bytes[6 + i * 16] & 0xFF;
+            // the smallest image at least as large as the target, otherwise the largest one
+            if (best == -1 || (bestWidth < SIZE ? width > bestWidth : width >= SIZE && width < bestWidth)) {
+                best = i;
+                bestWidth = width;
+            }
+        }
+        if (best == -1) {
+            return null;
+        }
+        final int length = buffer.getInt(6 + best * 16 + 8);
+        final int offset = buffer.getInt(6 + best * 16 + 12);
+        if (offset < 0 || length <= 0 || (long) offset + length > bytes.length) {
+            return null;
+        }
+        final byte[] image = new byte[length];
+        System.arraycopy(bytes, offset, image, 0, length);
+        if (startsWith(image, PNG_SIGNATURE)) {
+            return readImage(image);
+        }
+        return readBitmap(ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    // 32 bit bitmaps carry an alpha channel the JDK reader ignores, all others get a file header and go to ImageIO
+    private static BufferedImage readBitmap(ByteBuffer dib) throws IOException {
+        final int headerSize = dib.getInt(0);
+        final int width = dib.getInt(4);
+        // the height covers the image and the transparency mask below it
+        final int height = dib.getInt(8) / 2;
+        final int bitsPerPixel = dib.getShort(14);
+        if (width <= 0 || height <= 0 || width > 256 || height > 256) {
+            return null;
+        }
+        if (bitsPerPixel == 32) {
+            final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    // rows are stored bottom up, BGRA read as a little endian int is ARGB
+                    image.setRGB(x, height - 1 - y, dib.getInt(headerSize + (y * width + x) * 4));
+                }
+            }
+            return image;
+        }
+
+        final int colors = dib.getInt(32) != 0 ? dib.getInt(32) : bitsPerPixel <= 8 ? 1 << bitsPerPixel : 0;
+        final ByteBuffer bmp = ByteBuffer.allocate(14 + dib.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.put((byte) 'B').put((byte) 'M').putInt(bmp.capacity()).putInt(0).putInt(14 + headerSize + colors * 4);
+        bmp.put(dib.duplicate());
+        bmp.putInt(14 + 8, height);
+        return readImage(bmp.array());
+    }
+
+    // the dimensions are checked before decoding, a few compressed bytes can declare a raster of gigabytes
+    private static BufferedImage readImage(byte[] bytes) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+                    return null;
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
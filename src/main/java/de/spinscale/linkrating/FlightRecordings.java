@@ -0,0 +1,183 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Java Flight Recorder recordings started on demand by an admin, one at a time and always limited in time, so that
+ * a forgotten recording cannot fill up the disk. Finished recordings are written into a directory, of which only the
+ * latest few are kept.
+ */
+@Component
+public class FlightRecordings {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlightRecordings.class);
+
+    private static final DateTimeFormatter NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    // only names created here can be downloaded, which rules out any path traversal
+    private static final Pattern NAME = Pattern.compile("linkrating-\\d{8}T\\d{6}Z\\.jfr");
+
+    private final Path directory;
+    private final Duration maxDuration;
+    private final int maxRecordings;
+
+    private Recording current;
+
+    public FlightRecordings(@Value("${linkrating.diagnostics.directory:${java.io.tmpdir}/linkrating-recordings}") String directory,
+                            @Value("${linkrating.diagnostics.max-duration:5m}") Duration maxDuration,
+                            @Value("${linkrating.diagnostics.max-recordings:5}") int maxRecordings) {
+        this.directory = Path.of(directory);
+        this.maxDuration = maxDuration;
+        this.maxRecordings = maxRecordings;
+    }
+
+    // the profile is one of the configurations shipped with the JDK, usually "default" or the more detailed "profile"
+    public synchronized String start(String profile, Duration duration) throws IOException {
+        if (duration.isNegative() || duration.isZero() || duration.compareTo(maxDuration) > 0) {
+            throw new IllegalArgumentException("duration must be between 1s and " + maxDuration.toSeconds() + "s");
+        }
+        if (current != null && current.getState() == RecordingState.RUNNING) {
+            throw new IllegalStateException("recording [" + current.getName() + "] is still running");
+        }
+        final Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(profile);
+        } catch (IOException | ParseException e) {
+            throw new IllegalArgumentException("unknown profile [" + profile + "], available are " + profiles());
+        }
+        closeCurrent();
+
+        final String name = "linkrating-" + NAME_FORMATTER.format(Instant.now()) + ".jfr";
+        Files.createDirectories(directory);
+        if (Files.exists(directory.resolve(name))) {
+            throw new IllegalStateException("recording [" + name + "] exists already");
+        }
+        deleteOldRecordings();
+
+        final Recording recording = new Recording(configuration);
+        recording.setName(name);
+        recording.setToDisk(true);
+        recording.setDuration(duration);
+        // written once the duration is over
+        recording.setDestination(directory.resolve(name));
+        recording.start();
+        current = recording;
+        logger.info("started recording [{}] with profile [{}] for [{}]", name, profile, duration);
+        return name;
+    }
+
+    public synchronized String running() {
+        return current != null && current.getState() == RecordingState.RUNNING ? current.getName() : null;
+    }
+
+    // finished recordings, the newest first. The file of the running recording exists already, but is incomplete
+    public List<Path> list() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        final String running = running();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> NAME.matcher(file.getFileName().toString()).matches())
+                    .filter(file -> !file.getFileName().toString().equals(running))
+                    .sorted((a, b) -> b.getFileName().compareTo(a.getFileName()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // null if there is no finished recording with this name
+    public Path get(String name) {
+        if (!NAME.matcher(name).matches() || name.equals(running())) {
+            return null;
+        }
+        final Path file = directory.resolve(name);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    public static List<String> profiles() {
+        return Configuration.getConfigurations().stream().map(Configuration::getName).collect(Collectors.toList());
+    }
+
+    /**
+     * The same as {@code jcmd <pid> GC.class_histogram}, limited to the classes using the most memory. Only counting
+     * live objects requires a full GC, which pauses the application, so by default unreachable objects are counted
+     * as well.
+     */
+    public static String histogram(int limit, boolean live) throws Exception {
+        final ObjectName diagnosticCommand = new ObjectName("com.sun.management:type=DiagnosticCommand");
+        final String[] args = live ? new String[0] : new String[] { "-all" };
+        final String histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(diagnosticCommand, "gcClassHistogram",
+                new Object[] { args }, new String[] { String[].class.getName() });
+
+        // a header, one line per class and the total in the last line
+        final String[] lines = histogram.split("\n");
+        if (lines.length <= limit + 3) {
+            return histogram;
+        }
+        final List<String> limited = new ArrayList<>(List.of(lines).subList(0, limit + 2));
+        limited.add(lines[lines.length - 1]);
+        return String.join("\n", limited) + "\n";
+    }
+
+    private void deleteOldRecordings() throws IOException {
+        final List<Path> recordings = list();
+        for (Path recording : recordings.subList(Math.min(recordings.size(), maxRecordings - 1), recordings.size())) {
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    private void closeCurrent() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    // a running recording is dumped on shutdown, so it is not lost when the container is replaced
+    @PreDestroy
+    public synchronized void stop() {
+        if (current != null && current.getState() == RecordingState.RUNNING) {
+            current.stop();
+        }
+        closeCurrent();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import co.elastic.apm.api.Scope;
+import co.elastic.apm.api.Span;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Serves approved links as JSON for clients that do not need the rendered pages. Only the requested fields are
+ * fetched from the source, and the JSON is written field by field without mapping the links to entities first.
+ * Search results are paged with a cursor containing the sort values of the last hit, together with the origin of
+ * the date decay of the first page, so that scores do not change while paging.
+ */
+@Component
+public class LinkApi {
+
+    public static final List<String> FIELDS = List.of("title", "description", "url", "category", "created_at", "votes");
+    public static final int DEFAULT_SIZE = 10;
+    static final int MAX_SIZE = 100;
+    static final int MAX_IDS = 100;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final RestHighLevelClient client;
+    private final ElasticsearchGuard guard;
+    private final String preference;
+    private final Duration originRounding;
+    private final int maxQueryLength;
+    private final int maxQueryTerms;
+    private final Duration timeout;
+
+    public LinkApi(RestHighLevelClient client, ElasticsearchGuard guard,
+                   @Value("${linkrating.search.preference:linkrating}") String preference,
+                   @Value("${linkrating.search.origin-rounding:1m}") Duration originRounding,
+                   @Value("${linkrating.search.max-query-length:200}") int maxQueryLength,
+                   @Value("${linkrating.search.max-query-terms:10}") int maxQueryTerms,
+                   @Value("${linkrating.search.timeout:500ms}") Duration timeout) {
+        this.client = client;
+        this.guard = guard;
+        this.preference = preference;
+        this.originRounding = originRounding;
+        this.maxQueryLength = maxQueryLength;
+        this.maxQueryTerms = maxQueryTerms;
+        this.timeout = timeout;
+    }
+
+    public static class Page {
+
+        private final List<Map<String, Object>> links;
+        private final String next;
+        private final boolean partial;
+
+        Page(List<Map<String, Object>> links, String next, boolean partial) {
+            this.links = links;
+            this.next = next;
+            this.partial = partial;
+        }
+
+        public List<Map<String, Object>> getLinks() {
+            return links;
+        }
+
+        // null on the last page
+        public String getNext() {
+            return next;
+        }
+
+        public boolean isPartial() {
+            return partial;
+        }
+    }
+
+    public Page search(String q, String cursor, int size, List<String> fields) throws IOException {
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("size must be between 1 and " + MAX_SIZE);
+        }
+        final String limitedQuery = LinkSearchService.limitQuery(q, maxQueryLength, maxQueryTerms);
+        final Cursor after = cursor == null ? null : Cursor.decode(cursor);
+        final String origin = after == null ? LinkSearchService.roundedOrigin(Instant.now(), originRounding) : after.origin;
+
+        final SearchResponse response = execute(searchRequest(limitedQuery, origin, after, size, fields));
+        final SearchHit[] hits = response.getHits().getHits();
+        final List<Map<String, Object>> links = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            links.add(toLink(hit.getId(), hit.getSourceAsMap(), fields));
+        }
+        String next = null;
+        if (hits.length == size) {
+            final Object[] sortValues = hits[hits.length - 1].getSortValues();
+            next = new Cursor(origin, ((Number) sortValues[0]).floatValue(), (String) sortValues[1]).encode();
+        }
+        final boolean partial = !Objects.equals(q, limitedQuery) || response.isTimedOut();
+        return new Page(links, next, partial);
+    }
+
+    // a single multi get for all ids, links that do not exist or are not approved are left out
+    public List<Map<String, Object>> get(List<String> ids, List<String> fields) throws IOException {
+        if (ids.isEmpty() || ids.size() > MAX_IDS) {
+            throw new IllegalArgumentException("between 1 and " + MAX_IDS + " ids are required");
+        }
+        final String[] includes = Stream.concat(fields.stream(), Stream.of("approved")).toArray(String[]::new);
+        final MultiGetRequest request = new MultiGetRequest();
+        for (String id : ids) {
+            request.add(new MultiGetRequest.Item("links", id).fetchSourceContext(new FetchSourceContext(true, includes, null)));
+        }
+
+        final Span span = Tracing.startSpan("app", "elasticsearch", "mget", "get links");
+        final MultiGetResponse response;
+        try (Scope ignored = span.activate()) {
+            final ElasticsearchGuard.AsyncCall<MultiGetResponse> call = listener -> client.mgetAsync(request, RequestOptions.DEFAULT, listener);
+            response = guard.execute(call);
+        } catch (IOException | RuntimeException e) {
+            span.captureException(e);
+            throw e;
+        } finally {
+            span.setLabel("ids", ids.size()).end();
+        }
+
+        final List<Map<String, Object>> links = new ArrayList<>(ids.size());
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed()) {
+                throw new IOException("getting link [" + item.getId() + "] failed", item.getFailure().getFailure());
+            }
+            if (!item.getResponse().isExists()) {
+                continue;
+            }
+            final Map<String, Object> source = item.getResponse().getSourceAsMap();
+            if (Boolean.TRUE.equals(source.get("approved"))) {
+                links.add(toLink(item.getId(), source, fields));
+            }
+        }
+        return links;
+    }
+
+    // all fields if none are given, unknown fields are rejected
+    public static List<String> parseFields(String fields) {
+        if (!Strings.hasText(fields)) {
+            return FIELDS;
+        }
+        final List<String> parsed = Arrays.stream(fields.split(",")).map(String::trim).filter(f -> !f.isEmpty()).distinct()
+                .collect(Collectors.toList());
+        for (String field : parsed) {
+            if (!FIELDS.contains(field)) {
+                throw new IllegalArgumentException("unknown field [" + field + "], available fields are " + FIELDS);
+            }
+        }
+        return parsed;
+    }
+
+    public void writePage(Page page, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            writeLinks(generator, page.getLinks());
+            if (page.getNext() != null) {
+                generator.writeStringField("next", page.getNext());
+            }
+            if (page.isPartial()) {
+                generator.writeBooleanField("partial", true);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    public void writeLinks(List<Map<String, Object>> links, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            generator.writeStartObject();
+            writeLinks(generator, links);
+            generator.writeEndObject();
+        }
+    }
+
+    public void writeLink(Map<String, Object> link, OutputStream out) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            writeLink(generator, link);
+        }
+    }
+
+    private JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return mapper.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    private static void writeLinks(JsonGenerator generator, List<Map<String, Object>> links) throws IOException {
+        generator.writeArrayFieldStart("links");
+        for (Map<String, Object> link : links) {
+            writeLink(generator, link);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeLink(JsonGenerator generator, Map<String, Object> link) throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<String, Object> entry : link.entrySet()) {
+            generator.writeObjectField(entry.getKey(), entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    // the id first, followed by the requested fields in a fixed order
+    private static Map<String, Object> toLink(String id, Map<String, Object> source, List<String> fields) {
+        final Map<String, Object> link = new LinkedHashMap<>();
+        link.put("id", id);
+        for (String field : FIELDS) {
+            if (fields.contains(field) && source.containsKey(field)) {
+                link.put(field, source.get(field));
+            }
+        }
+        return link;
+    }
+
+    private SearchResponse execute(SearchTemplateRequest request) throws IOException {
+        final Span span = Tracing.startSpan("app", "elasticsearch", "search", "search api links");
+        try (Scope ignored = span.activate()) {
+            final ElasticsearchGuard.AsyncCall<SearchTemplateResponse> call = listener -> client.searchTemplateAsync(request, RequestOptions.DEFAULT, listener);
+            return guard.execute(call).getResponse();
+        } catch (IOException | RuntimeException e) {
+            span.captureException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    // the same request cache and preference as the main page, the first page of a query is cached for a minute
+    SearchTemplateRequest searchRequest(String q, String origin, Cursor after, int size, List<String> fields) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("origin", origin);
+        params.put("size", size);
+        params.put("timeout", timeout.toMillis() + "ms");
+        params.put("fields", fields);
+        if (Strings.hasLength(q)) {
+            params.put("q", q);
+        }
+        if (after != null) {
+            params.put("after", Map.of("score", after.score, "url", after.url));
+        }
+        final SearchRequest searchRequest = new SearchRequest("links").requestCache(true).preference(preference);
+        return SearchTemplates.request(SearchTemplates.API, params, searchRequest);
+    }
+
+    // opaque to clients, base64 encoded origin, score and url of the last hit
+    static class Cursor {
+
+        private final String origin;
+        private final float score;
+        private final String url;
+
+        Cursor(String origin, float score, String url) {
+            this.origin = origin;
+            this.score = score;
+            this.url = url;
+        }
+
+        String encode() {
+            final String value = origin + "|" + score + "|" + url;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String cursor) {
+            try {
+                final String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 3);
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("invalid cursor");
+                }
+                // the origin and the score end up in the query, so they are parsed instead of being passed on as is
+                final String origin = Instant.parse(parts[0]).toString();
+                final float score = Float.parseFloat(parts[1]);
+                if (!Float.isFinite(score)) {
+                    throw new IllegalArgumentException("invalid cursor");
+                }
+                return new Cursor(origin, score, parts[2]);
+            } catch (DateTimeParseException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid cursor", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.springframework.context.ApplicationEvent;
+
+// published by the link controller whenever a link has been changed in Elasticsearch
+public class LinkChangedEvent extends ApplicationEvent {
+
+    public enum Type { SUBMITTED, APPROVED, DELETED, VOTED }
+
+    private final String id;
+    private final Type type;
+
+    public LinkChangedEvent(Object source, String id, Type type) {
+        super(source);
+        this.id = id;
+        this.type = type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches the page of a newly submitted link in the background and replaces title, description and URL of the
+ * pending link with the title, meta description and canonical URL of that page. The number of fetches is bounded
+ * in total and per host, submissions exceeding the queue are not enriched at all.
+ */
+@Component
+public class LinkEnricher implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(LinkEnricher.class);
+
+    private static final int MAX_REDIRECTS = 3;
+    private static final int MAX_BYTES = 256 * 1024;
+
+    private static final Pattern TITLE = Pattern.compile("<title[^>]*>(.*?)</title>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern META = Pattern.compile("<meta\\s[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LINK = Pattern.compile("<link\\s[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile("([a-zA-Z:-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))");
+    private static final Pattern CHARSET = Pattern.compile("charset=([^;\\s]+)", Pattern.CASE_INSENSITIVE);
+
+    // only pending links are changed, an admin might have approved and fixed the link in the meantime
+    private static final String UPDATE_SCRIPT = "if (ctx._source.approved == true) { ctx.op = 'noop' } " +
+            "else { for (entry in params.fields.entrySet()) { ctx._source[entry.getKey()] = entry.getValue() } }";
+
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final LinkSearchService linkSearchService;
+    private final PublicAddressGuard guard;
+    private final boolean enabled;
+    private final int maxConcurrentRequestsPerHost;
+    private final Duration timeout;
+    private final HttpClient httpClient;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    public LinkEnricher(ElasticsearchOperations elasticsearchOperations, LinkSearchService linkSearchService,
+                        @Value("${linkrating.enrichment.enabled:true}") boolean enabled,
+                        @Value("${linkrating.enrichment.threads:4}") int threads,
+                        @Value("${linkrating.enrichment.queue-size:100}") int queueSize,
+                        @Value("${linkrating.enrichment.max-requests-per-host:2}") int maxConcurrentRequestsPerHost,
+                        @Value("${linkrating.enrichment.timeout:5s}") Duration timeout,
+                        @Value("${linkrating.enrichment.allow-private-addresses:false}") boolean allowPrivateAddresses) {
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.linkSearchService = linkSearchService;
+        this.enabled = enabled;
+        this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+        this.timeout = timeout;
+        this.guard = new PublicAddressGuard(allowPrivateAddresses);
+        // redirects are followed manually, so that every target is checked by the guard
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            final Thread thread = new Thread(r, "link-enricher-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (!enabled || event.getType() != LinkChangedEvent.Type.SUBMITTED) {
+            return;
+        }
+        try {
+            executor.execute(() -> enrich(event.getId()));
+        } catch (RejectedExecutionException e) {
+            logger.warn("enrichment queue is full, not enriching link [{}]", event.getId());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    void enrich(String id) {
+        try {
+            final Link link = elasticsearchOperations.get(id, Link.class);
+            if (link == null || link.isApproved()) {
+                return;
+            }
+            final URI uri = URI.create(link.getUrl());
+            final Metadata metadata = fetch(uri);
+            if (metadata == null) {
+                return;
+            }
+
+            final Map<String, Object> fields = metadata.toFields(uri);
+            // the check for an existing url on submit only saw the url as typed, the canonical url may belong to
+            // another link already, which is kept and flagged for the admins instead
+            final Object canonicalUrl = fields.get("url");
+            if (canonicalUrl != null && !canonicalUrl.equals(link.getUrl())) {
+                final Link existing = linkSearchService.findByUrl((String) canonicalUrl);
+                if (existing != null && !id.equals(existing.getId())) {
+                    fields.remove("url");
+                    fields.put("duplicate_of", existing.getId());
+                }
+            }
+            if (fields.isEmpty()) {
+                return;
+            }
+            final UpdateQuery updateQuery = UpdateQuery.builder(id)
+                    .withLang("painless")
+                    .withScript(UPDATE_SCRIPT)
+                    .withParams(Map.of("fields", fields))
+                    .withRetryOnConflict(3)
+                    .build();
+            LinkMigration.retryOnWriteBlock(() -> elasticsearchOperations.update(updateQuery, IndexCoordinates.of("links")));
+            logger.debug("enriched link [{}] with {}", id, fields.keySet());
+        } catch (Exception e) {
+            logger.info("could not enrich link [{}]: {}", id, e.getMessage());
+        }
+    }
+
+    private Metadata fetch(URI uri) throws IOException, InterruptedException {
+        URI current = uri;
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            if (!guard.isAllowed(current)) {
+                logger.info("not fetching [{}], host is not allowed", current);
+                return null;
+            }
+            final Semaphore permits = hostPermits.computeIfAbsent(current.getHost().toLowerCase(Locale.ROOT),
+                    h -> new Semaphore(maxConcurrentRequestsPerHost));
+            // waiting for a busy host is fine, but only as long as a single request may take
+            if (!permits.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.info("too many concurrent requests to [{}], skipping [{}]", current.getHost(), current);
+                return null;
+            }
+            try {
+                final HttpRequest request = HttpRequest.newBuilder(current)
+                        .timeout(timeout)
+                        .header("Accept", "text/html")
+                        .header("User-Agent", "linkrating")
+                        .GET()
+                        .build();
+                final HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream body = response.body()) {
+                    final int status = response.statusCode();
+                    if (status >= 300 && status < 400) {
+                        final String location = response.headers().firstValue("Location").orElse(null);
+                        if (location == null) {
+                            return null;
+                        }
+                        current = current.resolve(location);
+                        continue;
+                    }
+                    final String contentType = response.headers().firstValue("Content-Type").orElse("text/html");
+                    if (status != 200 || !contentType.toLowerCase(Locale.ROOT).contains("html")) {
+                        return null;
+                    }
+                    return extract(new String(body.readNBytes(MAX_BYTES), charset(contentType)));
+                }
+            } finally {
+                permits.release();
+            }
+        }
+        return null;
+    }
+
+    private static Charset charset(String contentType) {
+        final Matcher matcher = CHARSET.matcher(contentType);
+        if (matcher.find()) {
+            try {
+                return Charset.forName(matcher.group(1).replace("\"", ""));
+            } catch (IllegalArgumentException e) {
+                return StandardCharsets.UTF_8;
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    static Metadata extract(String html) {
+        final Metadata metadata = new Metadata();
+        final Matcher title = TITLE.matcher(html);
+        if (title.find()) {
+            metadata.title = title.group(1);
+        }
+
+        final Matcher meta = META.matcher(html);
+        while (meta.find()) {
+            final Map<String, String> attributes = attributes(meta.group());
+            final String name = attributes.getOrDefault("name", attributes.get("property"));
+            if ("description".equalsIgnoreCase(name) || ("og:description".equalsIgnoreCase(name) && metadata.description == null)) {
+                metadata.description = attributes.get("content");
+            }
+        }
+
+        final Matcher link = LINK.matcher(html);
+        while (link.find()) {
+            final Map<String, String> attributes = attributes(link.group());
+            if ("canonical".equalsIgnoreCase(attributes.get("rel"))) {
+                metadata.canonical = attributes.get("href");
+            }
+        }
+        return metadata;
+    }
+
+    private static Map<String, String> attributes(String tag) {
+        final Map<String, String> attributes = new HashMap<>();
+        final Matcher matcher = ATTRIBUTE.matcher(tag);
+        while (matcher.find()) {
+            final String value = matcher.group(2) != null ? matcher.group(2) : matcher.group(3) != null ? matcher.group(3) : matcher.group(4);
+            attributes.put(matcher.group(1).toLowerCase(Locale.ROOT), value);
+        }
+        return attributes;
+    }
+
+    static class Metadata {
+
+        String title;
+        String description;
+        String canonical;
+
+        // runs everything through the setters of a link, so the same validation and HTML stripping applies as on submit
+        Map<String, Object> toFields(URI base) {
+            final Link link = new Link();
+            final Map<String, Object> fields = new HashMap<>();
+            if (hasText(title)) {
+                link.setTitle(truncate(title.replaceAll("\\s+", " ").trim(), 100));
+                fields.put("title", link.getTitle());
+            }
+            if (hasText(description)) {
+                link.setDescription(truncate(description.replaceAll("\\s+", " ").trim(), 1000));
+                fields.put("description", link.getDescription());
+            }
+            if (hasText(canonical)) {
+                try {
+                    final URI canonicalUri = base.resolve(canonical.trim());
+                    if ("http".equals(canonicalUri.getScheme()) || "https".equals(canonicalUri.getScheme())) {
+                        link.setUrl(canonicalUri.toString());
+                        fields.put("url", link.getUrl());
+                    }
+                } catch (IllegalArgumentException e) {
+                    // invalid canonical urls are ignored
+                }
+            }
+            return fields;
+        }
+
+        private static boolean hasText(String value) {
+            return value != null && !value.isBlank();
+        }
+
+        private static String truncate(String value, int length) {
+            return value.length() > length ? value.substring(0, length) : value;
+        }
+    }
+}
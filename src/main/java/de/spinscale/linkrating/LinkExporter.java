@@ -0,0 +1,253 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes all links to an output stream, one batch of a scroll search at a time, so memory usage does not depend
+ * on the number of links. With more than one slice, the slices are scrolled in parallel and their batches are
+ * written in whatever order they arrive.
+ */
+@Component
+public class LinkExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LinkExporter.class);
+
+    // point in time readers are not available in Elasticsearch 7.6, a scroll keeps a consistent view as well
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    static final String[] CSV_COLUMNS = { "id", "title", "description", "url", "category", "submitted_by", "created_at", "approved", "votes" };
+
+    public enum Format {
+        NDJSON("application/x-ndjson"), CSV("text/csv");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final RestHighLevelClient client;
+    private final int slices;
+    private final int batchSize;
+
+    public LinkExporter(RestHighLevelClient client,
+                        @Value("${linkrating.export.slices:1}") int slices,
+                        @Value("${linkrating.export.batch-size:500}") int batchSize) {
+        this.client = client;
+        this.slices = slices;
+        this.batchSize = batchSize;
+    }
+
+    public long export(Format format, OutputStream out) throws IOException {
+        final RowWriter writer = format == Format.CSV ? new CsvWriter(out) : new NdjsonWriter(out);
+        final long start = System.nanoTime();
+        long count = 0;
+        if (slices <= 1) {
+            count = scroll(null, writer);
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(slices);
+            try {
+                final List<Future<Long>> futures = new ArrayList<>(slices);
+                for (int i = 0; i < slices; i++) {
+                    final SliceBuilder slice = new SliceBuilder(i, slices);
+                    futures.add(executor.submit(() -> scroll(slice, writer)));
+                }
+                for (Future<Long> future : futures) {
+                    count += future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("export was interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        writer.finish();
+        logger.info("exported [{}] links as {} in [{}ms]", count, format, (System.nanoTime() - start) / 1_000_000);
+        return count;
+    }
+
+    private long scroll(SliceBuilder slice, RowWriter writer) throws IOException {
+        final SearchSourceBuilder source = new SearchSourceBuilder().size(batchSize).sort("_doc", SortOrder.ASC);
+        if (slice != null) {
+            source.slice(slice);
+        }
+        SearchResponse response = client.search(new SearchRequest("links").source(source).scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
+        String scrollId = response.getScrollId();
+        long count = 0;
+        try {
+            while (response.getHits().getHits().length > 0) {
+                writer.write(response.getHits().getHits());
+                count += response.getHits().getHits().length;
+                response = client.scroll(new SearchScrollRequest(scrollId).scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
+                scrollId = response.getScrollId();
+            }
+        } finally {
+            final ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            try {
+                client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+            } catch (IOException e) {
+                logger.warn("error clearing scroll, it will expire after [{}]", KEEP_ALIVE, e);
+            }
+        }
+        return count;
+    }
+
+    abstract static class RowWriter {
+
+        // slices write concurrently, a batch is written as a whole and flushed so it reaches the client right away
+        synchronized void write(SearchHit[] hits) throws IOException {
+            for (SearchHit hit : hits) {
+                writeRow(hit.getId(), hit.getSourceAsMap());
+            }
+            flush();
+        }
+
+        abstract void writeRow(String id, Map<String, Object> source) throws IOException;
+
+        abstract void flush() throws IOException;
+
+        void finish() throws IOException {
+            flush();
+        }
+    }
+
+    // the complete source of every link plus its id, one JSON object per line
+    static class NdjsonWriter extends RowWriter {
+
+        private final JsonGenerator generator;
+
+        NdjsonWriter(OutputStream out) throws IOException {
+            this.generator = new ObjectMapper().getFactory().createGenerator(out)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        void writeRow(String id, Map<String, Object> source) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("id", id);
+            for (Map.Entry<String, Object> entry : source.entrySet()) {
+                generator.writeObjectField(entry.getKey(), entry.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        void flush() throws IOException {
+            generator.flush();
+        }
+    }
+
+    // a fixed set of columns, as nested fields like the related links do not fit into a row
+    static class CsvWriter extends RowWriter {
+
+        private final Writer writer;
+
+        CsvWriter(OutputStream out) throws IOException {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writeLine(CSV_COLUMNS);
+        }
+
+        @Override
+        void writeRow(String id, Map<String, Object> source) throws IOException {
+            final String[] values = new String[CSV_COLUMNS.length];
+            values[0] = id;
+            for (int i = 1; i < CSV_COLUMNS.length; i++) {
+                final Object value = source.get(CSV_COLUMNS[i]);
+                values[i] = value == null ? "" : value.toString();
+            }
+            writeLine(values);
+        }
+
+        private void writeLine(String[] values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(escape(values[i]));
+            }
+            writer.write("\r\n");
+        }
+
+        @Override
+        void flush() throws IOException {
+            writer.flush();
+        }
+
+        // spreadsheets run cells starting with one of these as formulas, the quote makes them plain text
+        static String escape(String value) {
+            if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) != -1) {
+                return '"' + "'" + value.replace("\"", "\"\"") + '"';
+            }
+            if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PreDestroy;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Atom and RSS feeds of the latest approved links, overall and per category. The feeds are rendered into memory
+ * and only rendered again when a link gets approved or deleted, so polling feed readers never cause a query. That
+ * happens in the background, approvals arriving while a reload is queued are covered by that reload.
+ * Approvals on other instances are picked up by a periodic reload. A reload that does not change the content
+ * keeps the ETag and the last modified date of the previous feed.
+ */
+@Component
+@Lazy(false)
+public class LinkFeeds implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(LinkFeeds.class);
+
+    private static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
+    private static final String TITLE = "Link Rating";
+
+    public enum Format {
+        ATOM("application/atom+xml"), RSS("application/rss+xml");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        String getExtension() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static class Feed {
+
+        private final byte[] content;
+        private final String etag;
+        private final Instant lastModified;
+
+        Feed(byte[] content, Instant lastModified) {
+            this.content = content;
+            this.etag = "\"" + DigestUtils.md5DigestAsHex(content) + "\"";
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public Instant getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final String baseUrl;
+    private final int size;
+    private final int window;
+    private final Executor executor;
+    private final AtomicBoolean reloadQueued = new AtomicBoolean();
+
+    // the links the feeds were rendered from, newest first, and the feeds keyed by format and category
+    private List<Link> links = Collections.emptyList();
+    private volatile Map<String, Feed> feeds;
+
+    @Autowired
+    public LinkFeeds(ElasticsearchOperations elasticsearchOperations,
+                     @Value("${linkrating.feeds.base-url:http://localhost:8080}") String baseUrl,
+                     @Value("${linkrating.feeds.size:20}") int size,
+                     @Value("${linkrating.feeds.window:500}") int window,
+                     @Value("${linkrating.feeds.queue-size:100}") int queueSize) {
+        this(elasticsearchOperations, baseUrl, size, window, executor(queueSize));
+    }
+
+    LinkFeeds(ElasticsearchOperations elasticsearchOperations, String baseUrl, int size, int window, Executor executor) {
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.size = size;
+        this.window = window;
+        this.executor = executor;
+    }
+
+    // a single thread, so that a deletion is never applied before a reload that was queued earlier
+    private static ThreadPoolExecutor executor(int queueSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            final Thread thread = new Thread(r, "link-feeds");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+
+    public boolean isLoaded() {
+        return feeds != null;
+    }
+
+    // null for an unknown category, or as long as the feeds could not be loaded
+    public Feed get(Format format, String category) {
+        final Map<String, Feed> current = feeds;
+        return current == null ? null : current.get(key(format, category));
+    }
+
+    // the reload is a query, which the request thread of the approval should not wait for
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (event.getType() == LinkChangedEvent.Type.APPROVED) {
+            // a queued reload has not searched yet, so it finds this link as well
+            if (reloadQueued.compareAndSet(false, true)) {
+                submit(event, () -> {
+                    reloadQueued.set(false);
+                    reload();
+                });
+            }
+        } else if (event.getType() == LinkChangedEvent.Type.DELETED) {
+            // the link may still be found until the next refresh, so it is only removed from the loaded links
+            submit(event, () -> remove(event.getId()));
+        }
+    }
+
+    private void submit(LinkChangedEvent event, Runnable update) {
+        try {
+            executor.execute(() -> {
+                try {
+                    update.run();
+                } catch (Exception e) {
+                    logger.error("error updating feeds for [{}]", event.getId(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (event.getType() == LinkChangedEvent.Type.APPROVED) {
+                reloadQueued.set(false);
+            }
+            // the next scheduled reload catches up
+            logger.warn("feeds queue is full, not updating feeds for [{}]", event.getId());
+        }
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${linkrating.feeds.reload-interval:300000}")
+    public void scheduledReload() {
+        try {
+            reload();
+        } catch (Exception e) {
+            logger.error("error loading links for feeds", e);
+        }
+    }
+
+    // the per category feeds are taken from the latest links overall, which is a single query sorted like the index.
+    // Synchronized including the query, so that a slow scheduled reload cannot replace the result of a newer one
+    synchronized void reload() {
+        final NativeSearchQuery query = new NativeSearchQueryBuilder()
+                .withQuery(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("approved", true)))
+                .withSort(SortBuilders.fieldSort("created_at").order(SortOrder.DESC))
+                .withPageable(PageRequest.of(0, window))
+                .build();
+        final List<Link> latest = elasticsearchOperations.search(query, Link.class).getSearchHits().stream()
+                .map(SearchHit::getContent)
+                .collect(Collectors.toList());
+        update(latest);
+    }
+
+    synchronized void remove(String id) {
+        if (links.stream().anyMatch(link -> id.equals(link.getId()))) {
+            update(links.stream().filter(link -> !id.equals(link.getId())).collect(Collectors.toList()));
+        }
+    }
+
+    synchronized void update(List<Link> latest) {
+        final Map<String, List<Link>> byCategory = new LinkedHashMap<>();
+        byCategory.put(null, latest);
+        for (Link link : latest) {
+            if (link.getCategory() != null) {
+                byCategory.computeIfAbsent(link.getCategory(), c -> new ArrayList<>()).add(link);
+            }
+        }
+
+        final Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        final Map<String, Feed> previous = feeds == null ? Collections.emptyMap() : feeds;
+        final Map<String, Feed> updated = new HashMap<>();
+        int changed = 0;
+        for (Map.Entry<String, List<Link>> entry : byCategory.entrySet()) {
+            final List<Link> feedLinks = entry.getValue().subList(0, Math.min(size, entry.getValue().size()));
+            for (Format format : Format.values()) {
+                final String key = key(format, entry.getKey());
+                final byte[] content = render(format, entry.getKey(), feedLinks);
+                final Feed feed = previous.get(key);
+                if (feed != null && Arrays.equals(feed.getContent(), content)) {
+                    updated.put(key, feed);
+                } else {
+                    updated.put(key, new Feed(content, now));
+                    changed++;
+                }
+            }
+        }
+        this.links = latest;
+        this.feeds = updated;
+        if (changed > 0) {
+            logger.info("rendered [{}] feeds of [{}] links", changed, latest.size());
+        }
+    }
+
+    byte[] render(Format format, String category, List<Link> feedLinks) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            if (format == Format.ATOM) {
+                writeAtom(writer, category, feedLinks);
+            } else {
+                writeRss(writer, category, feedLinks);
+            }
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("error rendering feed", e);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeAtom(XMLStreamWriter writer, String category, List<Link> feedLinks) throws XMLStreamException {
+        writer.setDefaultNamespace(ATOM_NAMESPACE);
+        writer.writeStartElement(ATOM_NAMESPACE, "feed");
+        writer.writeDefaultNamespace(ATOM_NAMESPACE);
+        writeElement(writer, "id", feedUrl(Format.ATOM, category));
+        writeElement(writer, "title", title(category));
+        writeElement(writer, "updated", DateTimeFormatter.ISO_INSTANT.format(updated(feedLinks)));
+        writeAtomLink(writer, "self", feedUrl(Format.ATOM, category));
+        writeAtomLink(writer, "alternate", baseUrl + "/");
+        writer.writeStartElement("author");
+        writeElement(writer, "name", TITLE);
+        writer.writeEndElement();
+
+        for (Link link : feedLinks) {
+            writer.writeStartElement("entry");
+            writeElement(writer, "id", baseUrl + "/link/" + link.getId());
+            writeElement(writer, "title", link.getTitle());
+            writeElement(writer, "updated", DateTimeFormatter.ISO_INSTANT.format(createdAt(link)));
+            writeAtomLink(writer, "alternate", link.getUrl());
+            writeAtomLink(writer, "related", baseUrl + "/link/" + link.getId());
+            if (link.getCategory() != null) {
+                writer.writeEmptyElement("category");
+                writer.writeAttribute("term", link.getCategory());
+            }
+            if (link.getSubmittedBy() != null) {
+                writer.writeStartElement("author");
+                writeElement(writer, "name", link.getSubmittedBy());
+                writer.writeEndElement();
+            }
+            if (link.getDescription() != null) {
+                writeElement(writer, "summary", link.getDescription());
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    private void writeRss(XMLStreamWriter writer, String category, List<Link> feedLinks) throws XMLStreamException {
+        writer.writeStartElement("rss");
+        writer.writeAttribute("version", "2.0");
+        writer.writeStartElement("channel");
+        writeElement(writer, "title", title(category));
+        writeElement(writer, "link", baseUrl + "/");
+        writeElement(writer, "description", category == null ? "Latest approved links" : "Latest approved links in " + category);
+        writeElement(writer, "lastBuildDate", DateTimeFormatter.RFC_1123_DATE_TIME.format(updated(feedLinks).atZone(ZoneOffset.UTC)));
+
+        for (Link link : feedLinks) {
+            writer.writeStartElement("item");
+            writeElement(writer, "title", link.getTitle());
+            writeElement(writer, "link", link.getUrl());
+            if (link.getDescription() != null) {
+                writeElement(writer, "description", link.getDescription());
+            }
+            if (link.getCategory() != null) {
+                writeElement(writer, "category", link.getCategory());
+            }
+            writer.writeStartElement("guid");
+            writer.writeAttribute("isPermaLink", "true");
+            writer.writeCharacters(baseUrl + "/link/" + link.getId());
+            writer.writeEndElement();
+            writeElement(writer, "pubDate", DateTimeFormatter.RFC_1123_DATE_TIME.format(createdAt(link).atZone(ZoneOffset.UTC)));
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name, String text) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(text == null ? "" : text);
+        writer.writeEndElement();
+    }
+
+    private static void writeAtomLink(XMLStreamWriter writer, String rel, String href) throws XMLStreamException {
+        writer.writeEmptyElement("link");
+        writer.writeAttribute("rel", rel);
+        writer.writeAttribute("href", href);
+    }
+
+    private String feedUrl(Format format, String category) {
+        return baseUrl + (category == null ? "/feed." : "/feed/" + category + ".") + format.getExtension();
+    }
+
+    private static String title(String category) {
+        return category == null ? TITLE : TITLE + ": " + category;
+    }
+
+    // derived from the links, so that rendering the same links twice results in the same bytes
+    private static Instant updated(List<Link> feedLinks) {
+        return feedLinks.stream().map(LinkFeeds::createdAt).max(Instant::compareTo).orElse(Instant.EPOCH);
+    }
+
+    private static Instant createdAt(Link link) {
+        final Date createdAt = link.getCreatedAt();
+        return createdAt == null ? Instant.EPOCH : createdAt.toInstant().truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    private static String key(Format format, String category) {
+        return category == null ? format.name() : format.name() + "/" + category;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copies all links into a new index created from the current index template and moves the links alias over, while
+ * the application keeps running. Start the application with {@code --migrate-links} to run it, see the README.
+ *
+ * Documents are copied with a sliced reindex, changes done in the meantime are found by their sequence numbers and
+ * copied afterwards. Only for the last of these rounds the old indices are write blocked, writing links retries
+ * until the alias points to the new index.
+ */
+@Component
+@Lazy(false)
+public class LinkMigration implements ApplicationRunner {
+
+    public static final String OPTION = "migrate-links";
+
+    private static final Logger logger = LoggerFactory.getLogger(LinkMigration.class);
+    private static final Pattern INDEX_NAME = Pattern.compile("links-(\\d{6})");
+    private static final int WRITE_BLOCK_RETRIES = 40;
+    private static final long WRITE_BLOCK_RETRY_DELAY_MILLIS = 250;
+
+    private final RestHighLevelClient client;
+    private final int slices;
+    private final Duration pollInterval;
+    private final int maxCatchUpRounds;
+    private final long catchUpThreshold;
+
+    public LinkMigration(RestHighLevelClient client,
+                         @Value("${linkrating.migration.slices:0}") int slices,
+                         @Value("${linkrating.migration.poll-interval:5s}") Duration pollInterval,
+                         @Value("${linkrating.migration.max-catch-up-rounds:10}") int maxCatchUpRounds,
+                         @Value("${linkrating.migration.catch-up-threshold:100}") long catchUpThreshold) {
+        this.client = client;
+        this.slices = slices;
+        this.pollInterval = pollInterval;
+        this.maxCatchUpRounds = maxCatchUpRounds;
+        this.catchUpThreshold = catchUpThreshold;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (args.containsOption(OPTION)) {
+            migrate();
+        }
+    }
+
+    void migrate() throws IOException, InterruptedException {
+        StoreTemplateOnApplicationListener.storeIndexTemplate(client);
+
+        final Map<String, AliasMetaData> aliases = new HashMap<>();
+        client.indices().getAlias(new GetAliasesRequest("links"), RequestOptions.DEFAULT).getAliases()
+                .forEach((index, metaData) -> metaData.forEach(m -> aliases.put(index, m)));
+        if (aliases.isEmpty()) {
+            throw new IllegalStateException("alias [links] does not exist, nothing to migrate");
+        }
+        final String[] sourceIndices = aliases.keySet().toArray(new String[0]);
+        final String targetIndex = nextIndexName(aliases.keySet());
+        logger.info("migrating links from {} to [{}]", aliases.keySet(), targetIndex);
+
+        // no refreshes, no replicas and no lifecycle while copying, ILM would complain that the alias is missing
+        final CreateIndexRequest createIndexRequest = new CreateIndexRequest(targetIndex).settings(Settings.builder()
+                .put("index.refresh_interval", "-1")
+                .put("index.number_of_replicas", 0)
+                .put("index.lifecycle.name", ""));
+        client.indices().create(createIndexRequest, RequestOptions.DEFAULT);
+
+        final Map<String, Long> watermarks = new HashMap<>();
+        for (String index : sourceIndices) {
+            watermarks.put(index, maxSeqNo(index));
+        }
+
+        final long sourceCount = count(sourceIndices);
+        final ReindexRequest reindexRequest = new ReindexRequest()
+                .setSourceIndices(sourceIndices)
+                .setDestIndex(targetIndex)
+                .setSourceBatchSize(1000);
+        reindexRequest.setSlices(slices == 0 ? ReindexRequest.AUTO_SLICES : slices);
+        final long start = System.nanoTime();
+        final TaskSubmissionResponse task = client.submitReindexTask(reindexRequest, RequestOptions.DEFAULT);
+        waitForTask(task.getTask(), sourceCount, start);
+
+        // copy everything that changed while copying, until only a few changes are left
+        for (int round = 1; round <= maxCatchUpRounds; round++) {
+            final long changed = catchUp(watermarks, targetIndex);
+            logger.info("catch up round [{}] copied [{}] changed links", round, changed);
+            if (changed <= catchUpThreshold) {
+                break;
+            }
+        }
+
+        // indices in the warm phase of the link policy are write blocked already and have to stay that way
+        final GetSettingsResponse blocks = client.indices().getSettings(
+                new GetSettingsRequest().indices(sourceIndices).names("index.blocks.write"), RequestOptions.DEFAULT);
+        final String[] writableIndices = Arrays.stream(sourceIndices)
+                .filter(index -> !Boolean.parseBoolean(blocks.getSetting(index, "index.blocks.write")))
+                .toArray(String[]::new);
+
+        // block writes for the last round, links are written again once the alias points to the new index
+        if (writableIndices.length > 0) {
+            updateSettings(Settings.builder().put("index.blocks.write", true), writableIndices);
+        }
+        final long blockStart = System.nanoTime();
+        try {
+            // writes since the last refresh are invisible to the sequence number searches of the catch up
+            client.indices().refresh(new RefreshRequest(sourceIndices), RequestOptions.DEFAULT);
+            logger.info("final catch up round copied [{}] changed links", catchUp(watermarks, targetIndex));
+            client.indices().refresh(new RefreshRequest(targetIndex), RequestOptions.DEFAULT);
+
+            final long expected = count(sourceIndices);
+            final long copied = count(targetIndex);
+            // links deleted during the copy are still in the new index, links missing mean something went wrong
+            if (copied < expected) {
+                throw new IllegalStateException("only [" + copied + "] of [" + expected + "] links were copied to [" + targetIndex + "], not switching the alias");
+            } else if (copied > expected) {
+                logger.warn("[{}] links have been deleted during the migration and still exist in [{}]", copied - expected, targetIndex);
+            }
+
+            final IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+            for (String index : sourceIndices) {
+                aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.remove().index(index).alias("links"));
+            }
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(targetIndex).alias("links").writeIndex(true));
+            client.indices().updateAliases(aliasesRequest, RequestOptions.DEFAULT);
+        } catch (IOException | RuntimeException e) {
+            if (writableIndices.length > 0) {
+                updateSettings(Settings.builder().putNull("index.blocks.write"), writableIndices);
+            }
+            throw e;
+        }
+        logger.info("switched alias [links] to [{}], writes were blocked for [{}ms]", targetIndex, (System.nanoTime() - blockStart) / 1_000_000);
+
+        updateSettings(Settings.builder()
+                .putNull("index.refresh_interval")
+                .putNull("index.number_of_replicas")
+                .put("index.lifecycle.name", "link_policy"), targetIndex);
+        // the old indices stay write blocked and must not be rolled over anymore
+        updateSettings(Settings.builder().put("index.lifecycle.indexing_complete", true), sourceIndices);
+        logger.info("migration done, the old indices {} are not used anymore and can be deleted", aliases.keySet());
+    }
+
+    // the task API of the high level client drops the error and the response of a completed task, so the low level
+    // client is used to find out if any slice of the reindex failed
+    @SuppressWarnings("unchecked")
+    private void waitForTask(String task, long total, long start) throws IOException, InterruptedException {
+        final Request request = new Request("GET", "/_tasks/" + task);
+        while (true) {
+            Thread.sleep(pollInterval.toMillis());
+            final Map<String, Object> result;
+            try (InputStream body = client.getLowLevelClient().performRequest(request).getEntity().getContent()) {
+                result = XContentHelper.convertToMap(XContentType.JSON.xContent(), body, false);
+            }
+            final Object taskInfo = result.get("task");
+            final Object status = taskInfo instanceof Map ? ((Map<String, Object>) taskInfo).get("status") : null;
+            logger.info(progress(copied(status), total, System.nanoTime() - start));
+            if (Boolean.TRUE.equals(result.get("completed"))) {
+                checkTaskResult(task, result);
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void checkTaskResult(String task, Map<String, Object> result) {
+        if (result.get("error") != null) {
+            throw new IllegalStateException("reindex task [" + task + "] failed: " + result.get("error"));
+        }
+        final Object response = result.get("response");
+        if (!(response instanceof Map)) {
+            throw new IllegalStateException("reindex task [" + task + "] completed without a response");
+        }
+        final Map<String, Object> reindexResponse = (Map<String, Object>) response;
+        final Object failures = reindexResponse.get("failures");
+        if (failures instanceof List && !((List<?>) failures).isEmpty()) {
+            throw new IllegalStateException("reindex task [" + task + "] failed for [" + ((List<?>) failures).size() + "] links: " + failures);
+        }
+        final Object versionConflicts = reindexResponse.get("version_conflicts");
+        if (versionConflicts instanceof Number && ((Number) versionConflicts).longValue() > 0) {
+            throw new IllegalStateException("reindex task [" + task + "] had [" + versionConflicts + "] version conflicts");
+        }
+    }
+
+    private long catchUp(Map<String, Long> watermarks, String targetIndex) throws IOException {
+        long changed = 0;
+        for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+            final long maxSeqNo = maxSeqNo(entry.getKey());
+            if (maxSeqNo <= entry.getValue()) {
+                continue;
+            }
+            final ReindexRequest request = new ReindexRequest()
+                    .setSourceIndices(entry.getKey())
+                    .setSourceQuery(QueryBuilders.rangeQuery("_seq_no").gt(entry.getValue()).lte(maxSeqNo))
+                    .setDestIndex(targetIndex)
+                    .setRefresh(false);
+            final BulkByScrollResponse response = client.reindex(request, RequestOptions.DEFAULT);
+            changed += response.getCreated() + response.getUpdated();
+            entry.setValue(maxSeqNo);
+        }
+        return changed;
+    }
+
+    private long maxSeqNo(String index) throws IOException {
+        final SearchSourceBuilder source = new SearchSourceBuilder().size(1).seqNoAndPrimaryTerm(true).fetchSource(false)
+                .sort("_seq_no", SortOrder.DESC);
+        final SearchHit[] hits = client.search(new SearchRequest(index).source(source), RequestOptions.DEFAULT).getHits().getHits();
+        return hits.length == 0 ? -1 : hits[0].getSeqNo();
+    }
+
+    private long count(String... indices) throws IOException {
+        return client.count(new CountRequest(indices), RequestOptions.DEFAULT).getCount();
+    }
+
+    private void updateSettings(Settings.Builder settings, String... indices) throws IOException {
+        client.indices().putSettings(new UpdateSettingsRequest(indices).settings(settings), RequestOptions.DEFAULT);
+    }
+
+    static String nextIndexName(Set<String> indices) {
+        int max = 0;
+        for (String index : indices) {
+            final Matcher matcher = INDEX_NAME.matcher(index);
+            if (matcher.matches()) {
+                max = Math.max(max, Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return String.format(Locale.ROOT, "links-%06d", max + 1);
+    }
+
+    // the links indices are write blocked for a short moment at the end of a migration, every write to the links
+    // alias goes through here and succeeds once the alias points to the new index
+    public static <T> T retryOnWriteBlock(Supplier<T> write) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return write.get();
+            } catch (RuntimeException e) {
+                if (attempt >= WRITE_BLOCK_RETRIES || !isWriteBlocked(e)) {
+                    throw e;
+                }
+                logger.info("links index is write blocked, retrying in [{}ms]", WRITE_BLOCK_RETRY_DELAY_MILLIS);
+                try {
+                    Thread.sleep(WRITE_BLOCK_RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isWriteBlocked(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("cluster_block_exception")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the status of a reindex task, as returned by the task API
+    @SuppressWarnings("unchecked")
+    static long copied(Object status) {
+        if (!(status instanceof Map)) {
+            return 0;
+        }
+        final Map<String, Object> map = (Map<String, Object>) status;
+        long copied = 0;
+        for (String key : new String[] { "created", "updated" }) {
+            final Object value = map.get(key);
+            if (value instanceof Number) {
+                copied += ((Number) value).longValue();
+            }
+        }
+        return copied;
+    }
+
+    static String progress(long copied, long total, long elapsedNanos) {
+        final double seconds = Math.max(elapsedNanos / 1_000_000_000.0, 0.001);
+        final double percent = total == 0 ? 100 : copied * 100.0 / total;
+        return String.format(Locale.ROOT, "copied [%d/%d] links (%.1f%%), [%.0f] links/s", copied, total, percent, copied / seconds);
+    }
+}
@@ -19,13 +19,36 @@ package de.spinscale.linkrating;
 
 import co.elastic.apm.attach.ElasticApmAttacher;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+import java.util.Arrays;
 
 @SpringBootApplication
+@EnableScheduling
 public class LinkRatingApplication {
 
 	public static void main(String[] args) {
-		ElasticApmAttacher.attach();
-		SpringApplication.run(LinkRatingApplication.class, args);
+		// used at image build time to record the loaded classes into a class data sharing archive
+		final boolean exitAfterStartup = Boolean.getBoolean("linkrating.exit-after-startup");
+		// the migration runs next to the instances serving requests, so it must not start a web server
+		final boolean migrate = Arrays.asList(args).contains("--" + LinkMigration.OPTION);
+
+		// attaching the agent takes a while, there is no need to block the spring startup on that
+		if (!exitAfterStartup && !migrate) {
+			final Thread apmAttachThread = new Thread(ElasticApmAttacher::attach, "apm-attach");
+			apmAttachThread.setDaemon(true);
+			apmAttachThread.start();
+		}
+
+		final ConfigurableApplicationContext context = new SpringApplicationBuilder(LinkRatingApplication.class)
+				.web(migrate ? WebApplicationType.NONE : WebApplicationType.SERVLET)
+				.run(args);
+		if (exitAfterStartup || migrate) {
+			System.exit(SpringApplication.exit(context));
+		}
 	}
 }
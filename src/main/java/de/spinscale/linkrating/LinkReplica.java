@@ -0,0 +1,299 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * An optional, always in memory copy of all approved links. The full set is loaded once, afterwards only the
+ * documents with a sequence number above the last seen one are fetched per backing index of the links alias.
+ *
+ * Deletions do not show up in such an incremental sync, so local deletions are applied via the
+ * {@link LinkChangedEvent} and every few syncs a full reload is done to catch everything else.
+ */
+@Component
+public class LinkReplica implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(LinkReplica.class);
+
+    // same number of results as the default page size of a spring data elasticsearch query
+    public static final int PAGE_SIZE = 10;
+
+    private static final int BATCH_SIZE = 500;
+    private static final Pattern SIMPLE_QUERY = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final RestHighLevelClient client;
+    private final ElasticsearchConverter converter;
+    private final boolean enabled;
+    private final int fullReloadEvery;
+
+    // only accessed by the scheduled sync, which never runs concurrently
+    private final Map<String, Long> watermarks = new HashMap<>();
+    private int syncCount = 0;
+
+    private volatile Snapshot snapshot;
+
+    public LinkReplica(RestHighLevelClient client, ElasticsearchOperations elasticsearchOperations,
+                       @Value("${linkrating.replica.enabled:false}") boolean enabled,
+                       @Value("${linkrating.replica.full-reload-every:60}") int fullReloadEvery) {
+        this.client = client;
+        this.converter = elasticsearchOperations.getElasticsearchConverter();
+        this.enabled = enabled;
+        this.fullReloadEvery = Math.max(1, fullReloadEvery);
+    }
+
+    public boolean isReady() {
+        return enabled && snapshot != null;
+    }
+
+    // only single terms are served from memory, anything else requires proper analysis and scoring
+    public static boolean isSimpleQuery(String q) {
+        return q != null && SIMPLE_QUERY.matcher(q.trim()).matches();
+    }
+
+    public List<Link> ranked() {
+        return snapshot.top(null, PAGE_SIZE, System.currentTimeMillis());
+    }
+
+    public List<Link> search(String keyword) {
+        final Snapshot current = snapshot;
+        final int[] ordinals = current.postings.get(keyword.trim().toLowerCase(Locale.ROOT));
+        if (ordinals == null) {
+            return Collections.emptyList();
+        }
+        return current.top(ordinals, PAGE_SIZE, System.currentTimeMillis());
+    }
+
+    public Link get(String id) {
+        final Snapshot current = snapshot;
+        final Integer ordinal = current.ordinals.get(id);
+        return ordinal == null ? null : current.links[ordinal];
+    }
+
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (isReady() && event.getType() == LinkChangedEvent.Type.DELETED) {
+            apply(Collections.emptyList(), Collections.singleton(event.getId()), false);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${linkrating.replica.sync-interval:5000}", fixedDelayString = "${linkrating.replica.sync-interval:5000}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+
+        final boolean fullReload = snapshot == null || ++syncCount % fullReloadEvery == 0;
+        try {
+            final Set<String> indices = client.indices().getAlias(new GetAliasesRequest("links"), RequestOptions.DEFAULT).getAliases().keySet();
+            final Map<String, Long> updatedWatermarks = new HashMap<>();
+            final List<Link> changed = new ArrayList<>();
+            for (String index : indices) {
+                final long watermark = fullReload ? -1 : watermarks.getOrDefault(index, -1L);
+                updatedWatermarks.put(index, fetchChanges(index, watermark, changed));
+            }
+
+            apply(changed, Collections.emptySet(), fullReload);
+            watermarks.clear();
+            watermarks.putAll(updatedWatermarks);
+            if (fullReload) {
+                logger.info("link replica loaded [{}] approved links from indices {}", snapshot.links.length, indices);
+            }
+        } catch (Exception e) {
+            logger.error("error synchronizing link replica", e);
+        }
+    }
+
+    // reads all documents above the sequence number watermark of an index, returns the new watermark
+    private long fetchChanges(String index, long watermark, List<Link> changed) throws IOException {
+        long seqNo = watermark;
+        while (true) {
+            final SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(QueryBuilders.rangeQuery("_seq_no").gt(seqNo))
+                    .sort("_seq_no", SortOrder.ASC)
+                    .seqNoAndPrimaryTerm(true)
+                    .size(BATCH_SIZE);
+            final SearchHit[] hits = client.search(new SearchRequest(index).source(source), RequestOptions.DEFAULT).getHits().getHits();
+            for (SearchHit hit : hits) {
+                changed.add(converter.read(Link.class, DocumentAdapters.from(hit)));
+                seqNo = Math.max(seqNo, hit.getSeqNo());
+            }
+            if (hits.length < BATCH_SIZE) {
+                return seqNo;
+            }
+        }
+    }
+
+    // unapproved links in the changed set are removed, as they might have been approved before
+    synchronized void apply(Collection<Link> changed, Collection<String> deletedIds, boolean replace) {
+        if (!replace && changed.isEmpty() && deletedIds.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Link> links = new LinkedHashMap<>();
+        if (!replace && snapshot != null) {
+            for (Link link : snapshot.links) {
+                links.put(link.getId(), link);
+            }
+        }
+        for (Link link : changed) {
+            if (link.isApproved()) {
+                links.put(link.getId(), link);
+            } else {
+                links.remove(link.getId());
+            }
+        }
+        deletedIds.forEach(links::remove);
+        snapshot = new Snapshot(links.values());
+    }
+
+    /**
+     * An immutable view of the approved links, all per link data required for ranking is kept in arrays indexed
+     * by the ordinal of a link. The keyword index maps every lower cased token to the sorted ordinals of the
+     * links containing it in the title or description.
+     */
+    private static final class Snapshot {
+
+        // the ranking query uses a distance feature query on created_at with a pivot of seven days
+        private static final double CREATED_AT_PIVOT = TimeUnit.DAYS.toMillis(7);
+
+        private final Link[] links;
+        private final long[] createdAt;
+        private final long[] votes;
+        private final Map<String, Integer> ordinals;
+        private final Map<String, int[]> postings;
+        private final double votesPivot;
+
+        private Snapshot(Collection<Link> input) {
+            this.links = input.toArray(new Link[0]);
+            this.createdAt = new long[links.length];
+            this.votes = new long[links.length];
+            this.ordinals = new HashMap<>();
+
+            final Map<String, List<Integer>> tokens = new HashMap<>();
+            double logVotesSum = 0;
+            int linksWithVotes = 0;
+            for (int i = 0; i < links.length; i++) {
+                final Link link = links[i];
+                createdAt[i] = link.getCreatedAt() == null ? 0 : link.getCreatedAt().getTime();
+                votes[i] = link.getVotes() == null ? 0 : link.getVotes();
+                ordinals.put(link.getId(), i);
+                if (votes[i] > 0) {
+                    logVotesSum += Math.log(votes[i]);
+                    linksWithVotes++;
+                }
+                for (String token : tokenize(link)) {
+                    tokens.computeIfAbsent(token, t -> new ArrayList<>()).add(i);
+                }
+            }
+
+            this.postings = new HashMap<>(tokens.size());
+            tokens.forEach((token, list) -> postings.put(token, list.stream().mapToInt(Integer::intValue).toArray()));
+            // elasticsearch uses an approximation of the geometric mean as default pivot of a saturation function
+            this.votesPivot = linksWithVotes == 0 ? 1 : Math.exp(logVotesSum / linksWithVotes);
+        }
+
+        // mimics the scoring of the ranking query: distance_feature on created_at plus saturation on votes
+        private double score(int ordinal, long now) {
+            final double distance = Math.abs(now - createdAt[ordinal]);
+            final double recency = CREATED_AT_PIVOT / (CREATED_AT_PIVOT + distance);
+            final double popularity = votes[ordinal] / (votes[ordinal] + votesPivot);
+            return recency + popularity;
+        }
+
+        // a simple insertion based top-n selection, as n is small
+        private List<Link> top(int[] candidates, int size, long now) {
+            final int count = candidates == null ? links.length : candidates.length;
+            final int[] best = new int[Math.min(size, count)];
+            final double[] bestScores = new double[best.length];
+            if (best.length == 0) {
+                return Collections.emptyList();
+            }
+
+            int filled = 0;
+            for (int i = 0; i < count; i++) {
+                final int ordinal = candidates == null ? i : candidates[i];
+                final double score = score(ordinal, now);
+                if (filled == best.length && score <= bestScores[filled - 1]) {
+                    continue;
+                }
+                int position = filled < best.length ? filled++ : filled - 1;
+                while (position > 0 && bestScores[position - 1] < score) {
+                    best[position] = best[position - 1];
+                    bestScores[position] = bestScores[position - 1];
+                    position--;
+                }
+                best[position] = ordinal;
+                bestScores[position] = score;
+            }
+
+            final List<Link> result = new ArrayList<>(filled);
+            for (int i = 0; i < filled; i++) {
+                result.add(links[best[i]]);
+            }
+            return result;
+        }
+
+        private static Set<String> tokenize(Link link) {
+            final Set<String> tokens = new HashSet<>();
+            for (String field : new String[] { link.getTitle(), link.getDescription() }) {
+                if (field == null) {
+                    continue;
+                }
+                for (String token : TOKEN_SEPARATOR.split(field.toLowerCase(Locale.ROOT))) {
+                    if (!token.isEmpty()) {
+                        tokens.add(token);
+                    }
+                }
+            }
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+
+import java.util.List;
+
+// the links shown on the main page, stale results are served from memory while Elasticsearch is unavailable,
+// partial ones hit the query budget
+public class LinkSearchResult {
+
+    private final List<Link> links;
+    private final boolean stale;
+    private final boolean partial;
+
+    LinkSearchResult(List<Link> links, boolean stale, boolean partial) {
+        this.links = links;
+        this.stale = stale;
+        this.partial = partial;
+    }
+
+    public List<Link> getLinks() {
+        return links;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    // the query was shortened or not all matching links were looked at
+    public boolean isPartial() {
+        return partial;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import co.elastic.apm.api.Scope;
+import co.elastic.apm.api.Span;
+import de.spinscale.linkrating.entity.Link;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateResponse;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Runs the ranking query of the main page. The query must be byte for byte identical for a while, so that the
+ * shard request cache can be used: the origin of the date decay is rounded down instead of using {@code now}
+ * and the same preference is sent on every request, so that the same shard copies are hit.
+ * Also runs the moderation queries. All queries are stored search templates, see {@link SearchTemplates}.
+ */
+@Component
+public class LinkSearchService {
+
+    static final int PAGE_SIZE = 10;
+    static final int UNAPPROVED_PAGE_SIZE = 50;
+
+    private static final Logger logger = LoggerFactory.getLogger(LinkSearchService.class);
+
+    private final RestHighLevelClient client;
+    private final ElasticsearchConverter converter;
+    private final ElasticsearchGuard guard;
+    private final String preference;
+    private final Duration originRounding;
+    private final int maxQueryLength;
+    private final int maxQueryTerms;
+    private final Duration timeout;
+    private final int terminateAfter;
+    // last known good results by query, least recently used ones are evicted
+    private final Map<String, List<Link>> staleResults;
+
+    public LinkSearchService(RestHighLevelClient client, ElasticsearchOperations elasticsearchOperations, ElasticsearchGuard guard,
+                             @Value("${linkrating.search.preference:linkrating}") String preference,
+                             @Value("${linkrating.search.origin-rounding:1m}") Duration originRounding,
+                             @Value("${linkrating.search.stale-cache-size:1000}") int staleCacheSize,
+                             @Value("${linkrating.search.max-query-length:200}") int maxQueryLength,
+                             @Value("${linkrating.search.max-query-terms:10}") int maxQueryTerms,
+                             @Value("${linkrating.search.timeout:500ms}") Duration timeout,
+                             @Value("${linkrating.search.terminate-after:0}") int terminateAfter) {
+        this.client = client;
+        this.converter = elasticsearchOperations.getElasticsearchConverter();
+        this.guard = guard;
+        this.preference = preference;
+        this.originRounding = originRounding;
+        this.maxQueryLength = maxQueryLength;
+        this.maxQueryTerms = maxQueryTerms;
+        this.timeout = timeout;
+        this.terminateAfter = terminateAfter;
+        this.staleResults = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Link>> eldest) {
+                return size() > staleCacheSize;
+            }
+        });
+    }
+
+    // falls back to the last result of the same query, if Elasticsearch is unavailable, slow or the circuit is open.
+    // Overly long queries are shortened and the search may stop early, the result is marked as partial then
+    public LinkSearchResult searchRanked(String q) throws IOException {
+        return search(q, false);
+    }
+
+    // links with the most votes within the last hour, see VoteVelocity
+    public LinkSearchResult searchTrending(String q) throws IOException {
+        return search(q, true);
+    }
+
+    private LinkSearchResult search(String q, boolean trending) throws IOException {
+        final String limitedQuery = limitQuery(q, maxQueryLength, maxQueryTerms);
+        final String key = (trending ? "trending:" : "") + (Strings.hasLength(limitedQuery) ? limitedQuery : "");
+        try {
+            final Instant now = Instant.now();
+            final SearchTemplateRequest request = trending ? trendingRequest(limitedQuery, now) : rankedRequest(limitedQuery, now);
+            final SearchResponse response = execute(request);
+            final List<Link> links = toLinks(response);
+            final boolean partial = !Objects.equals(q, limitedQuery) || response.isTimedOut() || Boolean.TRUE.equals(response.isTerminatedEarly());
+            if (partial) {
+                logger.info("returning partial results for [{}], timed out [{}] terminated early [{}]", q,
+                        response.isTimedOut(), response.isTerminatedEarly());
+            } else {
+                staleResults.put(key, links);
+            }
+            return new LinkSearchResult(links, false, partial);
+        } catch (IOException e) {
+            final List<Link> links = staleResults.get(key);
+            if (links == null) {
+                throw e;
+            }
+            logger.warn("serving stale results for [{}]: {}", key, e.getMessage());
+            return new LinkSearchResult(links, true, false);
+        }
+    }
+
+    public List<Link> searchUnapproved() throws IOException {
+        return search(unapprovedRequest());
+    }
+
+    // used to find out if a submitted link already exists, approved or not
+    public Link findByUrl(String url) throws IOException {
+        final List<Link> links = search(byUrlRequest(url));
+        return links.isEmpty() ? null : links.get(0);
+    }
+
+    public long countPending(String login) throws IOException {
+        return execute(pendingByUserRequest(login)).getHits().getTotalHits().value;
+    }
+
+    private List<Link> search(SearchTemplateRequest request) throws IOException {
+        return toLinks(execute(request));
+    }
+
+    private List<Link> toLinks(SearchResponse response) {
+        final SearchHit[] hits = response.getHits().getHits();
+
+        final Span mappingSpan = Tracing.startSpan("app", "mapping", "convert", "map search hits");
+        final List<Link> links = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            links.add(converter.read(Link.class, DocumentAdapters.from(hit)));
+        }
+        mappingSpan.setLabel("hits", links.size()).end();
+        return links;
+    }
+
+    private SearchResponse execute(SearchTemplateRequest request) throws IOException {
+        final Span searchSpan = Tracing.startSpan("app", "elasticsearch", "search", "search links");
+        try (Scope ignored = searchSpan.activate()) {
+            final ElasticsearchGuard.AsyncCall<SearchTemplateResponse> call = listener -> client.searchTemplateAsync(request, RequestOptions.DEFAULT, listener);
+            return guard.execute(call).getResponse();
+        } catch (IOException | RuntimeException e) {
+            searchSpan.captureException(e);
+            throw e;
+        } finally {
+            searchSpan.setLabel("template", request.getScript());
+            if (SearchTemplates.RANKED.equals(request.getScript()) || SearchTemplates.TRENDING.equals(request.getScript())) {
+                final Object q = request.getScriptParams().get("q");
+                searchSpan.setLabel("query_length", q == null ? 0 : q.toString().length());
+            }
+            searchSpan.end();
+        }
+    }
+
+    SearchTemplateRequest rankedRequest(String q, Instant now) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("origin", roundedOrigin(now, originRounding));
+        params.put("size", PAGE_SIZE);
+        params.put("timeout", timeout.toMillis() + "ms");
+        if (Strings.hasLength(q)) {
+            params.put("q", q);
+            // free text queries only, with the index sorted by date the newest matching links are collected
+            if (terminateAfter > 0) {
+                params.put("terminate_after", terminateAfter);
+            }
+        }
+
+        // hits are only cached when the request cache is asked for explicitly
+        final SearchRequest searchRequest = new SearchRequest("links").requestCache(true).preference(preference);
+        return SearchTemplates.request(SearchTemplates.RANKED, params, searchRequest);
+    }
+
+    // the velocity changes about once a minute, so the same request cache and preference apply as for the ranking
+    SearchTemplateRequest trendingRequest(String q, Instant now) {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("origin", roundedOrigin(now, originRounding));
+        params.put("size", PAGE_SIZE);
+        params.put("timeout", timeout.toMillis() + "ms");
+        if (Strings.hasLength(q)) {
+            params.put("q", q);
+        }
+        final SearchRequest searchRequest = new SearchRequest("links").requestCache(true).preference(preference);
+        return SearchTemplates.request(SearchTemplates.TRENDING, params, searchRequest);
+    }
+
+    // matches the index sort of the links template, without counting all hits the search can terminate early
+    SearchTemplateRequest unapprovedRequest() {
+        return SearchTemplates.request(SearchTemplates.UNAPPROVED, Map.of("size", UNAPPROVED_PAGE_SIZE), new SearchRequest("links"));
+    }
+
+    SearchTemplateRequest byUrlRequest(String url) {
+        return SearchTemplates.request(SearchTemplates.BY_URL, Map.of("url", url), new SearchRequest("links"));
+    }
+
+    SearchTemplateRequest pendingByUserRequest(String login) {
+        return SearchTemplates.request(SearchTemplates.PENDING_BY_USER, Map.of("login", login), new SearchRequest("links"));
+    }
+
+    // keeps the first terms of the query, as long as the query does not get too long. Returns the query itself,
+    // if nothing had to be cut off
+    static String limitQuery(String q, int maxLength, int maxTerms) {
+        if (!Strings.hasLength(q) || q.length() <= maxLength && q.trim().split("\\s+").length <= maxTerms) {
+            return q;
+        }
+        final String[] terms = q.trim().split("\\s+");
+        // a single huge term is cut off
+        if (terms[0].length() >= maxLength) {
+            return terms[0].substring(0, maxLength);
+        }
+        final StringBuilder limited = new StringBuilder(terms[0]);
+        for (int i = 1; i < Math.min(terms.length, maxTerms) && limited.length() + 1 + terms[i].length() <= maxLength; i++) {
+            limited.append(' ').append(terms[i]);
+        }
+        return limited.toString();
+    }
+
+    // with a seven day pivot, a few minutes of difference in the origin do not change the ranking in a visible way
+    static String roundedOrigin(Instant now, Duration rounding) {
+        final long millis = rounding.toMillis();
+        if (millis <= 0) {
+            return now.toString();
+        }
+        return Instant.ofEpochMilli(now.toEpochMilli() - Math.floorMod(now.toEpochMilli(), millis)).toString();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+
+/**
+ * Prevents the application from being used to send requests into the network it is running in, when
+ * fetching URLs submitted by users. Only http and https URLs resolving to public addresses are allowed.
+ */
+public class PublicAddressGuard {
+
+    private final boolean allowPrivateAddresses;
+
+    public PublicAddressGuard(boolean allowPrivateAddresses) {
+        this.allowPrivateAddresses = allowPrivateAddresses;
+    }
+
+    public boolean isAllowed(URI uri) {
+        if (uri == null || uri.getHost() == null) {
+            return false;
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+            return false;
+        }
+        if (allowPrivateAddresses) {
+            return true;
+        }
+        try {
+            // all addresses need to be public, otherwise the HTTP client might pick a private one
+            for (InetAddress address : InetAddress.getAllByName(uri.getHost())) {
+                if (isPrivate(address)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    static boolean isPrivate(InetAddress address) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+                || address.isSiteLocalAddress() || address.isMulticastAddress()) {
+            return true;
+        }
+        final byte[] bytes = address.getAddress();
+        if (address instanceof Inet6Address) {
+            // unique local addresses fc00::/7
+            return (bytes[0] & 0xfe) == 0xfc;
+        }
+        // carrier grade NAT 100.64.0.0/10
+        return (bytes[0] & 0xff) == 100 && (bytes[1] & 0xc0) == 64;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import de.spinscale.linkrating.entity.RelatedLink;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MoreLikeThisQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Finds similar links of the same category via a more like this query and stores them within the link, so
+ * that the single link page does not need to run that query. The list is computed in the background when a link
+ * gets approved, links missing it are backfilled on startup.
+ */
+@Component
+@Lazy(false)
+public class RelatedLinks implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RelatedLinks.class);
+
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final int size;
+    private final Executor executor;
+
+    @Autowired
+    public RelatedLinks(ElasticsearchOperations elasticsearchOperations,
+                        @Value("${linkrating.related.size:5}") int size,
+                        @Value("${linkrating.related.queue-size:1000}") int queueSize) {
+        this(elasticsearchOperations, size, executor(queueSize));
+    }
+
+    RelatedLinks(ElasticsearchOperations elasticsearchOperations, int size, Executor executor) {
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.size = size;
+        this.executor = executor;
+    }
+
+    // a single thread, so that a deletion is never handled before the approval of the same link
+    private static ThreadPoolExecutor executor(int queueSize) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            final Thread thread = new Thread(r, "related-links");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+
+    // one query per related link, which is too much for the request thread of the approval
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (event.getType() != LinkChangedEvent.Type.APPROVED && event.getType() != LinkChangedEvent.Type.DELETED) {
+            return;
+        }
+        try {
+            executor.execute(() -> handle(event));
+        } catch (RejectedExecutionException e) {
+            // approved links are picked up by the backfill on the next start
+            logger.warn("related links queue is full, not updating related links for [{}]", event.getId());
+        }
+    }
+
+    // a failing neighbour is only logged, so that it does not keep the remaining ones stale
+    private void handle(LinkChangedEvent event) {
+        final Collection<String> ids;
+        try {
+            if (event.getType() == LinkChangedEvent.Type.APPROVED) {
+                // older links can only point to the new link, if their list is recomputed as well
+                ids = update(event.getId()).stream().map(RelatedLink::getId).collect(Collectors.toList());
+            } else {
+                ids = linksPointingTo(event.getId());
+            }
+        } catch (Exception e) {
+            logger.error("error updating related links for [{}]", event.getId(), e);
+            return;
+        }
+
+        for (String id : ids) {
+            try {
+                if (event.getType() == LinkChangedEvent.Type.APPROVED) {
+                    update(id);
+                } else {
+                    // the deleted link may still be found until the next refresh, so it is only removed instead of recomputing
+                    remove(id, event.getId());
+                }
+            } catch (Exception e) {
+                logger.error("error updating related links of [{}] after [{}] was {}", id, event.getId(),
+                        event.getType().name().toLowerCase(Locale.ROOT), e);
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillInBackground() {
+        final Thread thread = new Thread(this::backfill, "related-links-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void backfill() {
+        final BoolQueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("approved", true))
+                .mustNot(QueryBuilders.existsQuery("related.id"));
+        final List<String> ids = new ArrayList<>();
+        try (SearchHitsIterator<Link> iterator = elasticsearchOperations.searchForStream(new NativeSearchQuery(query), Link.class)) {
+            while (iterator.hasNext()) {
+                final Link link = iterator.next().getContent();
+                // an empty list means there is nothing similar, which is not visible to the exists query
+                if (link.getRelated() == null) {
+                    ids.add(link.getId());
+                }
+            }
+        } catch (Exception e) {
+            logger.error("error searching for links without related links", e);
+            return;
+        }
+
+        int updated = 0;
+        for (String id : ids) {
+            try {
+                update(id);
+                updated++;
+            } catch (Exception e) {
+                logger.error("error updating related links for [{}]", id, e);
+            }
+        }
+        if (updated > 0) {
+            logger.info("computed related links for [{}] links", updated);
+        }
+    }
+
+    // computes and stores the related links of a single link, returns an empty list if the link is not approved
+    List<RelatedLink> update(String id) {
+        final Link link = elasticsearchOperations.get(id, Link.class);
+        if (link == null || !link.isApproved()) {
+            return Collections.emptyList();
+        }
+
+        final List<RelatedLink> related = find(link);
+        store(id, related);
+        return related;
+    }
+
+    private void remove(String id, String deletedId) {
+        final Link link = elasticsearchOperations.get(id, Link.class);
+        if (link == null || link.getRelated() == null) {
+            return;
+        }
+        final List<RelatedLink> related = link.getRelated().stream()
+                .filter(r -> !deletedId.equals(r.getId()))
+                .collect(Collectors.toList());
+        store(id, related);
+    }
+
+    private void store(String id, List<RelatedLink> related) {
+        final List<Map<String, String>> value = related.stream()
+                .map(r -> Map.of("id", r.getId(), "title", r.getTitle()))
+                .collect(Collectors.toList());
+        final UpdateQuery updateQuery = UpdateQuery.builder(id)
+                .withDocument(Document.from(Collections.singletonMap("related", value)))
+                .build();
+        LinkMigration.retryOnWriteBlock(() -> elasticsearchOperations.update(updateQuery, IndexCoordinates.of("links")));
+    }
+
+    List<RelatedLink> find(Link link) {
+        // like texts instead of like documents, as the links alias may point to several indices
+        final MoreLikeThisQueryBuilder moreLikeThis = QueryBuilders.moreLikeThisQuery(
+                new String[] { "title", "description" },
+                new String[] { link.getTitle() + "\n" + link.getDescription() },
+                null)
+                // there are not that many links, so rare terms should still count
+                .minTermFreq(1)
+                .minDocFreq(1)
+                .maxQueryTerms(25);
+        final BoolQueryBuilder query = QueryBuilders.boolQuery()
+                .must(moreLikeThis)
+                .filter(QueryBuilders.termQuery("category", link.getCategory()))
+                .filter(QueryBuilders.termQuery("approved", true))
+                .mustNot(QueryBuilders.idsQuery().addIds(link.getId()));
+        final NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
+                .withQuery(query)
+                .withPageable(PageRequest.of(0, size))
+                .build();
+
+        return elasticsearchOperations.search(searchQuery, Link.class).getSearchHits().stream()
+                .map(SearchHit::getContent)
+                .map(l -> new RelatedLink(l.getId(), l.getTitle()))
+                .collect(Collectors.toList());
+    }
+
+    private Set<String> linksPointingTo(String id) {
+        final NativeSearchQuery searchQuery = new NativeSearchQuery(QueryBuilders.termQuery("related.id", id));
+        final Set<String> ids = new LinkedHashSet<>();
+        try (SearchHitsIterator<Link> iterator = elasticsearchOperations.searchForStream(searchQuery, Link.class)) {
+            while (iterator.hasNext()) {
+                ids.add(iterator.next().getId());
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import co.elastic.apm.api.Span;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+
+// the view is rendered after the controller returned, which is between postHandle and afterCompletion
+public class RenderSpanInterceptor implements HandlerInterceptor {
+
+    private static final String SPAN_ATTRIBUTE = RenderSpanInterceptor.class.getName() + ".span";
+
+    @Override
+    public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler, ModelAndView modelAndView) {
+        if (modelAndView == null || modelAndView.getViewName() == null || modelAndView.getViewName().startsWith("redirect:")) {
+            return;
+        }
+
+        final Span span = Tracing.startSpan("template", "thymeleaf", "render", "render " + modelAndView.getViewName());
+        final Object links = modelAndView.getModel().get("links");
+        if (links instanceof Collection) {
+            span.setLabel("links", ((Collection<?>) links).size());
+        }
+        request.setAttribute(SPAN_ATTRIBUTE, span);
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        final Object span = request.getAttribute(SPAN_ATTRIBUTE);
+        if (span instanceof Span) {
+            if (ex != null) {
+                ((Span) span).captureException(ex);
+            }
+            ((Span) span).end();
+        }
+    }
+}
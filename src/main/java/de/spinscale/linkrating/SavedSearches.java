@@ -0,0 +1,302 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.InboxEntry;
+import de.spinscale.linkrating.entity.Link;
+import de.spinscale.linkrating.entity.SavedSearch;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Saved searches are stored as percolator queries, so that approved links are matched against all of them at once
+ * instead of running every saved search again. Approvals are collected and percolated as a batch of documents in a
+ * single search, the matches end up in the inbox of the user who saved the search.
+ */
+@Component
+@Lazy(false)
+public class SavedSearches implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SavedSearches.class);
+
+    public static final int MAX_PER_USER = 20;
+    static final int MAX_QUERY_LENGTH = 200;
+    static final String INDEX = "saved-searches";
+    static final String INBOX_INDEX = "inbox";
+    private static final int INBOX_SIZE = 50;
+    private static final int SCROLL_SIZE = 500;
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private final RestHighLevelClient client;
+    private final ElasticsearchOperations elasticsearchOperations;
+    // only the calls of users, the percolation runs in the background
+    private final ElasticsearchGuard guard;
+    private final boolean enabled;
+    private final int batchSize;
+    // links approved since the last run, a set as a link may be approved twice
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    public SavedSearches(RestHighLevelClient client, ElasticsearchOperations elasticsearchOperations, ElasticsearchGuard guard,
+                         @Value("${linkrating.saved-searches.enabled:true}") boolean enabled,
+                         @Value("${linkrating.saved-searches.batch-size:100}") int batchSize) {
+        this.client = client;
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.guard = guard;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        if (event.getType() == LinkChangedEvent.Type.APPROVED) {
+            pending.add(event.getId());
+        } else if (event.getType() == LinkChangedEvent.Type.DELETED) {
+            pending.remove(event.getId());
+        }
+    }
+
+    public SavedSearch save(String login, String q, String category) {
+        final String query = q == null ? "" : q.trim();
+        final String queryCategory = category == null ? "" : category.trim().toLowerCase(Locale.ROOT);
+        if (query.isEmpty() && queryCategory.isEmpty()) {
+            throw new IllegalArgumentException("a saved search needs a query or a category");
+        }
+        if (query.length() > MAX_QUERY_LENGTH) {
+            throw new IllegalArgumentException("query must not be longer than " + MAX_QUERY_LENGTH + " characters");
+        }
+        final long existing = guard.executeBlocking(() -> elasticsearchOperations.count(
+                new NativeSearchQuery(QueryBuilders.termQuery("login", login)), SavedSearch.class));
+        if (existing >= MAX_PER_USER) {
+            throw new IllegalArgumentException("at most " + MAX_PER_USER + " searches can be saved");
+        }
+
+        final SavedSearch savedSearch = new SavedSearch();
+        savedSearch.setLogin(login);
+        savedSearch.setQ(query.isEmpty() ? null : query);
+        savedSearch.setCategory(queryCategory.isEmpty() ? null : queryCategory);
+        savedSearch.setCreatedAt(new Date());
+        savedSearch.setQuery(query(savedSearch.getQ(), savedSearch.getCategory()));
+        return guard.executeBlocking(() -> elasticsearchOperations.save(savedSearch));
+    }
+
+    public List<SavedSearch> list(String login) {
+        final NativeSearchQuery query = new NativeSearchQueryBuilder()
+                .withFilter(QueryBuilders.termQuery("login", login))
+                .withPageable(PageRequest.of(0, MAX_PER_USER, Sort.by(Sort.Direction.DESC, "created_at")))
+                .build();
+        return content(guard.executeBlocking(() -> elasticsearchOperations.search(query, SavedSearch.class)));
+    }
+
+    // false if there is no saved search with this id belonging to the user
+    public boolean delete(String login, String id) {
+        final SavedSearch savedSearch = guard.executeBlocking(() -> elasticsearchOperations.get(id, SavedSearch.class));
+        if (savedSearch == null || !login.equals(savedSearch.getLogin())) {
+            return false;
+        }
+        guard.executeBlocking(() -> elasticsearchOperations.delete(id, SavedSearch.class));
+        return true;
+    }
+
+    public List<InboxEntry> inbox(String login) {
+        final NativeSearchQuery query = new NativeSearchQueryBuilder()
+                .withFilter(QueryBuilders.termQuery("login", login))
+                .withPageable(PageRequest.of(0, INBOX_SIZE, Sort.by(Sort.Direction.DESC, "created_at")))
+                .build();
+        return content(guard.executeBlocking(() -> elasticsearchOperations.search(query, InboxEntry.class)));
+    }
+
+    @Scheduled(fixedDelayString = "${linkrating.saved-searches.interval:10000}")
+    public void percolatePending() {
+        if (!enabled || pending.isEmpty()) {
+            return;
+        }
+        final List<String> ids = new ArrayList<>();
+        for (Iterator<String> iterator = pending.iterator(); iterator.hasNext() && ids.size() < batchSize; ) {
+            ids.add(iterator.next());
+            iterator.remove();
+        }
+        try {
+            final NativeSearchQuery idsQuery = new NativeSearchQueryBuilder().withIds(ids).build();
+            final List<Link> links = elasticsearchOperations.multiGet(idsQuery, Link.class, IndexCoordinates.of("links")).stream()
+                    .filter(Objects::nonNull)
+                    .filter(Link::isApproved)
+                    .collect(Collectors.toList());
+            if (links.isEmpty()) {
+                return;
+            }
+            final List<InboxEntry> entries = percolate(links);
+            if (!entries.isEmpty()) {
+                elasticsearchOperations.save(entries);
+            }
+            logger.debug("percolated [{}] approved links, [{}] matches", links.size(), entries.size());
+        } catch (Exception e) {
+            // picked up again by the next run
+            pending.addAll(ids);
+            logger.warn("error percolating [{}] approved links", ids.size(), e);
+        }
+    }
+
+    private List<InboxEntry> percolate(List<Link> links) throws IOException {
+        // the percolator client module is not part of the high level client, Elasticsearch parses the wrapped query
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(QueryBuilders.wrapperQuery(percolateQuery(links)))
+                .fetchSource(new String[] { "login", "q", "category" }, null)
+                .sort("_doc", SortOrder.ASC)
+                .size(SCROLL_SIZE);
+        SearchResponse response = client.search(new SearchRequest(INDEX).source(source).scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
+        String scrollId = response.getScrollId();
+        final Map<String, InboxEntry> entries = new LinkedHashMap<>();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                addEntries(links, response.getHits().getHits(), entries);
+                response = client.scroll(new SearchScrollRequest(scrollId).scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
+                scrollId = response.getScrollId();
+            }
+        } finally {
+            final ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            try {
+                client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+            } catch (IOException e) {
+                logger.warn("error clearing scroll, it will expire after [{}]", KEEP_ALIVE, e);
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    // the same full text query as the main page search
+    static Map<String, Object> query(String q, String category) {
+        final BoolQueryBuilder query = QueryBuilders.boolQuery();
+        if (q != null) {
+            query.must(QueryBuilders.multiMatchQuery(q, "title", "description").minimumShouldMatch("66%"));
+        }
+        if (category != null) {
+            query.filter(QueryBuilders.termQuery("category", category));
+        }
+        return XContentHelper.convertToMap(toBytes(query), false, XContentType.JSON).v2();
+    }
+
+    static String percolateQuery(List<Link> links) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject("percolate")
+                .field("field", "query")
+                .startArray("documents");
+        for (Link link : links) {
+            builder.startObject()
+                    .field("title", link.getTitle())
+                    .field("description", link.getDescription())
+                    .field("category", link.getCategory())
+                    .endObject();
+        }
+        return Strings.toString(builder.endArray().endObject().endObject());
+    }
+
+    // the slot field holds the positions of the documents in the percolate query that matched the saved search
+    static void addEntries(List<Link> links, SearchHit[] hits, Map<String, InboxEntry> entries) {
+        for (SearchHit hit : hits) {
+            final DocumentField slots = hit.field("_percolator_document_slot");
+            if (slots == null) {
+                continue;
+            }
+            final Map<String, Object> savedSearch = hit.getSourceAsMap();
+            final String login = (String) savedSearch.get("login");
+            for (Object slot : slots.getValues()) {
+                final Link link = links.get(((Number) slot).intValue());
+                // one entry per link and user, even if several saved searches match
+                entries.computeIfAbsent(login + ":" + link.getId(), id -> {
+                    final InboxEntry entry = new InboxEntry();
+                    entry.setId(id);
+                    entry.setLogin(login);
+                    entry.setLinkId(link.getId());
+                    entry.setTitle(link.getTitle());
+                    entry.setUrl(link.getUrl());
+                    entry.setSearch(describe((String) savedSearch.get("q"), (String) savedSearch.get("category")));
+                    entry.setCreatedAt(new Date());
+                    return entry;
+                });
+            }
+        }
+    }
+
+    private static String describe(String q, String category) {
+        if (q == null) {
+            return "category " + category;
+        }
+        return category == null ? q : q + " in " + category;
+    }
+
+    private static BytesReference toBytes(ToXContent query) {
+        try {
+            return BytesReference.bytes(query.toXContent(XContentFactory.jsonBuilder(), ToXContent.EMPTY_PARAMS));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T> List<T> content(SearchHits<T> hits) {
+        return hits.getSearchHits().stream().map(hit -> hit.getContent()).collect(Collectors.toList());
+    }
+}
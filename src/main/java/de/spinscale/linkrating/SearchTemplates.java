@@ -0,0 +1,176 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.cluster.storedscripts.GetStoredScriptRequest;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The queries sent on every page view, stored as mustache search templates in the cluster, so that requests only
+ * carry the template id and its parameters. The ids are versioned: a template is only stored if its id does not
+ * exist yet, so a template tuned in the cluster survives restarts, and a changed query in here needs a new id.
+ */
+final class SearchTemplates {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchTemplates.class);
+
+    // params: origin, size, timeout, optional q and terminate_after
+    static final String RANKED = "links-ranked-v2";
+    // params: origin, size, timeout, optional q
+    static final String TRENDING = "links-trending-v1";
+    // params: size
+    static final String UNAPPROVED = "links-unapproved-v1";
+    // params: url
+    static final String BY_URL = "links-by-url-v1";
+    // params: login
+    static final String PENDING_BY_USER = "links-pending-by-user-v1";
+    // params: origin, size, timeout, fields, optional q and after (score, url)
+    static final String API = "links-api-v1";
+
+    static final Map<String, String> TEMPLATES = Map.of(
+            RANKED, "{\n" +
+                    "  \"size\": {{size}},\n" +
+                    "  \"timeout\": \"{{timeout}}\",\n" +
+                    "  {{#terminate_after}}\n" +
+                    "  \"terminate_after\": {{terminate_after}},\n" +
+                    "  {{/terminate_after}}\n" +
+                    "  \"query\": {\n" +
+                    "    \"bool\": {\n" +
+                    "      \"filter\": [ { \"term\": { \"approved\": true } } ],\n" +
+                    "      {{#q}}\n" +
+                    "      \"must\": [ { \"multi_match\": { \"query\": \"{{q}}\", \"fields\": [ \"title\", \"description\" ], \"minimum_should_match\": \"66%\" } } ],\n" +
+                    "      {{/q}}\n" +
+                    "      \"should\": [\n" +
+                    "        { \"distance_feature\": { \"field\": \"created_at\", \"origin\": \"{{origin}}\", \"pivot\": \"7d\" } },\n" +
+                    "        { \"rank_feature\": { \"field\": \"votes.rank\", \"saturation\": {} } }\n" +
+                    "      ]\n" +
+                    "    }\n" +
+                    "  }\n" +
+                    "}",
+            // links getting votes right now first, the age only decides between links without recent votes
+            TRENDING, "{\n" +
+                    "  \"size\": {{size}},\n" +
+                    "  \"timeout\": \"{{timeout}}\",\n" +
+                    "  \"query\": {\n" +
+                    "    \"bool\": {\n" +
+                    "      \"filter\": [ { \"term\": { \"approved\": true } } ],\n" +
+                    "      {{#q}}\n" +
+                    "      \"must\": [ { \"multi_match\": { \"query\": \"{{q}}\", \"fields\": [ \"title\", \"description\" ], \"minimum_should_match\": \"66%\" } } ],\n" +
+                    "      {{/q}}\n" +
+                    "      \"should\": [\n" +
+                    "        { \"rank_feature\": { \"field\": \"velocity\", \"saturation\": {} } },\n" +
+                    "        { \"distance_feature\": { \"field\": \"created_at\", \"origin\": \"{{origin}}\", \"pivot\": \"7d\", \"boost\": 0.1 } }\n" +
+                    "      ]\n" +
+                    "    }\n" +
+                    "  }\n" +
+                    "}",
+            UNAPPROVED, "{\n" +
+                    "  \"size\": {{size}},\n" +
+                    "  \"track_total_hits\": false,\n" +
+                    "  \"query\": { \"bool\": { \"filter\": [ { \"term\": { \"approved\": false } } ] } },\n" +
+                    "  \"sort\": [ { \"created_at\": { \"order\": \"desc\" } } ]\n" +
+                    "}",
+            BY_URL, "{\n" +
+                    "  \"size\": 1,\n" +
+                    "  \"query\": { \"bool\": { \"filter\": [ { \"term\": { \"url\": \"{{url}}\" } } ] } }\n" +
+                    "}",
+            PENDING_BY_USER, "{\n" +
+                    "  \"size\": 0,\n" +
+                    "  \"track_total_hits\": true,\n" +
+                    "  \"query\": { \"bool\": { \"filter\": [ { \"term\": { \"submitted_by\": \"{{login}}\" } }, { \"term\": { \"approved\": false } } ] } }\n" +
+                    "}",
+            // the ranking of the main page, with the url as tie breaker, so that search_after can page through it
+            API, "{\n" +
+                    "  \"size\": {{size}},\n" +
+                    "  \"timeout\": \"{{timeout}}\",\n" +
+                    "  \"track_total_hits\": false,\n" +
+                    "  \"_source\": {{#toJson}}fields{{/toJson}},\n" +
+                    "  {{#after}}\n" +
+                    "  \"search_after\": [ {{score}}, \"{{url}}\" ],\n" +
+                    "  {{/after}}\n" +
+                    "  \"query\": {\n" +
+                    "    \"bool\": {\n" +
+                    "      \"filter\": [ { \"term\": { \"approved\": true } } ],\n" +
+                    "      {{#q}}\n" +
+                    "      \"must\": [ { \"multi_match\": { \"query\": \"{{q}}\", \"fields\": [ \"title\", \"description\" ], \"minimum_should_match\": \"66%\" } } ],\n" +
+                    "      {{/q}}\n" +
+                    "      \"should\": [\n" +
+                    "        { \"distance_feature\": { \"field\": \"created_at\", \"origin\": \"{{origin}}\", \"pivot\": \"7d\" } },\n" +
+                    "        { \"rank_feature\": { \"field\": \"votes.rank\", \"saturation\": {} } }\n" +
+                    "      ]\n" +
+                    "    }\n" +
+                    "  },\n" +
+                    "  \"sort\": [ \"_score\", { \"url\": \"asc\" } ]\n" +
+                    "}"
+    );
+
+    private SearchTemplates() {}
+
+    static SearchTemplateRequest request(String id, Map<String, Object> params, SearchRequest searchRequest) {
+        final SearchTemplateRequest request = new SearchTemplateRequest(searchRequest);
+        request.setScriptType(ScriptType.STORED);
+        request.setScript(id);
+        request.setScriptParams(params);
+        return request;
+    }
+
+    static void storeIfAbsent(RestHighLevelClient client) throws IOException {
+        for (Map.Entry<String, String> entry : TEMPLATES.entrySet()) {
+            if (exists(client, entry.getKey())) {
+                continue;
+            }
+            final XContentBuilder content = XContentFactory.jsonBuilder().startObject()
+                    .startObject("script")
+                    .field("lang", "mustache")
+                    .field("source", entry.getValue())
+                    .endObject()
+                    .endObject();
+            final PutStoredScriptRequest request = new PutStoredScriptRequest().id(entry.getKey())
+                    .content(BytesReference.bytes(content), XContentType.JSON);
+            client.putScript(request, RequestOptions.DEFAULT);
+            logger.info("stored search template [{}]", entry.getKey());
+        }
+    }
+
+    private static boolean exists(RestHighLevelClient client, String id) throws IOException {
+        try {
+            return client.getScript(new GetStoredScriptRequest(id), RequestOptions.DEFAULT).getSource() != null;
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.springframework.util.StringUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encrypts and authenticates cookie values with AES-GCM, so that the content can neither be read nor changed
+ * by the client. The cookie name is used as associated data, so a value cannot be moved to another cookie.
+ * All instances behind a load balancer need to be configured with the same key.
+ */
+public class SessionCookieCodec {
+
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    public SessionCookieCodec(byte[] key) {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("session cookie key must be 16, 24 or 32 bytes long, but was " + key.length);
+        }
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    public static SessionCookieCodec fromBase64Key(String base64Key) {
+        if (!StringUtils.hasText(base64Key)) {
+            throw new IllegalStateException("stateless sessions require linkrating.session.cookie-key to be set");
+        }
+        return new SessionCookieCodec(Base64.getDecoder().decode(base64Key.trim()));
+    }
+
+    public String encode(String cookieName, byte[] value) {
+        final byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            final Cipher cipher = cipher(Cipher.ENCRYPT_MODE, cookieName, iv);
+            final byte[] encrypted = cipher.doFinal(value);
+            final byte[] result = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+            System.arraycopy(encrypted, 0, result, IV_LENGTH, encrypted.length);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(result);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // returns null for anything that was not encoded by us with this key for this cookie
+    public byte[] decode(String cookieName, String value) {
+        try {
+            final byte[] data = Base64.getUrlDecoder().decode(value);
+            if (data.length <= IV_LENGTH) {
+                return null;
+            }
+            final Cipher cipher = cipher(Cipher.DECRYPT_MODE, cookieName, Arrays.copyOf(data, IV_LENGTH));
+            return cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private Cipher cipher(int mode, String cookieName, byte[] iv) throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(cookieName.getBytes(StandardCharsets.UTF_8));
+        return cipher;
+    }
+}
@@ -24,13 +24,17 @@ import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.core.CountResponse;
+import org.elasticsearch.client.indexlifecycle.ForceMergeAction;
 import org.elasticsearch.client.indexlifecycle.LifecyclePolicy;
 import org.elasticsearch.client.indexlifecycle.Phase;
 import org.elasticsearch.client.indexlifecycle.PutLifecyclePolicyRequest;
+import org.elasticsearch.client.indexlifecycle.ReadOnlyAction;
 import org.elasticsearch.client.indexlifecycle.RolloverAction;
+import org.elasticsearch.client.indexlifecycle.SetPriorityAction;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.client.indices.PutIndexTemplateRequest;
+import org.elasticsearch.client.indices.PutMappingRequest;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
@@ -39,19 +43,28 @@ import org.elasticsearch.common.xcontent.XContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+// first of all ready listeners, as the others rely on the indices and templates, see WarmUp
 @Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
 public class StoreTemplateOnApplicationListener implements ApplicationListener<ApplicationReadyEvent> {
 
     private static final Logger logger = LoggerFactory.getLogger(StoreTemplateOnApplicationListener.class);
@@ -67,7 +80,104 @@ public class StoreTemplateOnApplicationListener implements ApplicationListener<A
             "  }\n" +
             "}\n";
 
-    private static final String LINKS_MAPPING = "{\n" +
+    private static final String VOTES_MAPPING = "{\n" +
+            "  \"properties\": {\n" +
+            "    \"link_id\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    },\n" +
+            "    \"timestamp\": {\n" +
+            "      \"type\": \"date\"\n" +
+            "    },\n" +
+            "    \"instance\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    }\n" +
+            "  }\n" +
+            "}\n";
+
+    // added to existing links indices, see VoteVelocity
+    private static final String VELOCITY_MAPPING = "{\n" +
+            "  \"properties\": {\n" +
+            "    \"velocity\": {\n" +
+            "      \"type\": \"rank_feature\"\n" +
+            "    }\n" +
+            "  }\n" +
+            "}\n";
+
+    // added to existing links indices, see RelatedLinks. Indices that mapped related.id dynamically as text need a
+    // migration, deleted links are not removed from related lists there
+    static final String RELATED_MAPPING = "{\n" +
+            "  \"properties\": {\n" +
+            "    \"related\": {\n" +
+            "      \"properties\": {\n" +
+            "        \"id\": {\n" +
+            "          \"type\": \"keyword\",\n" +
+            "          \"doc_values\": false\n" +
+            "        },\n" +
+            "        \"title\": {\n" +
+            "          \"type\": \"text\",\n" +
+            "          \"index\": false\n" +
+            "        }\n" +
+            "      }\n" +
+            "    }\n" +
+            "  }\n" +
+            "}\n";
+
+    // fields that are only ever filtered on do not need doc values, keywords come without norms anyway
+    // the fields of the percolated links must be mapped the same way as in the links index
+    private static final String SAVED_SEARCHES_MAPPING = "{\n" +
+            "  \"properties\": {\n" +
+            "    \"query\": {\n" +
+            "      \"type\": \"percolator\"\n" +
+            "    },\n" +
+            "    \"login\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    },\n" +
+            "    \"q\": {\n" +
+            "      \"type\": \"keyword\",\n" +
+            "      \"index\": false\n" +
+            "    },\n" +
+            "    \"created_at\": {\n" +
+            "      \"type\": \"date\"\n" +
+            "    },\n" +
+            "    \"title\": {\n" +
+            "      \"type\": \"text\"\n" +
+            "    },\n" +
+            "    \"description\": {\n" +
+            "      \"type\": \"text\"\n" +
+            "    },\n" +
+            "    \"category\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    }\n" +
+            "  }\n" +
+            "}\n";
+
+    private static final String INBOX_MAPPING = "{\n" +
+            "  \"properties\": {\n" +
+            "    \"login\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    },\n" +
+            "    \"link_id\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    },\n" +
+            "    \"title\": {\n" +
+            "      \"type\": \"text\",\n" +
+            "      \"index\": false\n" +
+            "    },\n" +
+            "    \"url\": {\n" +
+            "      \"type\": \"keyword\",\n" +
+            "      \"index\": false\n" +
+            "    },\n" +
+            "    \"search\": {\n" +
+            "      \"type\": \"keyword\",\n" +
+            "      \"index\": false\n" +
+            "    },\n" +
+            "    \"created_at\": {\n" +
+            "      \"type\": \"date\"\n" +
+            "    }\n" +
+            "  }\n" +
+            "}\n";
+
+    static final String LINKS_MAPPING = "{\n" +
             "    \"properties\": {\n" +
             "      \"title\": {\n" +
             "        \"type\": \"text\"\n" +
@@ -76,17 +186,23 @@ public class StoreTemplateOnApplicationListener implements ApplicationListener<A
             "        \"type\": \"text\"\n" +
             "      },\n" +
             "      \"category\": {\n" +
-            "        \"type\": \"keyword\"\n" +
+            "        \"type\": \"keyword\",\n" +
+            "        \"doc_values\": false\n" +
             "      },\n" +
             "      \"url\": {\n" +
             "        \"type\": \"keyword\"\n" +
             "      },\n" +
-            "      \"created_by\": {\n" +
-            "        \"type\": \"keyword\"\n" +
+            "      \"submitted_by\": {\n" +
+            "        \"type\": \"keyword\",\n" +
+            "        \"doc_values\": false\n" +
             "      },\n" +
             "      \"created_at\": {\n" +
             "        \"type\": \"date\"\n" +
             "      },\n" +
+            "      \"approved\": {\n" +
+            "        \"type\": \"boolean\",\n" +
+            "        \"doc_values\": false\n" +
+            "      },\n" +
             "      \"votes\": {\n" +
             "        \"type\": \"long\",\n" +
             "        \"fields\": {\n" +
@@ -94,6 +210,25 @@ public class StoreTemplateOnApplicationListener implements ApplicationListener<A
             "            \"type\": \"rank_feature\"\n" +
             "          }\n" +
             "        }\n" +
+            "      },\n" +
+            "      \"velocity\": {\n" +
+            "        \"type\": \"rank_feature\"\n" +
+            "      },\n" +
+            "      \"duplicate_of\": {\n" +
+            "        \"type\": \"keyword\",\n" +
+            "        \"doc_values\": false\n" +
+            "      },\n" +
+            "      \"related\": {\n" +
+            "        \"properties\": {\n" +
+            "          \"id\": {\n" +
+            "            \"type\": \"keyword\",\n" +
+            "            \"doc_values\": false\n" +
+            "          },\n" +
+            "          \"title\": {\n" +
+            "            \"type\": \"text\",\n" +
+            "            \"index\": false\n" +
+            "          }\n" +
+            "        }\n" +
             "      }\n" +
             "    }\n" +
             "}\n";
@@ -104,42 +239,58 @@ public class StoreTemplateOnApplicationListener implements ApplicationListener<A
     @Autowired
     private ElasticsearchOperations elasticsearchOperations;
 
+    @Value("${linkrating.lifecycle.warm-after:30d}")
+    private Duration warmAfter;
+
+    @Value("${linkrating.lifecycle.cold-after:365d}")
+    private Duration coldAfter;
+
     @Override
     public void onApplicationEvent(ApplicationReadyEvent event) {
-        logger.info("Connecting to Elasticsearch cluster to write lifecycle policy, index templates, and optionally initial data");
+        logger.info("Connecting to Elasticsearch cluster to write lifecycle policy, index and search templates, and optionally initial data");
 
         // store ILM policy, always overwrite on startup
         try {
-            // yearly rollover is fine on low traffic...
-            final RolloverAction rolloverAction = new RolloverAction(new ByteSizeValue(10, ByteSizeUnit.GB), TimeValue.timeValueDays(365), null);
-            final Phase phase = new Phase("hot", TimeValue.timeValueDays(7), Collections.singletonMap("rollover", rolloverAction));
-            final LifecyclePolicy policy = new LifecyclePolicy("link_policy", Collections.singletonMap("hot", phase));
-            final PutLifecyclePolicyRequest lifecyclePolicyRequest = new PutLifecyclePolicyRequest(policy);
+            final PutLifecyclePolicyRequest lifecyclePolicyRequest = new PutLifecyclePolicyRequest(linkPolicy(warmAfter, coldAfter));
             client.indexLifecycle().putLifecyclePolicy(lifecyclePolicyRequest, RequestOptions.DEFAULT);
         } catch (Exception e) {
-            logger.error("error trying to store index template", e);
+            logger.error("error trying to store lifecycle policy", e);
         }
 
         // store index template
         try {
-            final PutIndexTemplateRequest indexTemplateRequest = new PutIndexTemplateRequest("links_template");
-            indexTemplateRequest.patterns(Collections.singletonList("links-*"));
-            final Settings settings = Settings.builder()
-                    .put("number_of_shards", 1)
-                    .put("index.lifecycle.name", "link_policy")
-                    .put("index.lifecycle.rollover_alias", "links")
-                    .build();
-            indexTemplateRequest.settings(settings);
-            indexTemplateRequest.mapping(LINKS_MAPPING, XContentType.JSON);
-
-            final AcknowledgedResponse acknowledgedResponse = client.indices().putTemplate(indexTemplateRequest, RequestOptions.DEFAULT);
-            if (!acknowledgedResponse.isAcknowledged()) {
-                logger.error("storing index template was not acknowledged, index template may be missing!");
-            }
+            storeIndexTemplate(client);
         } catch (Exception e) {
             logger.error("error trying to store index template", e);
         }
 
+        // indices created before the trending sort do not know the velocity field yet
+        try {
+            final GetIndexRequest getIndexRequest = new GetIndexRequest("links-*");
+            if (client.indices().exists(getIndexRequest, RequestOptions.DEFAULT)) {
+                client.indices().putMapping(new PutMappingRequest("links-*").source(VELOCITY_MAPPING, XContentType.JSON), RequestOptions.DEFAULT);
+            }
+        } catch (Exception e) {
+            logger.error("error trying to add the velocity field to the links indices", e);
+        }
+
+        // indices created before the related links would map them dynamically on the first backfill
+        try {
+            final GetIndexRequest getIndexRequest = new GetIndexRequest("links-*");
+            if (client.indices().exists(getIndexRequest, RequestOptions.DEFAULT)) {
+                client.indices().putMapping(new PutMappingRequest("links-*").source(RELATED_MAPPING, XContentType.JSON), RequestOptions.DEFAULT);
+            }
+        } catch (Exception e) {
+            logger.error("error trying to add the related field to the links indices, run a migration if related.id is not a keyword", e);
+        }
+
+        // store search templates, existing ones are kept as they may have been tuned in the cluster
+        try {
+            SearchTemplates.storeIfAbsent(client);
+        } catch (Exception e) {
+            logger.error("error trying to store search templates", e);
+        }
+
         // bootstrap time series data
         boolean timeSeriesIndicesExist = true;
         try {
@@ -198,9 +349,106 @@ public class StoreTemplateOnApplicationListener implements ApplicationListener<A
                 logger.error("error trying retrieve index data", e);
             }
         }
+        // a single shard, so that its sequence numbers can be used to read new votes, see VoteVelocity
+        try {
+            final GetIndexRequest getIndexRequest = new GetIndexRequest(VoteVelocity.INDEX);
+            if (!client.indices().exists(getIndexRequest, RequestOptions.DEFAULT)) {
+                final CreateIndexRequest createIndexRequest = new CreateIndexRequest(VoteVelocity.INDEX);
+                createIndexRequest.settings(Settings.builder().put("number_of_shards", 1));
+                createIndexRequest.mapping(VOTES_MAPPING, XContentType.JSON);
+                client.indices().create(createIndexRequest, RequestOptions.DEFAULT);
+            }
+        } catch (Exception e) {
+            logger.error("error trying to create the votes index", e);
+        }
+
+        // saved searches and their matches, see SavedSearches
+        createIndexIfMissing(SavedSearches.INDEX, SAVED_SEARCHES_MAPPING);
+        createIndexIfMissing(SavedSearches.INBOX_INDEX, INBOX_MAPPING);
         logger.info("Initial Elasticsearch writes done");
     }
 
+    /**
+     * Once rolled over, a links index is only ever searched, as writes go to the write index of the alias. Merging
+     * it down to a single segment and blocking writes lets searches across all indices skip the per segment work of
+     * the old ones. The phase ages count from the rollover. There is no shrink, links indices have a single shard.
+     */
+    static LifecyclePolicy linkPolicy(Duration warmAfter, Duration coldAfter) {
+        if (coldAfter.compareTo(warmAfter) <= 0) {
+            throw new IllegalArgumentException("linkrating.lifecycle.cold-after must be later than linkrating.lifecycle.warm-after");
+        }
+        final Map<String, Phase> phases = new LinkedHashMap<>();
+        // yearly rollover is fine on low traffic...
+        final RolloverAction rolloverAction = new RolloverAction(new ByteSizeValue(10, ByteSizeUnit.GB), TimeValue.timeValueDays(365), null);
+        phases.put("hot", new Phase("hot", TimeValue.timeValueDays(7), Map.of(
+                RolloverAction.NAME, rolloverAction,
+                SetPriorityAction.NAME, new SetPriorityAction(100))));
+        phases.put("warm", new Phase("warm", timeValue(warmAfter), Map.of(
+                ForceMergeAction.NAME, new ForceMergeAction(1),
+                ReadOnlyAction.NAME, new ReadOnlyAction(),
+                SetPriorityAction.NAME, new SetPriorityAction(50))));
+        // not frozen, as searches would skip frozen indices, old links are only recovered last after a restart
+        phases.put("cold", new Phase("cold", timeValue(coldAfter), Map.of(
+                SetPriorityAction.NAME, new SetPriorityAction(0))));
+        return new LifecyclePolicy("link_policy", phases);
+    }
+
+    // in the largest whole unit, so that the stored policy reads 30d and not 2592000000ms
+    private static TimeValue timeValue(Duration duration) {
+        final long seconds = duration.getSeconds();
+        if (duration.getNano() != 0 || seconds % 60 != 0) {
+            return TimeValue.timeValueMillis(duration.toMillis());
+        }
+        if (seconds % 86400 == 0) {
+            return TimeValue.timeValueDays(duration.toDays());
+        }
+        if (seconds % 3600 == 0) {
+            return TimeValue.timeValueHours(duration.toHours());
+        }
+        return TimeValue.timeValueMinutes(duration.toMinutes());
+    }
+
+    // also used by the migration, which needs the current mapping before the application is ready
+    static void storeIndexTemplate(RestHighLevelClient client) throws IOException {
+        final PutIndexTemplateRequest indexTemplateRequest = new PutIndexTemplateRequest("links_template");
+        indexTemplateRequest.patterns(Collections.singletonList("links-*"));
+        final Settings settings = Settings.builder()
+                .put("number_of_shards", 1)
+                .put("index.lifecycle.name", "link_policy")
+                .put("index.lifecycle.rollover_alias", "links")
+                .put(indexSortSettings())
+                .build();
+        indexTemplateRequest.settings(settings);
+        indexTemplateRequest.mapping(LINKS_MAPPING, XContentType.JSON);
+
+        final AcknowledgedResponse acknowledgedResponse = client.indices().putTemplate(indexTemplateRequest, RequestOptions.DEFAULT);
+        if (!acknowledgedResponse.isAcknowledged()) {
+            logger.error("storing index template was not acknowledged, index template may be missing!");
+        }
+    }
+
+    private void createIndexIfMissing(String index, String mapping) {
+        try {
+            if (!client.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT)) {
+                final CreateIndexRequest createIndexRequest = new CreateIndexRequest(index);
+                createIndexRequest.settings(Settings.builder().put("number_of_shards", 1));
+                createIndexRequest.mapping(mapping, XContentType.JSON);
+                client.indices().create(createIndexRequest, RequestOptions.DEFAULT);
+            }
+        } catch (Exception e) {
+            logger.error("error trying to create the [{}] index", index, e);
+        }
+    }
+
+    // segments are sorted by creation date, so queries sorted the same way can stop after the first hits of each
+    // segment. Only applies to indices created after the template has been stored, see LinkMigration
+    static Settings indexSortSettings() {
+        return Settings.builder()
+                .put("index.sort.field", "created_at")
+                .put("index.sort.order", "desc")
+                .build();
+    }
+
     // a static list of links that gets initially added to an empty links index
     private static final List<Link> links() {
         final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
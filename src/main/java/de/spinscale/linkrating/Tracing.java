@@ -0,0 +1,32 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import co.elastic.apm.api.ElasticApm;
+import co.elastic.apm.api.Span;
+
+/**
+ * Custom spans via the APM public API, so that a slow request can be broken down into its phases instead of
+ * showing up as a single transaction. If the agent is not attached, all returned spans are no-ops.
+ */
+public class Tracing {
+
+    public static Span startSpan(String type, String subtype, String action, String name) {
+        return ElasticApm.currentSpan().startSpan(type, subtype, action).setName(name);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the votes of every link within a sliding window of one minute buckets and writes the count into the
+ * {@code velocity} rank feature of the link, which the trending sort is based on.
+ *
+ * Every vote is also written into the {@code votes} index. Votes of other instances are read from there, as are
+ * the votes within the window after a restart. The index has a single shard, so that its sequence numbers can be
+ * used as a watermark, like in {@link LinkReplica}.
+ */
+@Component
+@Lazy(false)
+public class VoteVelocity implements ApplicationListener<LinkChangedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(VoteVelocity.class);
+
+    static final String INDEX = "votes";
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_LINKS_WITH_VELOCITY = 10_000;
+    // old votes are deleted from the votes index about once an hour with the default sync interval
+    private static final int CLEANUP_EVERY = 60;
+
+    private final RestHighLevelClient client;
+    private final boolean enabled;
+    private final int windowMinutes;
+    private final Clock clock;
+    // identifies the votes of this instance in the votes index, they have been counted already
+    private final String instanceId = UUID.randomUUID().toString();
+
+    // rings are only removed for deleted links, removing idle ones could lose a concurrent vote
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    // only accessed by the scheduled sync, which never runs concurrently
+    private final Map<String, Float> written = new HashMap<>();
+    private long watermark = -1;
+    private boolean initialized = false;
+    private int syncCount = 0;
+
+    @Autowired
+    public VoteVelocity(RestHighLevelClient client,
+                        @Value("${linkrating.trending.enabled:true}") boolean enabled,
+                        @Value("${linkrating.trending.window:60m}") Duration window) {
+        this(client, enabled, window, Clock.systemUTC());
+    }
+
+    VoteVelocity(RestHighLevelClient client, boolean enabled, Duration window, Clock clock) {
+        if (window.toMinutes() < 1) {
+            throw new IllegalArgumentException("linkrating.trending.window must be at least one minute");
+        }
+        this.client = client;
+        this.enabled = enabled;
+        this.windowMinutes = (int) window.toMinutes();
+        this.clock = clock;
+    }
+
+    @Override
+    public void onApplicationEvent(LinkChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        if (event.getType() == LinkChangedEvent.Type.VOTED) {
+            final Instant now = clock.instant();
+            record(event.getId(), now);
+            store(event.getId(), now);
+        } else if (event.getType() == LinkChangedEvent.Type.DELETED) {
+            rings.remove(event.getId());
+        }
+    }
+
+    // votes per window, zero for links without votes in the window
+    long velocity(String id) {
+        final Ring ring = rings.get(id);
+        return ring == null ? 0 : ring.sum(minute(clock.instant()));
+    }
+
+    void record(String id, Instant timestamp) {
+        final long minute = minute(timestamp);
+        if (minute > minute(clock.instant()) - windowMinutes) {
+            rings.computeIfAbsent(id, k -> new Ring(windowMinutes)).add(minute);
+        }
+    }
+
+    // the vote has been counted already, so a failure only affects other instances and restarts
+    private void store(String id, Instant timestamp) {
+        final Map<String, Object> source = Map.of("link_id", id, "timestamp", timestamp.toString(), "instance", instanceId);
+        client.indexAsync(new IndexRequest(INDEX).source(source), RequestOptions.DEFAULT, new ActionListener<>() {
+            @Override
+            public void onResponse(IndexResponse response) {
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.warn("error storing vote for [{}]", id, e);
+            }
+        });
+    }
+
+    @Scheduled(initialDelayString = "${linkrating.trending.sync-interval:60000}", fixedDelayString = "${linkrating.trending.sync-interval:60000}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (!initialized) {
+                loadWritten();
+                initialized = true;
+            }
+            readVotes();
+            writeVelocities();
+            if (++syncCount % CLEANUP_EVERY == 0) {
+                deleteOldVotes();
+            }
+        } catch (Exception e) {
+            logger.error("error syncing vote velocity", e);
+        }
+    }
+
+    // links may still have a velocity from before a restart, which has to be reset once it is outside the window
+    private void loadWritten() throws IOException {
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(QueryBuilders.existsQuery("velocity"))
+                .fetchSource("velocity", null)
+                .size(MAX_LINKS_WITH_VELOCITY);
+        for (SearchHit hit : client.search(new SearchRequest("links").source(source), RequestOptions.DEFAULT).getHits().getHits()) {
+            final Object velocity = hit.getSourceAsMap().get("velocity");
+            if (velocity instanceof Number) {
+                written.put(hit.getId(), ((Number) velocity).floatValue());
+            }
+        }
+    }
+
+    // on the first run all votes within the window, afterwards everything above the watermark
+    private void readVotes() throws IOException {
+        final Instant now = clock.instant();
+        int read = 0;
+        while (true) {
+            final BoolQueryBuilder query = QueryBuilders.boolQuery()
+                    .filter(QueryBuilders.rangeQuery("_seq_no").gt(watermark))
+                    .filter(QueryBuilders.rangeQuery("timestamp").gt(now.minus(Duration.ofMinutes(windowMinutes)).toString()));
+            final SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(query)
+                    .sort("_seq_no", SortOrder.ASC)
+                    .seqNoAndPrimaryTerm(true)
+                    .size(BATCH_SIZE);
+            final SearchHit[] hits = client.search(new SearchRequest(INDEX).source(source), RequestOptions.DEFAULT).getHits().getHits();
+            for (SearchHit hit : hits) {
+                final Map<String, Object> vote = hit.getSourceAsMap();
+                if (!instanceId.equals(vote.get("instance"))) {
+                    record((String) vote.get("link_id"), Instant.parse((String) vote.get("timestamp")));
+                    read++;
+                }
+                watermark = Math.max(watermark, hit.getSeqNo());
+            }
+            if (hits.length < BATCH_SIZE) {
+                break;
+            }
+        }
+        if (read > 0) {
+            logger.debug("read [{}] votes of other instances", read);
+        }
+    }
+
+    // only changed velocities are written, links without votes in the window get their velocity removed
+    void writeVelocities() throws IOException {
+        final long now = minute(clock.instant());
+        final Map<String, Float> changed = new HashMap<>();
+        for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+            final float velocity = entry.getValue().sum(now);
+            if (velocity != written.getOrDefault(entry.getKey(), 0f)) {
+                changed.put(entry.getKey(), velocity);
+            }
+        }
+        for (String id : written.keySet()) {
+            if (!rings.containsKey(id)) {
+                changed.put(id, 0f);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        final BulkRequest bulkRequest = new BulkRequest();
+        for (Map.Entry<String, Float> entry : changed.entrySet()) {
+            // rank features must be positive, no votes means no velocity at all
+            final Object velocity = entry.getValue() > 0 ? entry.getValue() : null;
+            bulkRequest.add(new UpdateRequest("links", entry.getKey())
+                    .doc(Collections.singletonMap("velocity", velocity))
+                    .retryOnConflict(3));
+        }
+        final BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        int failed = 0;
+        for (BulkItemResponse item : response.getItems()) {
+            final String id = item.getId();
+            if (item.isFailed()) {
+                if (item.status() == RestStatus.NOT_FOUND) {
+                    // the link has been deleted
+                    written.remove(id);
+                    rings.remove(id);
+                } else {
+                    // written again on the next sync
+                    failed++;
+                    logger.debug("error writing velocity of [{}]: {}", id, item.getFailureMessage());
+                }
+            } else if (changed.get(id) > 0) {
+                written.put(id, changed.get(id));
+            } else {
+                written.remove(id);
+            }
+        }
+        if (failed > 0) {
+            logger.warn("writing velocity failed for [{}] of [{}] links", failed, changed.size());
+        }
+    }
+
+    private void deleteOldVotes() throws IOException {
+        final Instant before = clock.instant().minus(Duration.ofMinutes(windowMinutes));
+        final DeleteByQueryRequest request = new DeleteByQueryRequest(INDEX)
+                .setQuery(QueryBuilders.rangeQuery("timestamp").lte(before.toString()))
+                .setAbortOnVersionConflict(false);
+        final long deleted = client.deleteByQuery(request, RequestOptions.DEFAULT).getDeleted();
+        logger.debug("deleted [{}] votes before [{}]", deleted, before);
+    }
+
+    private static long minute(Instant instant) {
+        return Math.floorDiv(instant.getEpochSecond(), 60);
+    }
+
+    /**
+     * One bucket per minute of the window, each bucket holds its minute in the upper and the number of votes in
+     * the lower 32 bits of a long, so that a bucket can be moved to the current minute and counted up in a single
+     * compare and set, without any locking between concurrent votes.
+     */
+    static final class Ring {
+
+        private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+        private final AtomicLongArray buckets;
+
+        Ring(int size) {
+            this.buckets = new AtomicLongArray(size);
+        }
+
+        void add(long minute) {
+            final int index = (int) Math.floorMod(minute, (long) buckets.length());
+            while (true) {
+                final long current = buckets.get(index);
+                final long bucketMinute = current >>> 32;
+                final long updated;
+                if (bucketMinute == minute) {
+                    updated = current + 1;
+                } else if (bucketMinute < minute) {
+                    updated = (minute << 32) | 1;
+                } else {
+                    // the bucket already belongs to a later minute, this vote is too old for the window
+                    return;
+                }
+                if (buckets.compareAndSet(index, current, updated)) {
+                    return;
+                }
+            }
+        }
+
+        long sum(long now) {
+            long sum = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                final long bucket = buckets.get(i);
+                final long bucketMinute = bucket >>> 32;
+                if (bucketMinute > now - buckets.length() && bucketMinute <= now) {
+                    sum += bucket & COUNT_MASK;
+                }
+            }
+            return sum;
+        }
+    }
+}
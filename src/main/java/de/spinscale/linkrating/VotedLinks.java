@@ -0,0 +1,120 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.User;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ids of the links a user voted for, loaded from the users index once and kept until the user has not been
+ * seen for a while, so that rendering a page only needs a lookup in memory to mark the links the user voted for.
+ *
+ * This is keyed by login instead of stored in the HTTP session, as there is no HTTP session with stateless sessions.
+ * Votes on other instances are only picked up once the entry is evicted, the vote itself is checked against the user
+ * document anyway.
+ */
+@Component
+public class VotedLinks {
+
+    private static final Logger logger = LoggerFactory.getLogger(VotedLinks.class);
+
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final ElasticsearchGuard guard;
+    private final Map<String, Voted> cache;
+
+    public VotedLinks(ElasticsearchOperations elasticsearchOperations, ElasticsearchGuard guard,
+                      @Value("${linkrating.voted.cache-size:10000}") int cacheSize) {
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.guard = guard;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Voted> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    // null if the votes could not be loaded, the page is rendered with all vote buttons then
+    public Voted get(String login) {
+        final Voted cached = cache.get(login);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            final User user = guard.executeBlocking(() -> elasticsearchOperations.get(login, User.class));
+            final Voted voted = Voted.of(user == null ? null : user.getIds());
+            cache.put(login, voted);
+            return voted;
+        } catch (Exception e) {
+            logger.warn("error loading votes of user [{}]: {}", login, e.getMessage());
+            return null;
+        }
+    }
+
+    // the vote endpoint has loaded the whole user document already, so the entry is replaced instead of updated
+    public void put(String login, Collection<String> ids) {
+        cache.put(login, Voted.of(ids));
+    }
+
+    /**
+     * A sorted array of 64 bit hashes of the link ids, searched with a binary search. A hash collision would hide
+     * the vote button of a link the user did not vote for, which is unlikely enough with a few thousand votes.
+     */
+    public static final class Voted {
+
+        private final long[] hashes;
+
+        private Voted(long[] hashes) {
+            this.hashes = hashes;
+        }
+
+        static Voted of(Collection<String> ids) {
+            if (ids == null) {
+                return new Voted(new long[0]);
+            }
+            final long[] hashes = ids.stream().mapToLong(Voted::hash).sorted().distinct().toArray();
+            return new Voted(hashes);
+        }
+
+        public boolean contains(String id) {
+            return id != null && Arrays.binarySearch(hashes, hash(id)) >= 0;
+        }
+
+        int size() {
+            return hashes.length;
+        }
+
+        private static long hash(String id) {
+            final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the ranking queries against Elasticsearch and requests the main page from the own web server a few times,
+ * before the first user does, so that the JIT, the template cache and the Elasticsearch caches are warm.
+ *
+ * Spring Boot only reports the application as ready to accept traffic once all listeners of the ready event are
+ * done, so this blocks, bounded by a timeout, and runs after the templates and indices are stored.
+ */
+@Component
+@Lazy(false)
+@ConditionalOnWebApplication
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class WarmUp implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+    private final LinkSearchService linkSearchService;
+    private final boolean enabled;
+    private final int renders;
+    private final List<String> queries;
+    private final Duration timeout;
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    private volatile long durationMillis = 0;
+
+    public WarmUp(LinkSearchService linkSearchService, MeterRegistry registry,
+                  @Value("${linkrating.warmup.enabled:true}") boolean enabled,
+                  @Value("${linkrating.warmup.renders:20}") int renders,
+                  @Value("${linkrating.warmup.queries:}") List<String> queries,
+                  @Value("${linkrating.warmup.timeout:30s}") Duration timeout) {
+        this.linkSearchService = linkSearchService;
+        this.enabled = enabled;
+        this.renders = renders;
+        this.queries = queries;
+        this.timeout = timeout;
+        TimeGauge.builder("linkrating.warmup.duration", this, TimeUnit.MILLISECONDS, warmUp -> warmUp.durationMillis)
+                .description("time spent warming up before accepting traffic")
+                .register(registry);
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (!enabled || !(event.getApplicationContext() instanceof WebServerApplicationContext)) {
+            return;
+        }
+        final int port = ((WebServerApplicationContext) event.getApplicationContext()).getWebServer().getPort();
+        run(URI.create("http://localhost:" + port + "/"));
+    }
+
+    // never fails, a cold start is slower but still works
+    Duration run(URI baseUri) {
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Future<?> future = executor.submit(() -> {
+            warmUpSearches();
+            warmUpRendering(baseUri);
+        });
+        boolean completed = false;
+        try {
+            future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            completed = true;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+        } catch (ExecutionException e) {
+            logger.warn("error during warm-up", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Duration duration = Duration.ofNanos(System.nanoTime() - start);
+        durationMillis = duration.toMillis();
+        if (completed) {
+            logger.info("warm-up took [{}ms]", durationMillis);
+        } else {
+            logger.warn("warm-up did not finish within [{}], accepting traffic anyway", timeout);
+        }
+        return duration;
+    }
+
+    // the same requests the main page sends, so the request cache holds their results
+    private void warmUpSearches() {
+        search(null, false);
+        search(null, true);
+        for (String query : queries) {
+            search(query, false);
+        }
+    }
+
+    private void search(String q, boolean trending) {
+        try {
+            if (trending) {
+                linkSearchService.searchTrending(q);
+            } else {
+                linkSearchService.searchRanked(q);
+            }
+        } catch (Exception e) {
+            logger.debug("warm-up search for [{}] failed: {}", q, e.getMessage());
+        }
+    }
+
+    // through the whole stack including security and template rendering, anonymously just like most visitors
+    private void warmUpRendering(URI baseUri) {
+        for (int i = 0; i < renders && !Thread.currentThread().isInterrupted(); i++) {
+            get(baseUri);
+        }
+        for (String query : queries) {
+            get(baseUri.resolve("?q=" + URLEncoder.encode(query, StandardCharsets.UTF_8)));
+        }
+    }
+
+    private void get(URI uri) {
+        try {
+            final HttpRequest request = HttpRequest.newBuilder(uri).timeout(timeout).GET().build();
+            final HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200) {
+                logger.debug("warm-up request to [{}] returned [{}]", uri, response.statusCode());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.debug("warm-up request to [{}] failed: {}", uri, e.getMessage());
+        }
+    }
+}
@@ -17,16 +17,47 @@
 
 package de.spinscale.linkrating;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpMethod;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.web.OAuth2AuthorizedClientRepository;
+import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
+import org.springframework.security.web.savedrequest.NullRequestCache;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.time.Duration;
+
+// not needed when only running the links migration
 @Configuration
+@ConditionalOnWebApplication
 @EnableWebSecurity
 public class WebSecurityConfig extends WebSecurityConfigurerAdapter  {
 
+    private final AdminService adminService;
+    private final boolean stateless;
+    private final String cookieKey;
+    private final Duration timeout;
+
+    public WebSecurityConfig(AdminService adminService,
+                             @Value("${linkrating.session.stateless:false}") boolean stateless,
+                             @Value("${linkrating.session.cookie-key:}") String cookieKey,
+                             @Value("${linkrating.session.timeout:12h}") Duration timeout) {
+        this.adminService = adminService;
+        this.stateless = stateless;
+        this.cookieKey = cookieKey;
+        this.timeout = timeout;
+    }
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http
@@ -34,16 +65,66 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter  {
                 .logout(l -> l
                         .logoutSuccessUrl("/").permitAll()
                         .addLogoutHandler((request, response, authentication) -> {
-                            request.getSession().invalidate();
+                            final HttpSession session = request.getSession(false);
+                            if (session != null) {
+                                session.invalidate();
+                            }
                             SecurityContextHolder.getContext().setAuthentication(null);
                         }).permitAll()
                 )
                 // authorize request with exceptions
                 .authorizeRequests()
-                .antMatchers("/", "/img/**", "/oauth2/**", "/logout", "/link/**").permitAll()
+                .antMatchers("/", "/img/**", "/oauth2/**", "/logout", "/link/**", "/feed.atom", "/feed.rss", "/feed/**").permitAll()
+                // liveness and readiness probes, details are not shown without authorization
+                .antMatchers(HttpMethod.GET, "/actuator/health", "/actuator/health/**").permitAll()
+                .antMatchers(HttpMethod.GET, "/api/**").permitAll()
                 .anyRequest().authenticated()
                 .and().logout().permitAll()
                 .and().oauth2Login().permitAll();
+
+        if (stateless) {
+            configureStateless(http);
+        }
     }
 
+    // no HTTP session at all, login, CSRF token and the login state during the oauth dance are kept in cookies
+    private void configureStateless(HttpSecurity http) throws Exception {
+        final SessionCookieCodec codec = SessionCookieCodec.fromBase64Key(cookieKey);
+        final CookieSecurityContextRepository securityContextRepository = new CookieSecurityContextRepository(codec, adminService, timeout);
+
+        http
+                .sessionManagement(s -> s.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+                .securityContext(s -> s.securityContextRepository(securityContextRepository))
+                .requestCache(r -> r.requestCache(new NullRequestCache()))
+                .csrf(c -> c.csrfTokenRepository(new CookieCsrfTokenRepository()))
+                .logout(l -> l.addLogoutHandler((request, response, authentication) -> securityContextRepository.clearCookie(request, response)))
+                .oauth2Login(o -> o
+                        .authorizationEndpoint(a -> a.authorizationRequestRepository(new CookieOAuth2AuthorizationRequestRepository(codec)))
+                        .authorizedClientRepository(new NoopAuthorizedClientRepository())
+                        .successHandler((request, response, authentication) -> {
+                            securityContextRepository.writeCookie(request, response, authentication);
+                            response.sendRedirect("/");
+                        })
+                );
+    }
+
+    // the github access token is not needed after login, so there is no reason to keep it anywhere
+    private static class NoopAuthorizedClientRepository implements OAuth2AuthorizedClientRepository {
+
+        @Override
+        public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId, Authentication principal,
+                                                                         HttpServletRequest request) {
+            return null;
+        }
+
+        @Override
+        public void saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal,
+                                         HttpServletRequest request, HttpServletResponse response) {
+        }
+
+        @Override
+        public void removeAuthorizedClient(String clientRegistrationId, Authentication principal,
+                                           HttpServletRequest request, HttpServletResponse response) {
+        }
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating.controller;
+
+import de.spinscale.linkrating.LinkApi;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// read only access to approved links, everything is fetched before the response is written, so errors still
+// result in a proper status code
+@Controller
+@RequestMapping("/api/links")
+public class ApiController {
+
+    private final LinkApi linkApi;
+
+    public ApiController(LinkApi linkApi) {
+        this.linkApi = linkApi;
+    }
+
+    @GetMapping
+    public void search(@RequestParam(value = "q", required = false) final String q,
+                       @RequestParam(value = "cursor", required = false) final String cursor,
+                       @RequestParam(value = "size", defaultValue = "" + LinkApi.DEFAULT_SIZE) final int size,
+                       @RequestParam(value = "fields", required = false) final String fields,
+                       final HttpServletResponse response) throws IOException {
+        final LinkApi.Page page;
+        try {
+            page = linkApi.search(q, cursor, size, LinkApi.parseFields(fields));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+        linkApi.writePage(page, response.getOutputStream());
+    }
+
+    @GetMapping(params = "ids")
+    public void getByIds(@RequestParam("ids") final String ids,
+                         @RequestParam(value = "fields", required = false) final String fields,
+                         final HttpServletResponse response) throws IOException {
+        final List<String> idList = Arrays.stream(ids.split(",")).map(String::trim).filter(id -> !id.isEmpty())
+                .distinct().collect(Collectors.toList());
+        final List<Map<String, Object>> links = get(idList, fields);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+        linkApi.writeLinks(links, response.getOutputStream());
+    }
+
+    @GetMapping("{id}")
+    public void get(@PathVariable("id") final String id,
+                    @RequestParam(value = "fields", required = false) final String fields,
+                    final HttpServletResponse response) throws IOException {
+        final List<Map<String, Object>> links = get(List.of(id), fields);
+        if (links.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+        linkApi.writeLink(links.get(0), response.getOutputStream());
+    }
+
+    private List<Map<String, Object>> get(List<String> ids, String fields) {
+        try {
+            return linkApi.get(ids, LinkApi.parseFields(fields));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+}
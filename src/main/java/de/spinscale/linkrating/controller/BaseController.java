@@ -17,17 +17,25 @@
 
 package de.spinscale.linkrating.controller;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class BaseController {
 
+    private static final Logger logger = LoggerFactory.getLogger(BaseController.class);
+
     private final List<String> admins;
 
     public BaseController(List<String> admins) {
@@ -58,6 +66,13 @@ public class BaseController {
         return this.admins.contains(githubLogin);
     }
 
+    // thrown by the ElasticsearchGuard when the cluster is overloaded or the circuit is open
+    @ExceptionHandler(DataAccessResourceFailureException.class)
+    public void handleUnavailable(DataAccessResourceFailureException e, HttpServletResponse response) throws IOException {
+        logger.warn("elasticsearch unavailable: {}", e.getMessage());
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+    }
+
     static List<String> loadAdmins() {
         final String[] admins = System.getenv("ADMINS").split(",");
         return Arrays.stream(admins).map(String::trim).collect(Collectors.toList());
@@ -0,0 +1,127 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating.controller;
+
+import de.spinscale.linkrating.AdminService;
+import de.spinscale.linkrating.FlightRecordings;
+import org.elasticsearch.common.inject.Inject;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// profiling the running application, all endpoints are admin only
+@Controller
+@RequestMapping(path = "/admin/diagnostics")
+public class DiagnosticsController extends BaseController {
+
+    private static final int MAX_HISTOGRAM_LIMIT = 1000;
+
+    private final FlightRecordings flightRecordings;
+
+    @Inject
+    public DiagnosticsController(AdminService adminService, FlightRecordings flightRecordings) {
+        super(adminService.get());
+        this.flightRecordings = flightRecordings;
+    }
+
+    @PostMapping("recordings")
+    public ResponseEntity<Map<String, Object>> start(@AuthenticationPrincipal final OAuth2User principal,
+                                                     @RequestParam(value = "profile", defaultValue = "profile") final String profile,
+                                                     @RequestParam(value = "duration", defaultValue = "60s") final String duration) throws IOException {
+        ensureAdmin(principal);
+        final String name;
+        try {
+            // same format as the duration settings, i.e. 30s or 2m
+            name = flightRecordings.start(profile, DurationStyle.detectAndParse(duration));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("name", name, "profile", profile, "duration", duration));
+    }
+
+    @GetMapping("recordings")
+    @ResponseBody
+    public Map<String, Object> list(@AuthenticationPrincipal final OAuth2User principal) throws IOException {
+        ensureAdmin(principal);
+        final List<Map<String, Object>> recordings = new ArrayList<>();
+        for (Path recording : flightRecordings.list()) {
+            final Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", recording.getFileName().toString());
+            entry.put("size", Files.size(recording));
+            entry.put("finished_at", Files.getLastModifiedTime(recording).toInstant().toString());
+            recordings.add(entry);
+        }
+        final Map<String, Object> response = new LinkedHashMap<>();
+        response.put("running", flightRecordings.running());
+        response.put("profiles", FlightRecordings.profiles());
+        response.put("recordings", recordings);
+        return response;
+    }
+
+    @GetMapping("recordings/{name}")
+    public ResponseEntity<Resource> download(@AuthenticationPrincipal final OAuth2User principal,
+                                             @PathVariable("name") final String name) {
+        ensureAdmin(principal);
+        final Path recording = flightRecordings.get(name);
+        if (recording == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment").filename(name).build().toString())
+                .body(new FileSystemResource(recording));
+    }
+
+    @GetMapping(path = "histogram", produces = MediaType.TEXT_PLAIN_VALUE)
+    @ResponseBody
+    public String histogram(@AuthenticationPrincipal final OAuth2User principal,
+                            @RequestParam(value = "limit", defaultValue = "50") final int limit,
+                            @RequestParam(value = "live", defaultValue = "false") final boolean live) throws Exception {
+        ensureAdmin(principal);
+        if (limit < 1 || limit > MAX_HISTOGRAM_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_HISTOGRAM_LIMIT);
+        }
+        return FlightRecordings.histogram(limit, live);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating.controller;
+
+import de.spinscale.linkrating.AdminService;
+import de.spinscale.linkrating.LinkExporter;
+import org.elasticsearch.common.inject.Inject;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Locale;
+
+// exports all links for backups or offline analysis, compression is done by the servlet container
+@Controller
+public class ExportController extends BaseController {
+
+    private final LinkExporter linkExporter;
+
+    @Inject
+    public ExportController(AdminService adminService, LinkExporter linkExporter) {
+        super(adminService.get());
+        this.linkExporter = linkExporter;
+    }
+
+    @GetMapping("/export")
+    public void export(@AuthenticationPrincipal final OAuth2User principal,
+                       @RequestParam(value = "format", defaultValue = "ndjson") final String format,
+                       final HttpServletResponse response) throws IOException {
+        ensureAdmin(principal);
+        final LinkExporter.Format exportFormat;
+        try {
+            exportFormat = LinkExporter.Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "unknown format [" + format + "]");
+        }
+
+        final String filename = "links-" + LocalDate.now(ZoneOffset.UTC) + "." + exportFormat.getExtension();
+        response.setContentType(exportFormat.getContentType() + ";charset=UTF-8");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+        // rows are written to the response as they are read, nothing is buffered besides a single batch
+        linkExporter.export(exportFormat, response.getOutputStream());
+    }
+}
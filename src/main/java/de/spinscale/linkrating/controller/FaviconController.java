@@ -0,0 +1,76 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating.controller;
+
+import de.spinscale.linkrating.Favicons;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// a stored favicon never changes, hosts without one get a transparent placeholder that browsers ask for again later
+@Controller
+public class FaviconController {
+
+    private static final Pattern HOST = Pattern.compile("[a-z0-9]([a-z0-9-]*[a-z0-9])?(\\.[a-z0-9]([a-z0-9-]*[a-z0-9])?)*");
+    // a 1x1 transparent PNG
+    private static final byte[] PLACEHOLDER = Base64.getDecoder().decode(
+            "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==");
+
+    private final Favicons favicons;
+
+    public FaviconController(Favicons favicons) {
+        this.favicons = favicons;
+    }
+
+    @GetMapping("/img/favicon/{host:.+}")
+    public ResponseEntity<byte[]> favicon(@PathVariable("host") final String host) {
+        final String normalized = host.toLowerCase(Locale.ROOT);
+        if (normalized.length() > 253 || !HOST.matcher(normalized).matches()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        final byte[] icon = favicons.get(normalized);
+        if (icon == null) {
+            // not fetched yet, it should be there shortly
+            return image(PLACEHOLDER, CacheControl.maxAge(60, TimeUnit.SECONDS).cachePublic().getHeaderValue());
+        }
+        if (icon.length == 0) {
+            return image(PLACEHOLDER, CacheControl.maxAge(1, TimeUnit.DAYS).cachePublic().getHeaderValue());
+        }
+        // CacheControl has no immutable directive before Spring 5.3
+        return image(icon, CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().getHeaderValue() + ", immutable");
+    }
+
+    private static ResponseEntity<byte[]> image(byte[] bytes, String cacheControl) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_PNG)
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+                .body(bytes);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating.controller;
+
+import de.spinscale.linkrating.LinkFeeds;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+// feed readers poll a lot, the feeds are served from memory and most polls end with a 304
+@Controller
+public class FeedController {
+
+    private final LinkFeeds linkFeeds;
+
+    public FeedController(LinkFeeds linkFeeds) {
+        this.linkFeeds = linkFeeds;
+    }
+
+    @GetMapping("/feed.atom")
+    public ResponseEntity<byte[]> atom(final WebRequest request) {
+        return serve(LinkFeeds.Format.ATOM, null, request);
+    }
+
+    @GetMapping("/feed.rss")
+    public ResponseEntity<byte[]> rss(final WebRequest request) {
+        return serve(LinkFeeds.Format.RSS, null, request);
+    }
+
+    @GetMapping("/feed/{category}.atom")
+    public ResponseEntity<byte[]> categoryAtom(@PathVariable("category") final String category, final WebRequest request) {
+        return serve(LinkFeeds.Format.ATOM, category, request);
+    }
+
+    @GetMapping("/feed/{category}.rss")
+    public ResponseEntity<byte[]> categoryRss(@PathVariable("category") final String category, final WebRequest request) {
+        return serve(LinkFeeds.Format.RSS, category, request);
+    }
+
+    private ResponseEntity<byte[]> serve(LinkFeeds.Format format, String category, WebRequest request) {
+        if (!linkFeeds.isLoaded()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        final LinkFeeds.Feed feed = linkFeeds.get(format, category);
+        if (feed == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        // readers must revalidate, which is cheap, so that new links show up on the next poll
+        final CacheControl cacheControl = CacheControl.noCache().cachePublic();
+        if (request.checkNotModified(feed.getEtag(), feed.getLastModified().toEpochMilli())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(cacheControl).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(format.getContentType() + ";charset=UTF-8"))
+                .cacheControl(cacheControl)
+                .body(feed.getContent());
+    }
+}
@@ -17,21 +17,30 @@
 
 package de.spinscale.linkrating.controller;
 
+import co.elastic.apm.api.Scope;
+import co.elastic.apm.api.Span;
 import de.spinscale.linkrating.AdminService;
+import de.spinscale.linkrating.DuplicateIndex;
+import de.spinscale.linkrating.ElasticsearchGuard;
+import de.spinscale.linkrating.LinkChangedEvent;
+import de.spinscale.linkrating.LinkMigration;
+import de.spinscale.linkrating.LinkReplica;
+import de.spinscale.linkrating.LinkSearchService;
+import de.spinscale.linkrating.Tracing;
+import de.spinscale.linkrating.VotedLinks;
 import de.spinscale.linkrating.entity.Link;
 import de.spinscale.linkrating.entity.User;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.TermQueryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
-import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.document.Document;
 import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
-import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.data.elasticsearch.core.query.UpdateResponse;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.core.user.OAuth2User;
@@ -45,21 +54,49 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Controller
+@Lazy(false)
 @RequestMapping(path = "/link")
 public class LinkController extends BaseController {
 
     private static final Logger logger = LoggerFactory.getLogger(LinkController.class);
+    // a popular link gets many concurrent votes, each of them is retried on a version conflict by Elasticsearch,
+    // and the vote count update is sent again after a short pause if all of those retries conflicted as well
+    private static final int VOTE_RETRY_ON_CONFLICT = 10;
+    private static final int VOTE_CONFLICT_RETRIES = 5;
+    private static final long VOTE_CONFLICT_RETRY_DELAY_MILLIS = 20;
+    private static final String ADD_VOTE_SCRIPT = "if (ctx._source.ids == null) { ctx._source.ids = [params.id]; } " +
+            "else if (ctx._source.ids.contains(params.id)) { ctx.op = 'noop'; } else { ctx._source.ids.add(params.id); }";
+    private static final String REMOVE_VOTE_SCRIPT = "int i = ctx._source.ids == null ? -1 : ctx._source.ids.indexOf(params.id); " +
+            "if (i < 0) { ctx.op = 'noop'; } else { ctx._source.ids.remove(i); }";
 
     private final ElasticsearchOperations elasticsearchRestTemplate;
+    private final LinkReplica linkReplica;
+    private final ApplicationEventPublisher eventPublisher;
+    private final DuplicateIndex duplicateIndex;
+    private final LinkSearchService linkSearchService;
+    private final VotedLinks votedLinks;
+    private final ElasticsearchGuard guard;
 
     @Inject
-    public LinkController(ElasticsearchOperations elasticsearchTemplate, AdminService adminService) {
+    public LinkController(ElasticsearchOperations elasticsearchTemplate, AdminService adminService,
+                          LinkReplica linkReplica, ApplicationEventPublisher eventPublisher, DuplicateIndex duplicateIndex,
+                          LinkSearchService linkSearchService, VotedLinks votedLinks, ElasticsearchGuard guard) {
         super(adminService.get());
         this.elasticsearchRestTemplate = elasticsearchTemplate;
+        this.linkReplica = linkReplica;
+        this.eventPublisher = eventPublisher;
+        this.duplicateIndex = duplicateIndex;
+        this.linkSearchService = linkSearchService;
+        this.votedLinks = votedLinks;
+        this.guard = guard;
     }
 
     // check out single entry
@@ -67,13 +104,32 @@ public class LinkController extends BaseController {
     public String show(@AuthenticationPrincipal final OAuth2User principal,
                        @PathVariable("id") final String id,
                        final Model model) {
-        final Link link = elasticsearchRestTemplate.get(id, Link.class);
+        // the replica only contains approved links, so fall back to elasticsearch for everything else
+        final Link replicatedLink = linkReplica.isReady() ? linkReplica.get(id) : null;
+        final Link link;
+        if (replicatedLink != null) {
+            link = replicatedLink;
+        } else {
+            final Span getSpan = Tracing.startSpan("app", "elasticsearch", "get", "get link");
+            try (Scope ignored = getSpan.activate()) {
+                link = guard.executeBlocking(() -> elasticsearchRestTemplate.get(id, Link.class));
+            } finally {
+                getSpan.end();
+            }
+        }
         // only admin can see an unapproved link!
         if (link != null && (link.isApproved() || isAdmin(principal))) {
             model.addAttribute("links", Collections.singletonList(link));
+            // precomputed on approval, so there is no additional query here
+            if (link.getRelated() != null && !link.getRelated().isEmpty()) {
+                model.addAttribute("related", link.getRelated());
+            }
         } else {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND);
         }
+        if (principal != null) {
+            model.addAttribute("voted", votedLinks.get(principal.getAttribute("login")));
+        }
 
         enrichModelWithPrincipal(model, principal);
         return "main";
@@ -85,30 +141,39 @@ public class LinkController extends BaseController {
                              @RequestParam("description") final String description,
                              @RequestParam("title") final String title,
                              @RequestParam("url") final String url,
-                             @RequestParam("category") final String category) {
-
-        final TermQueryBuilder qb = QueryBuilders.termQuery("url", url);
-        final SearchHit<Link> hit = elasticsearchRestTemplate.searchOne(new NativeSearchQuery(qb), Link.class);
-        if (hit == null) {
-            final BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery()
-                    .must(QueryBuilders.termQuery("submitted_by", principal.getAttribute("login")))
-                    .must(QueryBuilders.termQuery("approved", false));
-            final long linksSubmittedByUser = elasticsearchRestTemplate.count(new NativeSearchQuery(boolQueryBuilder), Link.class);
+                             @RequestParam("category") final String category) throws IOException {
+
+        final Link existingLink = linkSearchService.findByUrl(url);
+        if (existingLink == null) {
+            final long linksSubmittedByUser = linkSearchService.countPending(principal.getAttribute("login"));
             if (linksSubmittedByUser < 10) {
+                // the setters validate the input and strip any HTML
+                final Span sanitizeSpan = Tracing.startSpan("app", "link", "sanitize", "sanitize link");
                 Link link = new Link();
-                link.setCreatedAt(new Date());
-                link.setDescription(description);
-                link.setTitle(title);
-                link.setUrl(url);
-                link.setCategory(category);
-                link.setVotes(1L);
-                link.setApproved(false);
-                link.setSubmittedBy(principal.getAttribute("login"));
-                elasticsearchRestTemplate.save(link);
+                try {
+                    link.setCreatedAt(new Date());
+                    link.setDescription(description);
+                    link.setTitle(title);
+                    link.setUrl(url);
+                    link.setCategory(category);
+                    link.setVotes(1L);
+                    link.setApproved(false);
+                    link.setSubmittedBy(principal.getAttribute("login"));
+                } finally {
+                    sanitizeSpan.setLabel("input_length", description.length() + title.length() + url.length() + category.length()).end();
+                }
+                // exact url matches are caught above, this finds the same article under another url or with a slightly changed text
+                final long fingerprint = DuplicateIndex.fingerprint(link);
+                link.setDuplicateOf(duplicateIndex.findDuplicate(fingerprint));
+                final Link savedLink = LinkMigration.retryOnWriteBlock(() -> elasticsearchRestTemplate.save(link));
+                if (savedLink != null) {
+                    duplicateIndex.add(savedLink.getId(), fingerprint);
+                    eventPublisher.publishEvent(new LinkChangedEvent(this, savedLink.getId(), LinkChangedEvent.Type.SUBMITTED));
+                }
             }
         } else {
-            if (hit.getContent().isApproved()) {
-                return "redirect:/link/" + hit.getContent().getId();
+            if (existingLink.isApproved()) {
+                return "redirect:/link/" + existingLink.getId();
             }
         }
 
@@ -124,33 +189,33 @@ public class LinkController extends BaseController {
                        @RequestHeader(value = "referer", required = false) final String referer) {
         String username = principal.getAttribute("login");
 
-        // this can be optimized A LOT by executing a count request and then run an update request for the user
-        // this requires a full serialization/deserialization circle and thus is highly ineffective
-        // OTOH voting will not happen super often
-        User user = elasticsearchRestTemplate.get(username, User.class);
-        final boolean hasUserAlreadyVoted;
-        if (user == null) {
-            user = new User();
-            user.setId(username);
-            hasUserAlreadyVoted = false;
-        } else {
-            hasUserAlreadyVoted = user.getIds().contains(id);
-        }
-        if (!hasUserAlreadyVoted) {
-            // store new user or update
-            if (user.getIds() == null) {
-                user.setIds(Collections.singletonList(id));
-            } else {
-                user.getIds().add(id);
-            }
-            elasticsearchRestTemplate.save(user);
-
+        // the user document is only read to skip the updates for a repeated vote, whether a vote counts is decided
+        // by the scripted update of the user document, so that concurrent votes of the same user count once
+        final User user = guard.executeBlocking(() -> elasticsearchRestTemplate.get(username, User.class));
+        final List<String> ids = user == null || user.getIds() == null ? new ArrayList<>() : new ArrayList<>(user.getIds());
+        if (!ids.contains(id) && addVote(username, id)) {
             // increment vote count on link via script, so that concurrent updates would work
-            final UpdateQuery updateQuery = UpdateQuery.builder(id).withLang("painless").withScript("ctx._source.votes = ctx._source.votes + 1;").withRetryOnConflict(3).withRefresh(UpdateQuery.Refresh.True).build();
-            elasticsearchRestTemplate.update(updateQuery, IndexCoordinates.of("links"));
+            final UpdateQuery updateQuery = UpdateQuery.builder(id).withLang("painless").withScript("ctx._source.votes = ctx._source.votes + 1;").withRetryOnConflict(VOTE_RETRY_ON_CONFLICT).withRefresh(UpdateQuery.Refresh.True).build();
+            try {
+                incrementVotes(updateQuery);
+            } catch (RuntimeException e) {
+                // a vote that was not counted must not stop the user from voting again
+                try {
+                    removeVote(username, id);
+                } catch (RuntimeException rollbackException) {
+                    logger.error("could not remove uncounted vote of user [{}] for id [{}]", username, id, rollbackException);
+                }
+                throw e;
+            }
+            eventPublisher.publishEvent(new LinkChangedEvent(this, id, LinkChangedEvent.Type.VOTED));
         } else {
-            logger.info("user [{}] tried to vote a second time for id [{}]", user.getId(), id);
+            logger.info("user [{}] tried to vote a second time for id [{}]", username, id);
         }
+        if (!ids.contains(id)) {
+            ids.add(id);
+        }
+        // also refreshes the voted links after votes on another instance
+        votedLinks.put(username, ids);
 
         // redirect after post baby
         if (referer != null && referer.contains(id)) {
@@ -164,7 +229,8 @@ public class LinkController extends BaseController {
     public String delete(@AuthenticationPrincipal OAuth2User principal, @PathVariable("id") final String id) {
         ensureAdmin(principal);
         // possibly we could refresh here, so that the document is missing immediately afer the refresh
-        elasticsearchRestTemplate.delete(id, Link.class);
+        LinkMigration.retryOnWriteBlock(() -> guard.executeBlocking(() -> elasticsearchRestTemplate.delete(id, Link.class)));
+        eventPublisher.publishEvent(new LinkChangedEvent(this, id, LinkChangedEvent.Type.DELETED));
         return "redirect:/";
     }
 
@@ -176,8 +242,54 @@ public class LinkController extends BaseController {
                 .withRefresh(UpdateQuery.Refresh.True)
                 .withDocument(Document.from(Collections.singletonMap("approved", true)))
                 .build();
-        elasticsearchRestTemplate.update(updateQuery, IndexCoordinates.of("links"));
+        LinkMigration.retryOnWriteBlock(() -> guard.executeBlocking(() -> elasticsearchRestTemplate.update(updateQuery, IndexCoordinates.of("links"))));
+        eventPublisher.publishEvent(new LinkChangedEvent(this, id, LinkChangedEvent.Type.APPROVED));
 
         return "redirect:/unapproved";
     }
+
+    // false if the id has been added by a concurrent vote of the same user, the user document is created on the first vote
+    private boolean addVote(String username, String id) {
+        final UpdateQuery updateQuery = UpdateQuery.builder(username)
+                .withLang("painless")
+                .withScript(ADD_VOTE_SCRIPT)
+                .withParams(Collections.singletonMap("id", id))
+                .withUpsert(Document.from(Collections.singletonMap("ids", Collections.singletonList(id))))
+                .withRetryOnConflict(VOTE_RETRY_ON_CONFLICT)
+                .build();
+        final UpdateResponse response = guard.executeBlocking(() -> elasticsearchRestTemplate.update(updateQuery, IndexCoordinates.of("users")));
+        return response.getResult() != UpdateResponse.Result.NOOP;
+    }
+
+    // a version conflict means the increment was not applied, so it is safe to send it again
+    private void incrementVotes(UpdateQuery updateQuery) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                LinkMigration.retryOnWriteBlock(() -> guard.executeBlocking(() -> elasticsearchRestTemplate.update(updateQuery, IndexCoordinates.of("links"))));
+                return;
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= VOTE_CONFLICT_RETRIES) {
+                    throw e;
+                }
+                logger.debug("conflict updating vote count of link [{}], retrying", updateQuery.getId());
+                try {
+                    // spreads the retries of requests that conflicted with each other
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(VOTE_CONFLICT_RETRY_DELAY_MILLIS * attempt) + 1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void removeVote(String username, String id) {
+        final UpdateQuery updateQuery = UpdateQuery.builder(username)
+                .withLang("painless")
+                .withScript(REMOVE_VOTE_SCRIPT)
+                .withParams(Collections.singletonMap("id", id))
+                .withRetryOnConflict(VOTE_RETRY_ON_CONFLICT)
+                .build();
+        guard.executeBlocking(() -> elasticsearchRestTemplate.update(updateQuery, IndexCoordinates.of("users")));
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating.controller;
+
+import de.spinscale.linkrating.AdminService;
+import de.spinscale.linkrating.SavedSearches;
+import org.elasticsearch.common.inject.Inject;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
+
+// saved searches and the approved links matching them, only for logged in users
+@Controller
+public class SavedSearchController extends BaseController {
+
+    private final SavedSearches savedSearches;
+
+    @Inject
+    public SavedSearchController(AdminService adminService, SavedSearches savedSearches) {
+        super(adminService.get());
+        this.savedSearches = savedSearches;
+    }
+
+    @GetMapping("/inbox")
+    public String inbox(@AuthenticationPrincipal final OAuth2User principal, final Model model) {
+        final String login = login(principal);
+        model.addAttribute("entries", savedSearches.inbox(login));
+        model.addAttribute("searches", savedSearches.list(login));
+        model.addAttribute("max_searches", SavedSearches.MAX_PER_USER);
+        enrichModelWithPrincipal(model, principal);
+        return "inbox";
+    }
+
+    @PostMapping("/searches")
+    public String save(@AuthenticationPrincipal final OAuth2User principal,
+                       @RequestParam(value = "q", required = false) final String q,
+                       @RequestParam(value = "category", required = false) final String category) {
+        final String login = login(principal);
+        try {
+            savedSearches.save(login, q, category);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        return "redirect:/inbox";
+    }
+
+    @PostMapping("/searches/{id}/delete")
+    public String delete(@AuthenticationPrincipal final OAuth2User principal, @PathVariable("id") final String id) {
+        if (!savedSearches.delete(login(principal), id)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        return "redirect:/inbox";
+    }
+
+    private static String login(OAuth2User principal) {
+        if (principal == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        return principal.getAttribute("login");
+    }
+}
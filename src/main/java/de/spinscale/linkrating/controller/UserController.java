@@ -18,22 +18,16 @@
 package de.spinscale.linkrating.controller;
 
 import de.spinscale.linkrating.AdminService;
+import de.spinscale.linkrating.LinkReplica;
+import de.spinscale.linkrating.LinkSearchResult;
+import de.spinscale.linkrating.LinkSearchService;
+import de.spinscale.linkrating.VotedLinks;
 import de.spinscale.linkrating.entity.Link;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.DistanceFeatureQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.RankFeatureQueryBuilders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Sort;
-import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
-import org.springframework.data.elasticsearch.core.SearchHit;
-import org.springframework.data.elasticsearch.core.SearchHits;
-import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
-import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.stereotype.Controller;
@@ -42,38 +36,55 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
+// serves the front page, so it must not be lazily initialized in the fast-start profile
 @Controller
+@Lazy(false)
 @RequestMapping(path = "/")
 public class UserController extends BaseController {
 
     private static final Logger logger = LoggerFactory.getLogger(UserController.class);
 
-    private ElasticsearchOperations elasticsearchRestTemplate;
+    private final LinkReplica linkReplica;
+    private final LinkSearchService linkSearchService;
+    private final VotedLinks votedLinks;
 
     @Inject
-    public UserController(ElasticsearchOperations elasticsearchTemplate, AdminService adminService) {
+    public UserController(AdminService adminService, LinkReplica linkReplica, LinkSearchService linkSearchService,
+                          VotedLinks votedLinks) {
         super(adminService.get());
-        this.elasticsearchRestTemplate = elasticsearchTemplate;
+        this.linkReplica = linkReplica;
+        this.linkSearchService = linkSearchService;
+        this.votedLinks = votedLinks;
     }
 
     @GetMapping
     public String main(@AuthenticationPrincipal OAuth2User principal,
                        @RequestParam(value = "q", required = false) final String q,
+                       @RequestParam(value = "sort", required = false) final String sort,
                        final Model model) {
+        final boolean trending = "trending".equals(sort);
+        model.addAttribute("sort", trending ? "trending" : "top");
+        if (principal != null) {
+            model.addAttribute("voted", votedLinks.get(principal.getAttribute("login")));
+        }
+        // full text queries always go to elasticsearch, the default listing and single keywords can be served from memory.
+        // The replica does not know about the vote velocity, so trending always goes to elasticsearch as well
+        if (!trending && linkReplica.isReady() && (!Strings.hasLength(q) || LinkReplica.isSimpleQuery(q))) {
+            model.addAttribute("links", Strings.hasLength(q) ? linkReplica.search(q) : linkReplica.ranked());
+            model.addAttribute("q", q);
+            enrichModelWithPrincipal(model, principal);
+            return "main";
+        }
+
         try {
-            final BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery()
-                    .must(QueryBuilders.termQuery("approved", true))
-                    .should(QueryBuilders.distanceFeatureQuery("created_at", new DistanceFeatureQueryBuilder.Origin("now"), "7d"))
-                    .should(RankFeatureQueryBuilders.saturation("votes.rank"));
-            if (Strings.hasLength(q)) {
-                queryBuilder.must(QueryBuilders.multiMatchQuery(q, "title", "description").minimumShouldMatch("66%"));
-            }
-            Query query = new NativeSearchQuery(queryBuilder);
-            model.addAttribute("links", search(query));
+            final LinkSearchResult result = trending ? linkSearchService.searchTrending(q) : linkSearchService.searchRanked(q);
+            model.addAttribute("links", result.getLinks());
+            model.addAttribute("stale", result.isStale());
+            model.addAttribute("partial", result.isPartial());
         } catch (Exception e) {
             logger.error("error querying for [" + q + "]", e);
             model.addAttribute("links", Collections.<Link>emptyList());
@@ -85,25 +96,12 @@ public class UserController extends BaseController {
 
     // list unapproved links, this should only be reachable by an admin
     @GetMapping("unapproved")
-    public String showUnapproved(@AuthenticationPrincipal OAuth2User principal, final Model model) {
+    public String showUnapproved(@AuthenticationPrincipal OAuth2User principal, final Model model) throws IOException {
         ensureAdmin(principal);
         enrichModelWithPrincipal(model, principal);
 
-        Query query = new NativeSearchQuery(QueryBuilders.termQuery("approved", false))
-                .setPageable(PageRequest.of(0, 50))
-                .addSort(Sort.by(new Sort.Order(Sort.Direction.DESC, "created_at")));
-
-        model.addAttribute("links", search(query));
+        model.addAttribute("links", linkSearchService.searchUnapproved());
 
         return "main";
     }
-
-    private List<Link> search(Query query) {
-        final SearchHits<Link> result = elasticsearchRestTemplate.search(query, Link.class);
-        if (result.isEmpty()) {
-            return Collections.emptyList();
-        }
-        final List<Link> links = result.getSearchHits().stream().map(SearchHit::getContent).collect(Collectors.toList());
-        return links;
-    }
-}
\ No newline at end of file
+}
@@ -34,6 +34,7 @@ import java.time.Period;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 @Document(indexName = "links", shards = 1, versionType = VersionType.INTERNAL,  createIndex = false)
@@ -64,6 +65,14 @@ public class Link {
     @Field(type = FieldType.Long)
     private Long votes;
 
+    // id of a very similar link found on submission, only shown to admins
+    @Field(name = "duplicate_of", type = FieldType.Keyword)
+    private String duplicateOf;
+
+    // computed once the link gets approved, see RelatedLinks
+    @Field(type = FieldType.Object)
+    private List<RelatedLink> related;
+
     public Link() {}
 
     public Link(String title, String description, String url, String category,
@@ -139,6 +148,19 @@ public class Link {
         return createdAt;
     }
 
+    // lower cased, null for URLs without a host
+    public String getHost() {
+        if (url == null) {
+            return null;
+        }
+        try {
+            final String host = new URL(url).getHost();
+            return host.isEmpty() ? null : host.toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
     public String getAgo() {
         return ago(ZonedDateTime.now(ZoneOffset.UTC) ,createdAt.toInstant().atZone(ZoneOffset.UTC));
     }
@@ -201,6 +223,22 @@ public class Link {
         return approved;
     }
 
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    public void setDuplicateOf(String duplicateOf) {
+        this.duplicateOf = duplicateOf;
+    }
+
+    public List<RelatedLink> getRelated() {
+        return related;
+    }
+
+    public void setRelated(List<RelatedLink> related) {
+        this.related = related;
+    }
+
     public String getSubmittedBy() {
         return submittedBy;
     }
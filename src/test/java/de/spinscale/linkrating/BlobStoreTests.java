@@ -0,0 +1,112 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlobStoreTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        try (BlobStore store = new BlobStore(directory.resolve("store.bin"), 1024, 4096)) {
+            assertThat(store.put("example.org", bytes("icon"))).isTrue();
+            assertThat(store.put("empty.org", new byte[0])).isTrue();
+            // written once only
+            assertThat(store.put("example.org", bytes("other"))).isFalse();
+
+            assertThat(store.get("example.org")).isEqualTo(bytes("icon"));
+            assertThat(store.get("empty.org")).isEmpty();
+            assertThat(store.get("unknown.org")).isNull();
+            assertThat(store.contains("empty.org")).isTrue();
+            assertThat(store.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testReopenRebuildsIndex() throws Exception {
+        final Path file = directory.resolve("store.bin");
+        try (BlobStore store = new BlobStore(file, 1024, 4096)) {
+            store.put("example.org", bytes("icon"));
+            store.put("elastic.co", bytes("another icon"));
+        }
+        try (BlobStore store = new BlobStore(file, 1024, 4096)) {
+            assertThat(store.size()).isEqualTo(2);
+            assertThat(store.get("elastic.co")).isEqualTo(bytes("another icon"));
+            // appends after the existing records
+            assertThat(store.put("spring.io", bytes("third"))).isTrue();
+            assertThat(store.get("example.org")).isEqualTo(bytes("icon"));
+        }
+    }
+
+    @Test
+    public void testCorruptRecordEndsLoading() throws Exception {
+        final Path file = directory.resolve("store.bin");
+        try (BlobStore store = new BlobStore(file, 1024, 4096)) {
+            store.put("example.org", bytes("icon"));
+            store.put("elastic.co", bytes("another icon"));
+        }
+        // flip a byte in the value of the second record
+        final int offset = 12 + "example.org".length() + 4 + 12 + "elastic.co".length();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes("X")), offset);
+        }
+        try (BlobStore store = new BlobStore(file, 1024, 4096)) {
+            assertThat(store.size()).isEqualTo(1);
+            assertThat(store.get("example.org")).isEqualTo(bytes("icon"));
+            assertThat(store.get("elastic.co")).isNull();
+            // the broken record is overwritten
+            assertThat(store.put("elastic.co", bytes("fixed"))).isTrue();
+        }
+        try (BlobStore store = new BlobStore(file, 1024, 4096)) {
+            assertThat(store.get("elastic.co")).isEqualTo(bytes("fixed"));
+        }
+    }
+
+    @Test
+    public void testGrowsUpToMaxSize() throws Exception {
+        try (BlobStore store = new BlobStore(directory.resolve("store.bin"), 64, 256)) {
+            final byte[] value = new byte[40];
+            int written = 0;
+            while (store.put("host" + written, value)) {
+                written++;
+            }
+            // every record takes 12 bytes of header, 5 bytes of key and the value
+            assertThat(written).isEqualTo(256 / 57);
+            for (int i = 0; i < written; i++) {
+                assertThat(store.get("host" + i)).hasSize(40);
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
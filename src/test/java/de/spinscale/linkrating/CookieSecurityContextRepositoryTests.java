@@ -0,0 +1,123 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+import org.springframework.security.oauth2.core.user.OAuth2UserAuthority;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+
+import javax.servlet.http.Cookie;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CookieSecurityContextRepositoryTests {
+
+    private final SessionCookieCodec codec = new SessionCookieCodec(new byte[32]);
+    private final AdminService adminService = new AdminService("admin");
+    private final Instant now = Instant.parse("2020-10-01T10:00:00Z");
+    private final CookieSecurityContextRepository repository = repository(now);
+
+    @Test
+    public void testRoundTrip() {
+        final SecurityContext context = load(repository, writeCookie("admin"));
+        assertThat(context.getAuthentication()).isInstanceOf(OAuth2AuthenticationToken.class);
+        final OAuth2User user = (OAuth2User) context.getAuthentication().getPrincipal();
+        assertThat(user.getName()).isEqualTo("1234");
+        assertThat((String) user.getAttribute("login")).isEqualTo("admin");
+        assertThat((String) user.getAttribute("avatar_url")).isEqualTo("https://example.org/admin.png");
+        assertThat(context.getAuthentication().getAuthorities()).extracting(GrantedAuthority::getAuthority).contains("ROLE_ADMIN");
+    }
+
+    @Test
+    public void testNonAdminHasNoAdminRole() {
+        final SecurityContext context = load(repository, writeCookie("someone"));
+        assertThat(context.getAuthentication().getAuthorities()).extracting(GrantedAuthority::getAuthority).doesNotContain("ROLE_ADMIN");
+    }
+
+    @Test
+    public void testTamperedCookieIsIgnored() {
+        final String cookie = writeCookie("someone");
+        final char[] chars = cookie.toCharArray();
+        chars[chars.length / 2] = chars[chars.length / 2] == 'A' ? 'B' : 'A';
+
+        assertThat(load(repository, new String(chars)).getAuthentication()).isNull();
+        // a cookie encrypted with another key is ignored as well
+        final SessionCookieCodec otherCodec = new SessionCookieCodec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+        final CookieSecurityContextRepository other = new CookieSecurityContextRepository(otherCodec, adminService, Duration.ofHours(12),
+                Clock.fixed(now, ZoneOffset.UTC));
+        assertThat(load(other, cookie).getAuthentication()).isNull();
+    }
+
+    @Test
+    public void testExpiredCookieIsIgnored() {
+        final String cookie = writeCookie("someone");
+        assertThat(load(repository(now.plus(Duration.ofHours(13))), cookie).getAuthentication()).isNull();
+    }
+
+    @Test
+    public void testCookieIsRenewedAfterHalfOfItsLifetime() {
+        final String cookie = writeCookie("someone");
+
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        repository(now.plus(Duration.ofHours(1))).loadContext(new HttpRequestResponseHolder(request(cookie), response));
+        assertThat(response.getHeader("Set-Cookie")).isNull();
+
+        repository(now.plus(Duration.ofHours(7))).loadContext(new HttpRequestResponseHolder(request(cookie), response));
+        assertThat(response.getHeader("Set-Cookie")).startsWith(CookieSecurityContextRepository.COOKIE_NAME + "=");
+    }
+
+    private String writeCookie(String login) {
+        final Map<String, Object> attributes = Map.of("id", 1234, "login", login, "avatar_url", "https://example.org/" + login + ".png");
+        final List<GrantedAuthority> authorities = List.of(new OAuth2UserAuthority(attributes));
+        final Authentication authentication = new OAuth2AuthenticationToken(new DefaultOAuth2User(authorities, attributes, "id"), authorities, "github");
+
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        repository.writeCookie(new MockHttpServletRequest(), response, authentication);
+        final String header = response.getHeader("Set-Cookie");
+        assertThat(header).startsWith(CookieSecurityContextRepository.COOKIE_NAME + "=").contains("HttpOnly", "SameSite=Lax");
+        return header.substring(CookieSecurityContextRepository.COOKIE_NAME.length() + 1, header.indexOf(';'));
+    }
+
+    private static SecurityContext load(CookieSecurityContextRepository repository, String cookie) {
+        return repository.loadContext(new HttpRequestResponseHolder(request(cookie), new MockHttpServletResponse()));
+    }
+
+    private static MockHttpServletRequest request(String cookie) {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(CookieSecurityContextRepository.COOKIE_NAME, cookie));
+        return request;
+    }
+
+    private CookieSecurityContextRepository repository(Instant instant) {
+        return new CookieSecurityContextRepository(codec, adminService, Duration.ofHours(12), Clock.fixed(instant, ZoneOffset.UTC));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiscardCountingAsyncAppenderTests {
+
+    private final LoggerContext context = new LoggerContext();
+    private final Logger logger = context.getLogger(DiscardCountingAsyncAppenderTests.class);
+
+    @Test
+    public void testInfoIsDiscardedButErrorIsKept() throws Exception {
+        final BlockingAppender blockingAppender = new BlockingAppender();
+        blockingAppender.setContext(context);
+        blockingAppender.start();
+
+        final DiscardCountingAsyncAppender appender = new DiscardCountingAsyncAppender();
+        appender.setContext(context);
+        appender.setQueueSize(10);
+        appender.setDiscardingThreshold(5);
+        appender.addAppender(blockingAppender);
+        appender.start();
+
+        // the worker takes the first event and blocks, so the queue is empty afterwards
+        appender.doAppend(event(Level.INFO, "first"));
+        assertThat(blockingAppender.entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // six events fit until the remaining capacity is below the threshold of five
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(event(Level.INFO, "info " + i));
+        }
+        assertThat(appender.getNumberOfElementsInQueue()).isEqualTo(6);
+        assertThat(appender.getDiscardedCount()).isEqualTo(4);
+
+        appender.doAppend(event(Level.ERROR, "error"));
+        assertThat(appender.getDiscardedCount()).isEqualTo(4);
+
+        blockingAppender.release.countDown();
+        appender.stop();
+        assertThat(blockingAppender.messages).hasSize(8).contains("first", "error");
+    }
+
+    @Test
+    public void testDiscardLevelNeverIncludesError() {
+        final DiscardCountingAsyncAppender appender = new DiscardCountingAsyncAppender();
+        assertThat(appender.getDiscardLevel()).isEqualTo(Level.INFO);
+
+        appender.setDiscardLevel("ERROR");
+        assertThat(appender.getDiscardLevel()).isEqualTo(Level.WARN);
+
+        appender.setDiscardLevel("debug");
+        assertThat(appender.getDiscardLevel()).isEqualTo(Level.DEBUG);
+    }
+
+    private ILoggingEvent event(Level level, String message) {
+        return new LoggingEvent(DiscardCountingAsyncAppenderTests.class.getName(), logger, level, message, null, null);
+    }
+
+    private static class BlockingAppender extends AppenderBase<ILoggingEvent> {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            messages.add(event.getMessage());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.mock;
+
+public class DuplicateIndexTests {
+
+    private static final String TITLE = "Slow Query Logging for Elasticsearch and Elastic Cloud";
+    private static final String DESCRIPTION = "How do you log slow queries in Elasticsearch and especially on Elastic Cloud?";
+
+    private final DuplicateIndex index = new DuplicateIndex(mock(ElasticsearchOperations.class), 3);
+
+    @Test
+    public void testNearDuplicatesAreFound() {
+        index.add("original", DuplicateIndex.fingerprint(link(TITLE, DESCRIPTION)));
+        index.add("other", DuplicateIndex.fingerprint(link("Custom Domains and Anonymous Access on Elastic Cloud",
+                "Two common requests for Elastic Cloud are custom domain names and anonymous Kibana access")));
+
+        // case and punctuation do not matter
+        assertThat(index.findDuplicate(DuplicateIndex.fingerprint(link(TITLE.toLowerCase(), "- " + DESCRIPTION.replace("?", "")))))
+                .isEqualTo("original");
+        // a slightly edited description is still close enough
+        assertThat(index.findDuplicate(DuplicateIndex.fingerprint(link(TITLE, DESCRIPTION.replace(" and ", ", ")))))
+                .isEqualTo("original");
+        assertThat(index.findDuplicate(DuplicateIndex.fingerprint(link("Testing & releasing the Elastic stack",
+                "Elasticsearch is well known piece of software")))).isNull();
+    }
+
+    @Test
+    public void testRemove() {
+        final long fingerprint = DuplicateIndex.fingerprint(link(TITLE, DESCRIPTION));
+        index.add("original", fingerprint);
+        assertThat(index.findDuplicate(fingerprint)).isEqualTo("original");
+
+        index.onApplicationEvent(new LinkChangedEvent(this, "original", LinkChangedEvent.Type.DELETED));
+        assertThat(index.findDuplicate(fingerprint)).isNull();
+        assertThat(index.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testClosestFingerprintWins() {
+        final long fingerprint = 0x1234_5678_9abc_def0L;
+        // three bits differ, but every band is changed at most once
+        index.add("far", fingerprint ^ 0x0001_0001_0001_0000L);
+        index.add("close", fingerprint ^ 0x0000_0000_0000_0001L);
+        index.add("too_far", fingerprint ^ 0x000f_0000_0000_0000L);
+
+        assertThat(index.findDuplicate(fingerprint)).isEqualTo("close");
+        index.remove("close");
+        assertThat(index.findDuplicate(fingerprint)).isEqualTo("far");
+        index.remove("far");
+        assertThat(index.findDuplicate(fingerprint)).isNull();
+    }
+
+    @Test
+    public void testMaxDistanceIsLimitedByBands() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new DuplicateIndex(mock(ElasticsearchOperations.class), DuplicateIndex.BANDS));
+    }
+
+    private static Link link(String title, String description) {
+        return new Link(title, description, "https://example.org", "elasticsearch", new Date(), 1L, false, "user");
+    }
+}
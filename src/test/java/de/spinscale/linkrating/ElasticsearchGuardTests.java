@@ -0,0 +1,233 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.elasticsearch.UncategorizedElasticsearchException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ElasticsearchGuardTests {
+
+    private final AtomicReference<Instant> now = new AtomicReference<>(Instant.parse("2020-10-01T10:00:00Z"));
+    private final Clock clock = new Clock() {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now.get();
+        }
+    };
+
+    private final ElasticsearchGuard guard = new ElasticsearchGuard(2, Duration.ofMillis(200), 3, Duration.ofSeconds(10), clock);
+
+    @Test
+    public void testReturnsResult() throws Exception {
+        assertThat(guard.execute(succeeding("result"))).isEqualTo("result");
+    }
+
+    @Test
+    public void testBlockingCallsShareCircuit() throws Exception {
+        assertThat(guard.executeBlocking(() -> "result")).isEqualTo("result");
+
+        // answered by the cluster, so it does not count
+        for (int i = 0; i < 3; i++) {
+            assertThatExceptionOfType(UncategorizedElasticsearchException.class).isThrownBy(() -> guard.executeBlocking(() -> {
+                throw new UncategorizedElasticsearchException("not found", new ElasticsearchStatusException("not found", RestStatus.NOT_FOUND));
+            }));
+        }
+        assertThat(guard.isOpen()).isFalse();
+
+        for (int i = 0; i < 3; i++) {
+            assertThatExceptionOfType(DataAccessResourceFailureException.class).isThrownBy(() -> guard.executeBlocking(() -> {
+                throw new DataAccessResourceFailureException("connection refused");
+            }));
+        }
+        assertThat(guard.isOpen()).isTrue();
+        // async calls are rejected as well
+        assertThatExceptionOfType(IOException.class).isThrownBy(() -> guard.execute(succeeding("result")));
+        assertThatExceptionOfType(DataAccessResourceFailureException.class)
+                .isThrownBy(() -> guard.executeBlocking(() -> "result"))
+                .withMessageContaining("circuit to Elasticsearch is open");
+
+        now.set(now.get().plusSeconds(11));
+        assertThat(guard.executeBlocking(() -> "result")).isEqualTo("result");
+        assertThat(guard.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testBlockingCallsAreRejectedBeyondConcurrencyLimit() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                futures.add(executor.submit(() -> guard.executeBlocking(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "done";
+                })));
+            }
+            started.await();
+            assertThatExceptionOfType(DataAccessResourceFailureException.class)
+                    .isThrownBy(() -> guard.executeBlocking(() -> "result"))
+                    .withMessageContaining("too many concurrent requests");
+            release.countDown();
+            for (Future<String> future : futures) {
+                assertThat(future.get()).isEqualTo("done");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRequestIsCancelledWhenTimeBudgetIsUsedUp() {
+        final Cancellable cancellable = mock(Cancellable.class);
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> guard.execute(listener -> cancellable))
+                .withMessageContaining("did not finish within");
+        verify(cancellable).cancel();
+    }
+
+    @Test
+    public void testRejectsRequestsBeyondConcurrencyLimit() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ElasticsearchGuard slowGuard = new ElasticsearchGuard(2, Duration.ofSeconds(10), 3, Duration.ofSeconds(10), clock);
+            final ElasticsearchGuard.AsyncCall<String> blocking = listener -> {
+                started.countDown();
+                new Thread(() -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    listener.onResponse("done");
+                }).start();
+                return mock(Cancellable.class);
+            };
+            final Future<String> first = executor.submit(() -> slowGuard.execute(blocking));
+            final Future<String> second = executor.submit(() -> slowGuard.execute(blocking));
+            started.await();
+
+            // no waiting for a free slot, the caller gets an exception right away
+            assertThatExceptionOfType(IOException.class)
+                    .isThrownBy(() -> slowGuard.execute(succeeding("third")))
+                    .withMessageContaining("too many concurrent requests");
+
+            release.countDown();
+            assertThat(first.get()).isEqualTo("done");
+            assertThat(second.get()).isEqualTo("done");
+            assertThat(slowGuard.execute(succeeding("fourth"))).isEqualTo("fourth");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCircuitOpensAfterConsecutiveFailures() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final ElasticsearchGuard.AsyncCall<String> failing = listener -> {
+            calls.incrementAndGet();
+            listener.onFailure(new ConnectException("connection refused"));
+            return mock(Cancellable.class);
+        };
+        for (int i = 0; i < 3; i++) {
+            assertThatExceptionOfType(ConnectException.class).isThrownBy(() -> guard.execute(failing));
+        }
+        assertThat(guard.isOpen()).isTrue();
+
+        // requests are not even sent while the circuit is open
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> guard.execute(failing))
+                .withMessageContaining("circuit to Elasticsearch is open");
+        assertThat(calls).hasValue(3);
+
+        // a failed trial request opens the circuit again
+        now.set(now.get().plusSeconds(11));
+        assertThatExceptionOfType(ConnectException.class).isThrownBy(() -> guard.execute(failing));
+        assertThat(calls).hasValue(4);
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> guard.execute(succeeding("result")))
+                .withMessageContaining("circuit to Elasticsearch is open");
+
+        // a successful trial request closes it
+        now.set(now.get().plusSeconds(11));
+        assertThat(guard.execute(succeeding("result"))).isEqualTo("result");
+        assertThat(guard.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testBadRequestsDoNotOpenCircuit() {
+        final ElasticsearchGuard.AsyncCall<String> badRequest = listener -> {
+            listener.onFailure(new ElasticsearchStatusException("parsing_exception", RestStatus.BAD_REQUEST));
+            return mock(Cancellable.class);
+        };
+        for (int i = 0; i < 5; i++) {
+            assertThatExceptionOfType(ElasticsearchStatusException.class).isThrownBy(() -> guard.execute(badRequest));
+        }
+        assertThat(guard.isOpen()).isFalse();
+    }
+
+    private static <T> ElasticsearchGuard.AsyncCall<T> succeeding(T result) {
+        return listener -> {
+            listener.onResponse(result);
+            return mock(Cancellable.class);
+        };
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.controller.ExportController;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static de.spinscale.linkrating.LinkControllerTests.createUser;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ExportControllerTests {
+
+    private final LinkExporter linkExporter = mock(LinkExporter.class);
+    private final ExportController controller = new ExportController(new AdminService("admin"), linkExporter);
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    @Test
+    public void testExportRequiresAdmin() throws Exception {
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.export(null, "ndjson", response))
+                .withMessage("404 NOT_FOUND");
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.export(createUser("user"), "ndjson", response))
+                .withMessage("404 NOT_FOUND");
+        verify(linkExporter, never()).export(any(), any());
+    }
+
+    @Test
+    public void testExportCsv() throws Exception {
+        controller.export(createUser("admin"), "csv", response);
+
+        assertThat(response.getContentType()).startsWith("text/csv");
+        assertThat(response.getHeader("Content-Disposition")).startsWith("attachment; filename=\"links-").endsWith(".csv\"");
+        verify(linkExporter).export(eq(LinkExporter.Format.CSV), any());
+    }
+
+    @Test
+    public void testUnknownFormat() {
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.export(createUser("admin"), "xml", response))
+                .withMessageContaining("400 BAD_REQUEST");
+    }
+
+    @Test
+    public void testNdjsonRows() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LinkExporter.NdjsonWriter writer = new LinkExporter.NdjsonWriter(out);
+        writer.writeRow("1", source("Title \"quoted\"", 3));
+        writer.writeRow("2", source("Another", 1));
+        writer.finish();
+
+        final String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertThat(lines).containsExactly(
+                "{\"id\":\"1\",\"title\":\"Title \\\"quoted\\\"\",\"url\":\"https://example.org\",\"votes\":3,\"related\":[{\"id\":\"2\"}]}",
+                "{\"id\":\"2\",\"title\":\"Another\",\"url\":\"https://example.org\",\"votes\":1,\"related\":[{\"id\":\"2\"}]}");
+    }
+
+    @Test
+    public void testCsvRows() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LinkExporter.CsvWriter writer = new LinkExporter.CsvWriter(out);
+        writer.writeRow("1", source("Title, with \"quotes\"", 3));
+        writer.finish();
+
+        final String[] lines = out.toString(StandardCharsets.UTF_8).split("\r\n");
+        assertThat(lines).containsExactly(
+                "id,title,description,url,category,submitted_by,created_at,approved,votes",
+                "1,\"Title, with \"\"quotes\"\"\",,https://example.org,,,,,3");
+    }
+
+    @Test
+    public void testCsvFormulasAreNotExecuted() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LinkExporter.CsvWriter writer = new LinkExporter.CsvWriter(out);
+        writer.writeRow("1", source("=HYPERLINK(\"https://evil.example\",\"click\")", 3));
+        writer.finish();
+
+        assertThat(out.toString(StandardCharsets.UTF_8).split("\r\n")[1])
+                .startsWith("1,\"'=HYPERLINK(\"\"https://evil.example\"\",\"\"click\"\")\",");
+        for (String value : new String[] { "+1", "-1", "@SUM(A1)", "\tcmd", "\rcmd" }) {
+            assertThat(LinkExporter.CsvWriter.escape(value)).isEqualTo("\"'" + value + "\"");
+        }
+        assertThat(LinkExporter.CsvWriter.escape("a - b")).isEqualTo("a - b");
+    }
+
+    private static Map<String, Object> source(String title, int votes) {
+        final Map<String, Object> source = new LinkedHashMap<>();
+        source.put("title", title);
+        source.put("url", "https://example.org");
+        source.put("votes", votes);
+        source.put("related", List.of(Map.of("id", "2")));
+        return source;
+    }
+}
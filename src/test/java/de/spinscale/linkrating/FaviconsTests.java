@@ -0,0 +1,235 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import com.sun.net.httpserver.HttpServer;
+import de.spinscale.linkrating.controller.FaviconController;
+import de.spinscale.linkrating.entity.Link;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class FaviconsTests {
+
+    @TempDir
+    Path directory;
+
+    private final Map<String, byte[]> icons = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private Favicons favicons;
+
+    @BeforeEach
+    public void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            final String path = exchange.getRequestURI().getPath();
+            if (path.equals("/favicon.ico") && icons.containsKey("redirect")) {
+                exchange.getResponseHeaders().add("Location", "/static/icon.png");
+                exchange.sendResponseHeaders(301, -1);
+            } else if (icons.containsKey(path)) {
+                final byte[] icon = icons.get(path);
+                exchange.sendResponseHeaders(200, icon.length);
+                exchange.getResponseBody().write(icon);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+        favicons = new Favicons(true, "http://%s:" + server.getAddress().getPort() + "/favicon.ico", new BlobStore(directory.resolve("favicons.bin"), 4096, 1024 * 1024), 2,
+                Duration.ofSeconds(5), true);
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        favicons.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testPngIsScaled() throws Exception {
+        icons.put("/favicon.ico", png(image(64, 0xFFFF0000)));
+        favicons.fetch("localhost");
+
+        final BufferedImage icon = read(favicons.get("localhost"));
+        assertThat(icon.getWidth()).isEqualTo(Favicons.SIZE);
+        assertThat(icon.getHeight()).isEqualTo(Favicons.SIZE);
+        assertThat(icon.getRGB(16, 16)).isEqualTo(0xFFFF0000);
+    }
+
+    @Test
+    public void testIcoWithAlpha() throws Exception {
+        icons.put("/favicon.ico", ico(16, 0x8000FF00));
+        favicons.fetch("localhost");
+
+        final BufferedImage icon = read(favicons.get("localhost"));
+        assertThat(icon.getWidth()).isEqualTo(Favicons.SIZE);
+        assertThat(icon.getRGB(16, 16)).isEqualTo(0x8000FF00);
+    }
+
+    @Test
+    public void testRedirectIsFollowed() throws Exception {
+        icons.put("redirect", new byte[0]);
+        icons.put("/static/icon.png", png(image(16, 0xFF0000FF)));
+        favicons.fetch("localhost");
+
+        assertThat(read(favicons.get("localhost")).getRGB(0, 0)).isEqualTo(0xFF0000FF);
+    }
+
+    @Test
+    public void testMissingOrBrokenIconIsStoredEmpty() throws Exception {
+        favicons.fetch("localhost");
+        assertThat(favicons.get("localhost")).isEmpty();
+
+        assertThat(Favicons.normalize("<html>not an image</html>".getBytes())).isNull();
+    }
+
+    @Test
+    public void testHugeDimensionsAreNotDecoded() throws Exception {
+        // a valid PNG of a few bytes, declaring 30000x30000 pixels in its header
+        final byte[] png = png(image(1, 0xFFFF0000));
+        final ByteBuffer header = ByteBuffer.wrap(png);
+        header.putInt(16, 30000).putInt(20, 30000);
+        final CRC32 crc = new CRC32();
+        crc.update(png, 12, 17);
+        header.putInt(29, (int) crc.getValue());
+
+        assertThat(Favicons.normalize(png)).isNull();
+        assertThat(Favicons.normalize(png(image(Favicons.MAX_DIMENSION + 1, 0xFFFF0000)))).isNull();
+        assertThat(Favicons.normalize(png(image(Favicons.MAX_DIMENSION, 0xFFFF0000)))).isNotNull();
+    }
+
+    @Test
+    public void testFullStoreStopsFetching() throws Exception {
+        icons.put("/favicon.ico", png(image(16, 0xFFFF0000)));
+        final Favicons small = new Favicons(true, "http://%s:" + server.getAddress().getPort() + "/favicon.ico",
+                new BlobStore(directory.resolve("small.bin"), 32, 32), 1, Duration.ofSeconds(5), true);
+        small.fetch("localhost");
+        assertThat(small.get("localhost")).isNull();
+        assertThat(small.isFull()).isTrue();
+
+        small.prefetch(List.of(new Link("Title", "Description", "http://localhost/page", "elasticsearch", new Date(), 1L, true, "user")));
+        Thread.sleep(100);
+        assertThat(requests.get()).isEqualTo(1);
+        small.close();
+    }
+
+    @Test
+    public void testPrefetchFetchesEveryHostOnce() throws Exception {
+        icons.put("/favicon.ico", png(image(16, 0xFFFF0000)));
+        final Link link = new Link("Title", "Description", "http://localhost/some/page", "elasticsearch", new Date(), 1L, true, "user");
+
+        favicons.prefetch(List.of(link, link, "not a link"));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (favicons.get("localhost") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(favicons.get("localhost")).isNotEmpty();
+
+        favicons.prefetch(List.of(link));
+        Thread.sleep(100);
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testController() throws Exception {
+        final BlobStore store = new BlobStore(directory.resolve("controller.bin"), 4096, 1024 * 1024);
+        store.put("example.org", png(image(16, 0xFFFF0000)));
+        store.put("empty.org", new byte[0]);
+        final Favicons stored = new Favicons(false, "http://%s/favicon.ico", store, 1, Duration.ofSeconds(5), true);
+        final FaviconController controller = new FaviconController(stored);
+
+        final ResponseEntity<byte[]> icon = controller.favicon("Example.org");
+        assertThat(icon.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE)).isEqualTo("image/png");
+        assertThat(icon.getBody()).isEqualTo(stored.get("example.org"));
+        assertThat(icon.getHeaders().getCacheControl()).isEqualTo("max-age=31536000, public, immutable");
+
+        // placeholders are asked for again, unknown hosts sooner
+        final ResponseEntity<byte[]> empty = controller.favicon("empty.org");
+        assertThat(read(empty.getBody()).getWidth()).isEqualTo(1);
+        assertThat(empty.getHeaders().getCacheControl()).isEqualTo("max-age=86400, public");
+        assertThat(controller.favicon("unknown.org").getHeaders().getCacheControl()).isEqualTo("max-age=60, public");
+
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.favicon("..example.org"))
+                .withMessage("404 NOT_FOUND");
+        stored.close();
+    }
+
+    private static BufferedImage image(int size, int argb) {
+        final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] png(BufferedImage image) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    // a single 32 bit bitmap, followed by an empty transparency mask
+    private static byte[] ico(int size, int argb) {
+        final int maskSize = ((size + 31) / 32) * 4 * size;
+        final int imageSize = 40 + size * size * 4 + maskSize;
+        final ByteBuffer buffer = ByteBuffer.allocate(6 + 16 + imageSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) 0).putShort((short) 1).putShort((short) 1);
+        buffer.put((byte) size).put((byte) size).put((byte) 0).put((byte) 0).putShort((short) 1).putShort((short) 32)
+                .putInt(imageSize).putInt(6 + 16);
+        buffer.putInt(40).putInt(size).putInt(size * 2).putShort((short) 1).putShort((short) 32).putInt(0)
+                .putInt(size * size * 4).putInt(0).putInt(0).putInt(0).putInt(0);
+        for (int i = 0; i < size * size; i++) {
+            buffer.putInt(argb);
+        }
+        return buffer.array();
+    }
+
+    private static BufferedImage read(byte[] bytes) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+}
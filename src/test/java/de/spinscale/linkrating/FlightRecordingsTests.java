@@ -0,0 +1,139 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.controller.DiagnosticsController;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static de.spinscale.linkrating.LinkControllerTests.createUser;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+public class FlightRecordingsTests {
+
+    @TempDir
+    Path directory;
+
+    private FlightRecordings flightRecordings;
+
+    @AfterEach
+    public void stopRecording() {
+        if (flightRecordings != null) {
+            flightRecordings.stop();
+        }
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        flightRecordings = new FlightRecordings(directory.toString(), Duration.ofMinutes(5), 5);
+        final String name = flightRecordings.start("default", Duration.ofMinutes(1));
+        assertThat(name).matches("linkrating-\\d{8}T\\d{6}Z\\.jfr");
+        assertThat(flightRecordings.running()).isEqualTo(name);
+        assertThat(flightRecordings.get(name)).isNull();
+
+        // only one recording at a time
+        assertThatIllegalStateException().isThrownBy(() -> flightRecordings.start("default", Duration.ofSeconds(10)));
+
+        // stopping early writes the recording as well
+        flightRecordings.stop();
+        assertThat(flightRecordings.running()).isNull();
+        assertThat(flightRecordings.list()).containsExactly(directory.resolve(name));
+        assertThat(flightRecordings.get(name)).isEqualTo(directory.resolve(name));
+        assertThat(Files.size(flightRecordings.get(name))).isPositive();
+    }
+
+    @Test
+    public void testOnlyLatestRecordingsAreKept() throws Exception {
+        flightRecordings = new FlightRecordings(directory.toString(), Duration.ofMinutes(5), 2);
+        Files.writeString(directory.resolve("linkrating-20201001T100000Z.jfr"), "old");
+        Files.writeString(directory.resolve("linkrating-20201002T100000Z.jfr"), "newer");
+        Files.writeString(directory.resolve("unrelated.txt"), "kept");
+
+        final String name = flightRecordings.start("default", Duration.ofMinutes(1));
+        flightRecordings.stop();
+        assertThat(flightRecordings.list()).containsExactly(directory.resolve(name), directory.resolve("linkrating-20201002T100000Z.jfr"));
+        assertThat(directory.resolve("unrelated.txt")).exists();
+    }
+
+    @Test
+    public void testInvalidInput() {
+        flightRecordings = new FlightRecordings(directory.toString(), Duration.ofMinutes(5), 5);
+        assertThatIllegalArgumentException().isThrownBy(() -> flightRecordings.start("unknown", Duration.ofMinutes(1)))
+                .withMessageStartingWith("unknown profile [unknown], available are [");
+        assertThatIllegalArgumentException().isThrownBy(() -> flightRecordings.start("default", Duration.ofMinutes(10)))
+                .withMessage("duration must be between 1s and 300s");
+        assertThatIllegalArgumentException().isThrownBy(() -> flightRecordings.start("default", Duration.ZERO));
+
+        // nothing outside of the recordings directory can be downloaded
+        assertThat(flightRecordings.get("../linkrating-20201001T100000Z.jfr")).isNull();
+        assertThat(flightRecordings.get("linkrating-20201001T100000Z.jfr")).isNull();
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        final String histogram = FlightRecordings.histogram(5, false);
+        final String[] lines = histogram.split("\n");
+        // header, five classes and the total
+        assertThat(lines).hasSize(8);
+        assertThat(lines[0]).contains("#instances");
+        assertThat(lines[7]).startsWith("Total");
+    }
+
+    @Test
+    public void testControllerRequiresAdmin() throws Exception {
+        flightRecordings = new FlightRecordings(directory.toString(), Duration.ofMinutes(5), 5);
+        final DiagnosticsController controller = new DiagnosticsController(new AdminService("admin"), flightRecordings);
+
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.start(createUser("user"), "default", "10s"))
+                .withMessage("404 NOT_FOUND");
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.histogram(null, 10, false))
+                .withMessage("404 NOT_FOUND");
+        assertThat(flightRecordings.running()).isNull();
+
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.start(createUser("admin"), "default", "10 minutes"))
+                .withMessageStartingWith("400 BAD_REQUEST");
+
+        final String name = (String) controller.start(createUser("admin"), "default", "10s").getBody().get("name");
+        assertThat(controller.list(createUser("admin"))).containsEntry("running", name);
+        flightRecordings.stop();
+
+        final Map<String, Object> list = controller.list(createUser("admin"));
+        assertThat((List<Map<String, Object>>) list.get("recordings")).extracting(recording -> recording.get("name")).containsExactly(name);
+        final ResponseEntity<Resource> download = controller.download(createUser("admin"), name);
+        assertThat(download.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(download.getHeaders().getContentDisposition().getFilename()).isEqualTo(name);
+    }
+}
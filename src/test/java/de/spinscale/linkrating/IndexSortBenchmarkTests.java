@@ -0,0 +1,237 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the links template with and without index sorting and doc values on filter only fields. Indexes a
+ * synthetic dataset twice and reports store size and query latencies. Not part of the regular test run, start it
+ * with {@code ELASTICSEARCH_URL=http://localhost:9200 ./gradlew benchmark}, the number of links can be changed
+ * with {@code -Dbenchmark.links=...}.
+ */
+@Tag("benchmark")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class IndexSortBenchmarkTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexSortBenchmarkTests.class);
+
+    private static final String BASELINE_INDEX = "benchmark-links-baseline";
+    private static final String SORTED_INDEX = "benchmark-links-sorted";
+    private static final String[] CATEGORIES = { "elasticsearch", "elastic", "cloud", "java", "spring", "misc" };
+    private static final String[] WORDS = { "search", "index", "query", "cluster", "shard", "java", "spring", "boot",
+            "release", "performance", "scoring", "mapping", "analyzer", "aggregation", "security", "cloud", "kibana",
+            "logstash", "beats", "ingest", "pipeline", "snapshot", "lifecycle", "rollover", "template", "segment" };
+
+    private static final int LINKS = Integer.getInteger("benchmark.links", 3_000_000);
+    private static final int BULK_SIZE = 5_000;
+    private static final int WARMUP_RUNS = 20;
+    private static final int RUNS = 200;
+
+    private RestHighLevelClient client;
+    private final LinkSearchService searchService = new LinkSearchService(mock(RestHighLevelClient.class),
+            mock(ElasticsearchOperations.class), mock(ElasticsearchGuard.class), "benchmark", Duration.ofMinutes(1), 0,
+            200, 10, Duration.ofSeconds(30), 0);
+
+    @BeforeAll
+    public void indexLinks() throws IOException {
+        assumeTrue(System.getenv("ELASTICSEARCH_URL") != null, "ELASTICSEARCH_URL is not set");
+        client = new RestClientConfig().elasticsearchClient();
+        SearchTemplates.storeIfAbsent(client);
+        deleteIndices();
+
+        createIndex(BASELINE_INDEX, Settings.EMPTY, withoutTuning(mapping()));
+        createIndex(SORTED_INDEX, StoreTemplateOnApplicationListener.indexSortSettings(), mapping());
+
+        // the same documents in the same order go into both indices
+        final long start = System.nanoTime();
+        final Random random = new Random(42);
+        final Instant now = Instant.now();
+        for (int from = 0; from < LINKS; from += BULK_SIZE) {
+            final BulkRequest baseline = new BulkRequest(BASELINE_INDEX);
+            final BulkRequest sorted = new BulkRequest(SORTED_INDEX);
+            for (int i = from; i < Math.min(from + BULK_SIZE, LINKS); i++) {
+                final Map<String, Object> link = syntheticLink(i, random, now);
+                baseline.add(new IndexRequest().id(String.valueOf(i)).source(link));
+                sorted.add(new IndexRequest().id(String.valueOf(i)).source(link));
+            }
+            bulk(baseline);
+            bulk(sorted);
+        }
+        logger.info("indexed [{}] links into both indices in [{}s]", LINKS, Duration.ofNanos(System.nanoTime() - start).toSeconds());
+
+        client.indices().refresh(new RefreshRequest(BASELINE_INDEX, SORTED_INDEX), RequestOptions.DEFAULT);
+        client.indices().forcemerge(new ForceMergeRequest(BASELINE_INDEX, SORTED_INDEX).maxNumSegments(5), RequestOptions.DEFAULT);
+    }
+
+    @AfterAll
+    public void deleteIndices() throws IOException {
+        if (client == null) {
+            return;
+        }
+        final DeleteIndexRequest request = new DeleteIndexRequest(BASELINE_INDEX, SORTED_INDEX);
+        request.indicesOptions(IndicesOptions.lenientExpandOpen());
+        client.indices().delete(request, RequestOptions.DEFAULT);
+    }
+
+    @Test
+    public void compareIndices() throws IOException {
+        logger.info("store size baseline [{}] sorted [{}]", storeSize(BASELINE_INDEX), storeSize(SORTED_INDEX));
+
+        // both indices must return the same unapproved links, the sorted one just needs to look at less of them.
+        // Links created in the same minute may come back in a different order, so only the dates are compared
+        assertThat(createdAt(search(BASELINE_INDEX, searchService::unapprovedRequest)))
+                .isEqualTo(createdAt(search(SORTED_INDEX, searchService::unapprovedRequest)));
+
+        report("unapproved", BASELINE_INDEX, searchService::unapprovedRequest);
+        report("unapproved", SORTED_INDEX, searchService::unapprovedRequest);
+        report("ranked", BASELINE_INDEX, () -> searchService.rankedRequest(null, Instant.now()));
+        report("ranked", SORTED_INDEX, () -> searchService.rankedRequest(null, Instant.now()));
+        report("ranked with query", BASELINE_INDEX, () -> searchService.rankedRequest("spring boot", Instant.now()));
+        report("ranked with query", SORTED_INDEX, () -> searchService.rankedRequest("spring boot", Instant.now()));
+    }
+
+    private void report(String name, String index, Supplier<SearchTemplateRequest> request) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            search(index, request);
+        }
+        final long[] tookMillis = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            tookMillis[i] = search(index, request).getTook().millis();
+        }
+        Arrays.sort(tookMillis);
+        logger.info("[{}] on [{}]: median [{}ms] p90 [{}ms] p99 [{}ms] max [{}ms]", name, index,
+                tookMillis[RUNS / 2], tookMillis[RUNS * 90 / 100], tookMillis[RUNS * 99 / 100], tookMillis[RUNS - 1]);
+    }
+
+    // the request cache would answer all but the first request, so it is disabled here
+    private SearchResponse search(String index, Supplier<SearchTemplateRequest> request) throws IOException {
+        final SearchTemplateRequest searchRequest = request.get();
+        searchRequest.getRequest().indices(index).requestCache(false);
+        return client.searchTemplate(searchRequest, RequestOptions.DEFAULT).getResponse();
+    }
+
+    private void createIndex(String index, Settings settings, Map<String, Object> mapping) throws IOException {
+        final CreateIndexRequest request = new CreateIndexRequest(index);
+        request.settings(Settings.builder().put("number_of_shards", 1).put("number_of_replicas", 0)
+                .put("refresh_interval", "-1").put(settings));
+        request.mapping(mapping);
+        client.indices().create(request, RequestOptions.DEFAULT);
+    }
+
+    private void bulk(BulkRequest request) throws IOException {
+        final BulkResponse response = client.bulk(request, RequestOptions.DEFAULT);
+        assertThat(response.hasFailures()).as(response.buildFailureMessage()).isFalse();
+    }
+
+    private String storeSize(String index) throws IOException {
+        final Request request = new Request("GET", "/" + index + "/_stats/store");
+        request.addParameter("human", "true");
+        try (InputStream body = client.getLowLevelClient().performRequest(request).getEntity().getContent()) {
+            final Map<String, Object> stats = XContentHelper.convertToMap(XContentType.JSON.xContent(), body, false);
+            return String.valueOf(XContentMapValues.extractValue("_all.primaries.store.size", stats));
+        }
+    }
+
+    private static List<Object> createdAt(SearchResponse response) {
+        return Arrays.stream(response.getHits().getHits()).map(hit -> hit.getSortValues()[0]).collect(Collectors.toList());
+    }
+
+    static Map<String, Object> mapping() {
+        return XContentHelper.convertToMap(new BytesArray(StoreTemplateOnApplicationListener.LINKS_MAPPING), false, XContentType.JSON).v2();
+    }
+
+    // the mapping before the field tuning, all fields with their default options
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> withoutTuning(Map<String, Object> mapping) {
+        final Map<String, Object> copy = new HashMap<>();
+        mapping.forEach((key, value) -> {
+            if (!"doc_values".equals(key)) {
+                copy.put(key, value instanceof Map ? withoutTuning((Map<String, Object>) value) : value);
+            }
+        });
+        return copy;
+    }
+
+    // roughly one in twenty links is waiting for approval, spread over five years
+    static Map<String, Object> syntheticLink(int i, Random random, Instant now) {
+        final Map<String, Object> link = new HashMap<>();
+        link.put("title", words(random, 4 + random.nextInt(6)));
+        link.put("description", words(random, 20 + random.nextInt(40)));
+        link.put("url", "https://example.org/posts/" + i);
+        link.put("category", CATEGORIES[random.nextInt(CATEGORIES.length)]);
+        link.put("submitted_by", "user" + random.nextInt(1000));
+        link.put("created_at", now.minus(random.nextInt(5 * 365 * 24 * 60), ChronoUnit.MINUTES).toString());
+        link.put("votes", (long) random.nextInt(500));
+        link.put("approved", random.nextInt(20) != 0);
+        return link;
+    }
+
+    private static String words(Random random, int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+}
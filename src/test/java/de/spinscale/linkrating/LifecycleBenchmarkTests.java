@@ -0,0 +1,217 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.search.SearchHit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures what the warm phase of the link policy does for searches across all links indices. Indexes a synthetic
+ * dataset into several indices like a live index with a refresh after every bulk, reports segment counts and query
+ * latencies, then force merges all but the newest index to a single segment and blocks writes like the warm phase,
+ * and reports again. Not part of the regular test run, start it with
+ * {@code ELASTICSEARCH_URL=http://localhost:9200 ./gradlew benchmark}, use {@code -Dbenchmark.lifecycle.links=...}
+ * and {@code -Dbenchmark.lifecycle.indices=...} to change the dataset.
+ */
+@Tag("benchmark")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class LifecycleBenchmarkTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(LifecycleBenchmarkTests.class);
+
+    private static final String INDEX_PREFIX = "benchmark-lifecycle-";
+    private static final int LINKS = Integer.getInteger("benchmark.lifecycle.links", 1_000_000);
+    private static final int INDICES = Integer.getInteger("benchmark.lifecycle.indices", 5);
+    private static final int BULK_SIZE = 1_000;
+    private static final int WARMUP_RUNS = 20;
+    private static final int RUNS = 200;
+
+    private RestHighLevelClient client;
+    private final LinkSearchService searchService = new LinkSearchService(mock(RestHighLevelClient.class),
+            mock(ElasticsearchOperations.class), mock(ElasticsearchGuard.class), "benchmark", Duration.ofMinutes(1), 0,
+            200, 10, Duration.ofSeconds(30), 0);
+
+    @BeforeAll
+    public void indexLinks() throws IOException {
+        assumeTrue(System.getenv("ELASTICSEARCH_URL") != null, "ELASTICSEARCH_URL is not set");
+        client = new RestClientConfig().elasticsearchClient();
+        SearchTemplates.storeIfAbsent(client);
+        deleteIndices();
+
+        final long start = System.nanoTime();
+        final Random random = new Random(42);
+        final Instant now = Instant.now();
+        final int linksPerIndex = LINKS / INDICES;
+        for (int i = 1; i <= INDICES; i++) {
+            final String index = index(i);
+            final CreateIndexRequest request = new CreateIndexRequest(index);
+            request.settings(Settings.builder().put("number_of_shards", 1).put("number_of_replicas", 0)
+                    .put("refresh_interval", "-1").put(StoreTemplateOnApplicationListener.indexSortSettings()));
+            request.mapping(IndexSortBenchmarkTests.mapping());
+            client.indices().create(request, RequestOptions.DEFAULT);
+
+            // a refresh per bulk leaves the segments an index written over a long time ends up with
+            for (int from = (i - 1) * linksPerIndex; from < i * linksPerIndex; from += BULK_SIZE) {
+                final BulkRequest bulk = new BulkRequest(index);
+                for (int id = from; id < Math.min(from + BULK_SIZE, i * linksPerIndex); id++) {
+                    bulk.add(new IndexRequest().id(String.valueOf(id)).source(IndexSortBenchmarkTests.syntheticLink(id, random, now)));
+                }
+                final BulkResponse response = client.bulk(bulk, RequestOptions.DEFAULT);
+                assertThat(response.hasFailures()).as(response.buildFailureMessage()).isFalse();
+                client.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+            }
+        }
+        logger.info("indexed [{}] links into [{}] indices in [{}s]", LINKS, INDICES, Duration.ofNanos(System.nanoTime() - start).toSeconds());
+    }
+
+    @AfterAll
+    public void deleteIndices() throws IOException {
+        if (client == null) {
+            return;
+        }
+        final DeleteIndexRequest request = new DeleteIndexRequest(INDEX_PREFIX + "*");
+        request.indicesOptions(IndicesOptions.lenientExpandOpen());
+        client.indices().delete(request, RequestOptions.DEFAULT);
+    }
+
+    @Test
+    public void compareBeforeAndAfterWarmPhase() throws IOException {
+        logger.info("segments before the warm phase {}", segments());
+        // scores and not ids are compared, links with the same score may come back in a different order
+        final Instant now = Instant.now();
+        final List<Float> before = scores(search(() -> searchService.rankedRequest("spring boot", now)));
+        final Map<String, long[]> hot = measure();
+
+        // what the warm phase does to every index but the write index
+        final String[] warm = new String[INDICES - 1];
+        for (int i = 1; i < INDICES; i++) {
+            warm[i - 1] = index(i);
+        }
+        if (warm.length > 0) {
+            final long start = System.nanoTime();
+            client.indices().forcemerge(new ForceMergeRequest(warm).maxNumSegments(1), RequestOptions.DEFAULT);
+            client.indices().putSettings(new UpdateSettingsRequest(warm).settings(Settings.builder().put("index.blocks.write", true)),
+                    RequestOptions.DEFAULT);
+            logger.info("force merged [{}] indices in [{}s]", warm.length, Duration.ofNanos(System.nanoTime() - start).toSeconds());
+        }
+        logger.info("segments after the warm phase {}", segments());
+
+        // merging must not change what is found
+        assertThat(scores(search(() -> searchService.rankedRequest("spring boot", now)))).isEqualTo(before);
+        final Map<String, long[]> merged = measure();
+
+        for (Map.Entry<String, long[]> entry : hot.entrySet()) {
+            final long[] b = entry.getValue();
+            final long[] a = merged.get(entry.getKey());
+            logger.info("[{}] median [{}ms -> {}ms] p90 [{}ms -> {}ms] p99 [{}ms -> {}ms]", entry.getKey(),
+                    b[RUNS / 2], a[RUNS / 2], b[RUNS * 90 / 100], a[RUNS * 90 / 100], b[RUNS * 99 / 100], a[RUNS * 99 / 100]);
+        }
+    }
+
+    // sorted took times of every query
+    private Map<String, long[]> measure() throws IOException {
+        final Map<String, Supplier<SearchTemplateRequest>> requests = new LinkedHashMap<>();
+        requests.put("unapproved", searchService::unapprovedRequest);
+        requests.put("ranked", () -> searchService.rankedRequest(null, Instant.now()));
+        requests.put("ranked with query", () -> searchService.rankedRequest("spring boot", Instant.now()));
+
+        final Map<String, long[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<SearchTemplateRequest>> request : requests.entrySet()) {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                search(request.getValue());
+            }
+            final long[] tookMillis = new long[RUNS];
+            for (int i = 0; i < RUNS; i++) {
+                tookMillis[i] = search(request.getValue()).getTook().millis();
+            }
+            Arrays.sort(tookMillis);
+            result.put(request.getKey(), tookMillis);
+        }
+        return result;
+    }
+
+    // the request cache would answer all but the first request, so it is disabled here
+    private SearchResponse search(Supplier<SearchTemplateRequest> request) throws IOException {
+        final SearchTemplateRequest searchRequest = request.get();
+        searchRequest.getRequest().indices(INDEX_PREFIX + "*").requestCache(false);
+        return client.searchTemplate(searchRequest, RequestOptions.DEFAULT).getResponse();
+    }
+
+    private Map<String, Object> segments() throws IOException {
+        final Request request = new Request("GET", "/" + INDEX_PREFIX + "*/_stats/segments");
+        try (InputStream body = client.getLowLevelClient().performRequest(request).getEntity().getContent()) {
+            final Map<String, Object> stats = XContentHelper.convertToMap(XContentType.JSON.xContent(), body, false);
+            final Map<String, Object> segments = new LinkedHashMap<>();
+            for (int i = 1; i <= INDICES; i++) {
+                segments.put(index(i), XContentMapValues.extractValue("indices." + index(i) + ".primaries.segments.count", stats));
+            }
+            return segments;
+        }
+    }
+
+    private static List<Float> scores(SearchResponse response) {
+        return Arrays.stream(response.getHits().getHits()).map(SearchHit::getScore).collect(Collectors.toList());
+    }
+
+    private static String index(int i) {
+        return String.format(Locale.ROOT, INDEX_PREFIX + "%06d", i);
+    }
+}
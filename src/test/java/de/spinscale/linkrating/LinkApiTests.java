@@ -0,0 +1,209 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.controller.ApiController;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateResponse;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class LinkApiTests {
+
+    private final ElasticsearchGuard guard = mock(ElasticsearchGuard.class);
+    private final LinkApi linkApi = new LinkApi(mock(RestHighLevelClient.class), guard, "linkrating", Duration.ofMinutes(1),
+            30, 3, Duration.ofMillis(500));
+    private final ApiController controller = new ApiController(linkApi);
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    @Test
+    public void testSearchRequest() {
+        final SearchTemplateRequest request = linkApi.searchRequest("my query", "2020-10-01T10:15:00Z", null, 20, List.of("title"));
+
+        assertThat(request.getScript()).isEqualTo(SearchTemplates.API);
+        assertThat(request.getRequest().requestCache()).isTrue();
+        assertThat(request.getRequest().preference()).isEqualTo("linkrating");
+        assertThat(request.getScriptParams()).containsOnly(entry("origin", "2020-10-01T10:15:00Z"), entry("size", 20),
+                entry("timeout", "500ms"), entry("fields", List.of("title")), entry("q", "my query"));
+
+        final LinkApi.Cursor cursor = new LinkApi.Cursor("2020-10-01T10:15:00Z", 1.25f, "https://example.org");
+        assertThat(linkApi.searchRequest(null, "2020-10-01T10:15:00Z", cursor, 20, List.of("title")).getScriptParams())
+                .containsEntry("after", Map.of("score", 1.25f, "url", "https://example.org"))
+                .doesNotContainKey("q");
+    }
+
+    @Test
+    public void testCursor() {
+        final String encoded = new LinkApi.Cursor("2020-10-01T10:15:00Z", 0.123f, "https://example.org/?a=b|c").encode();
+        final LinkApi.Cursor decoded = LinkApi.Cursor.decode(encoded);
+        assertThat(decoded.encode()).isEqualTo(encoded);
+
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LinkApi.Cursor.decode("not a cursor"));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LinkApi.Cursor.decode(
+                new LinkApi.Cursor("2020-10-01T10:15:00Z", Float.NaN, "https://example.org").encode()));
+    }
+
+    @Test
+    public void testParseFields() {
+        assertThat(LinkApi.parseFields(null)).isEqualTo(LinkApi.FIELDS);
+        assertThat(LinkApi.parseFields(" url, title,url")).containsExactly("url", "title");
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LinkApi.parseFields("title,approved"));
+    }
+
+    @Test
+    public void testSearchWritesPageWithCursor() throws Exception {
+        final SearchTemplateResponse searchResponse = searchResponse(hit("1", "{\"votes\":3,\"title\":\"First \\\"one\\\"\"}", 2.5f),
+                hit("2", "{\"title\":\"Second\",\"votes\":1}", 1.5f));
+        when(guard.execute(any())).thenReturn(searchResponse);
+
+        controller.search(null, null, 2, "title,votes", response);
+
+        assertThat(response.getContentType()).isEqualTo("application/json;charset=UTF-8");
+        final String next = nextCursor(response);
+        assertThat(response.getContentAsString()).isEqualTo("{\"links\":[" +
+                "{\"id\":\"1\",\"title\":\"First \\\"one\\\"\",\"votes\":3}," +
+                "{\"id\":\"2\",\"title\":\"Second\",\"votes\":1}]," +
+                "\"next\":\"" + next + "\"}");
+        // the next page continues after the last hit, with the origin of this page
+        final String decoded = new String(Base64.getUrlDecoder().decode(next), StandardCharsets.UTF_8);
+        assertThat(decoded).matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:00Z\\|1\\.5\\|https://example.org/2");
+    }
+
+    @Test
+    public void testLastPageHasNoCursor() throws Exception {
+        final SearchTemplateResponse searchResponse = searchResponse(hit("1", "{\"title\":\"First\"}", 2.5f));
+        when(guard.execute(any())).thenReturn(searchResponse);
+
+        controller.search("this query has far too many terms", null, 10, "title", response);
+
+        assertThat(response.getContentAsString()).isEqualTo("{\"links\":[{\"id\":\"1\",\"title\":\"First\"}],\"partial\":true}");
+    }
+
+    @Test
+    public void testInvalidRequests() {
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.search(null, null, 1000, null, response))
+                .withMessageContaining("400 BAD_REQUEST");
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.search(null, "invalid", 10, null, response))
+                .withMessageContaining("400 BAD_REQUEST");
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.get("1", "submitted_by", response))
+                .withMessageContaining("400 BAD_REQUEST");
+        verifyNoInteractions(guard);
+    }
+
+    @Test
+    public void testElasticsearchUnavailable() throws Exception {
+        when(guard.execute(any())).thenThrow(new IOException("circuit to Elasticsearch is open, rejecting request"));
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.search(null, null, 10, null, response))
+                .withMessageContaining("503 SERVICE_UNAVAILABLE");
+    }
+
+    @Test
+    public void testGetByIdsLeavesOutMissingAndUnapprovedLinks() throws Exception {
+        final MultiGetResponse multiGetResponse = new MultiGetResponse(new MultiGetItemResponse[] {
+                item("1", "{\"url\":\"https://example.org/1\",\"approved\":true}"),
+                item("2", null),
+                item("3", "{\"url\":\"https://example.org/3\",\"approved\":false}"),
+                item("4", "{\"url\":\"https://example.org/4\",\"approved\":true}")
+        });
+        when(guard.execute(any())).thenReturn(multiGetResponse);
+
+        controller.getByIds("1,2, 3,4,1", "url", response);
+
+        assertThat(response.getContentAsString()).isEqualTo("{\"links\":[" +
+                "{\"id\":\"1\",\"url\":\"https://example.org/1\"},{\"id\":\"4\",\"url\":\"https://example.org/4\"}]}");
+    }
+
+    @Test
+    public void testGetSingleLink() throws Exception {
+        final MultiGetResponse found = new MultiGetResponse(new MultiGetItemResponse[] {
+                item("1", "{\"title\":\"Title\",\"url\":\"https://example.org/1\",\"approved\":true}")
+        });
+        when(guard.execute(any())).thenReturn(found);
+        controller.get("1", null, response);
+        assertThat(response.getContentAsString()).isEqualTo("{\"id\":\"1\",\"title\":\"Title\",\"url\":\"https://example.org/1\"}");
+
+        final MultiGetResponse unapproved = new MultiGetResponse(new MultiGetItemResponse[] {
+                item("1", "{\"title\":\"Title\",\"approved\":false}")
+        });
+        when(guard.execute(any())).thenReturn(unapproved);
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.get("1", null, new MockHttpServletResponse()))
+                .withMessage("404 NOT_FOUND");
+    }
+
+    private static String nextCursor(MockHttpServletResponse response) throws IOException {
+        final String content = response.getContentAsString();
+        final int start = content.indexOf("\"next\":\"") + 8;
+        return content.substring(start, content.indexOf('"', start));
+    }
+
+    private static SearchHit hit(String id, String source, float score) {
+        final SearchHit hit = new SearchHit(1, id, new Text("_doc"), Map.of());
+        hit.sourceRef(new BytesArray(source));
+        hit.sortValues(new Object[] { score, "https://example.org/" + id }, new DocValueFormat[] { DocValueFormat.RAW, DocValueFormat.RAW });
+        return hit;
+    }
+
+    private static SearchTemplateResponse searchResponse(SearchHit... hits) {
+        final SearchHits searchHits = new SearchHits(hits, new TotalHits(hits.length, TotalHits.Relation.EQUAL_TO), Float.NaN);
+        final SearchResponseSections sections = new SearchResponseSections(searchHits, null, null, false, null, null, 1);
+        final SearchTemplateResponse response = mock(SearchTemplateResponse.class);
+        when(response.getResponse()).thenReturn(new SearchResponse(sections, null, 1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY));
+        return response;
+    }
+
+    private static MultiGetItemResponse item(String id, String source) {
+        final GetResult result = new GetResult("links-000001", "_doc", id, source == null ? -2 : 1, source == null ? 0 : 1,
+                source == null ? -1 : 1, source != null, source == null ? null : new BytesArray(source), Map.of(), Map.of());
+        return new MultiGetItemResponse(new GetResponse(result), null);
+    }
+}
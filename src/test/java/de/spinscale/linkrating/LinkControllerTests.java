@@ -19,33 +19,53 @@ package de.spinscale.linkrating;
 
 import de.spinscale.linkrating.controller.LinkController;
 import de.spinscale.linkrating.entity.Link;
+import de.spinscale.linkrating.entity.RelatedLink;
 import de.spinscale.linkrating.entity.User;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
-import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
 import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.data.elasticsearch.core.query.UpdateResponse;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class LinkControllerTests {
 
     private ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
-    private final LinkController controller = new LinkController(elasticsearchOperations, new AdminService("admin"));
+    private LinkReplica linkReplica = mock(LinkReplica.class);
+    private ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+    private DuplicateIndex duplicateIndex = new DuplicateIndex(elasticsearchOperations, 3);
+    private LinkSearchService linkSearchService = mock(LinkSearchService.class);
+    private ElasticsearchGuard guard = new ElasticsearchGuard(20, Duration.ofSeconds(2), 5, Duration.ofSeconds(10));
+    private VotedLinks votedLinks = new VotedLinks(elasticsearchOperations, guard, 100);
+    private final LinkController controller = new LinkController(elasticsearchOperations, new AdminService("admin"), linkReplica,
+            eventPublisher, duplicateIndex, linkSearchService, votedLinks, guard);
     private final Model model = new ExtendedModelMap();
 
     @Test
@@ -61,6 +81,21 @@ public class LinkControllerTests {
         assertModelContainsLink(link);
     }
 
+    @Test
+    public void testShowLinkFromReplica() {
+        Link link = new Link();
+        link.setId("my_id");
+        link.setApproved(true);
+        when(linkReplica.isReady()).thenReturn(true);
+        when(linkReplica.get(eq("my_id"))).thenReturn(link);
+
+        String result = controller.show(null, "my_id", model);
+
+        assertThat(result).isEqualTo("main");
+        assertModelContainsLink(link);
+        verify(elasticsearchOperations, never()).get(any(), any());
+    }
+
     @Test
     public void testShowNonExistingLinksThrows404() {
         assertThatExceptionOfType(ResponseStatusException.class)
@@ -68,6 +103,36 @@ public class LinkControllerTests {
                 .withMessage("404 NOT_FOUND");
     }
 
+    @Test
+    public void testShowIsRejectedWhileCircuitIsOpen() {
+        when(elasticsearchOperations.get(eq("my_id"), eq(Link.class))).thenThrow(new DataAccessResourceFailureException("timeout"));
+        for (int i = 0; i < 5; i++) {
+            assertThatExceptionOfType(DataAccessResourceFailureException.class)
+                    .isThrownBy(() -> controller.show(null, "my_id", model))
+                    .withMessage("timeout");
+        }
+
+        assertThatExceptionOfType(DataAccessResourceFailureException.class)
+                .isThrownBy(() -> controller.show(null, "my_id", model))
+                .withMessageContaining("circuit");
+        verify(elasticsearchOperations, times(5)).get(eq("my_id"), eq(Link.class));
+    }
+
+    @Test
+    public void testShowLinkWithRelatedLinks() {
+        Link link = new Link();
+        link.setId("my_id");
+        link.setApproved(true);
+        link.setRelated(List.of(new RelatedLink("other_id", "Other")));
+        when(elasticsearchOperations.get(eq("my_id"), eq(Link.class))).thenReturn(link);
+
+        controller.show(null, "my_id", model);
+
+        assertThat(model.asMap().get("related")).isEqualTo(link.getRelated());
+        // related links are stored within the link, no query is needed
+        verify(elasticsearchOperations, never()).search(any(NativeSearchQuery.class), eq(Link.class));
+    }
+
     @Test
     public void testShowAdminUnapprovedLink() {
         Link link = new Link();
@@ -93,8 +158,13 @@ public class LinkControllerTests {
     }
 
     @Test
-    public void testSubmitLink() {
+    public void testSubmitLink() throws Exception {
         OAuth2User principal = createUser("user");
+        when(elasticsearchOperations.save(any(Link.class))).then(invocation -> {
+            Link saved = invocation.getArgument(0);
+            saved.setId("new_id");
+            return saved;
+        });
 
         String result = controller.submitLink(principal, "description", "<b>Title</b>", "http://example.org", "Category");
 
@@ -109,17 +179,35 @@ public class LinkControllerTests {
         assertThat(link.getTitle()).isEqualTo("Title");
         assertThat(link.isApproved()).isEqualTo(false);
         assertThat(link.getSubmittedBy()).isEqualTo("user");
+        assertThat(link.getDuplicateOf()).isNull();
+        assertThat(duplicateIndex.findDuplicate(DuplicateIndex.fingerprint(link))).isEqualTo("new_id");
+
+        // enrichment is triggered, but runs in the background
+        ArgumentCaptor<LinkChangedEvent> eventCaptor = ArgumentCaptor.forClass(LinkChangedEvent.class);
+        verify(eventPublisher).publishEvent(eventCaptor.capture());
+        assertThat(eventCaptor.getValue().getId()).isEqualTo("new_id");
+        assertThat(eventCaptor.getValue().getType()).isEqualTo(LinkChangedEvent.Type.SUBMITTED);
     }
 
     @Test
-    public void testSubmitExistingApprovedLinkRedirectsToLink() {
+    public void testSubmitNearDuplicateIsFlagged() throws Exception {
+        duplicateIndex.add("original", DuplicateIndex.fingerprint(new Link("Some Title", "A longer description of the link", "http://example.org",
+                "category", null, 1L, true, "other")));
+
+        controller.submitLink(createUser("user"), "a longer description of the link!", "Some title", "http://example.org/?utm_source=x", "Category");
+
+        ArgumentCaptor<Link> linkCaptor = ArgumentCaptor.forClass(Link.class);
+        verify(elasticsearchOperations).save(linkCaptor.capture());
+        assertThat(linkCaptor.getValue().getDuplicateOf()).isEqualTo("original");
+    }
+
+    @Test
+    public void testSubmitExistingApprovedLinkRedirectsToLink() throws Exception {
         Link link = new Link();
         link.setId("123");
         link.setUrl("http://example.org");
         link.setApproved(true);
-        final SearchHit<Link> searchHit = mock(SearchHit.class);
-        when(searchHit.getContent()).thenReturn(link);
-        when(elasticsearchOperations.searchOne(any(), eq(Link.class))).thenReturn(searchHit);
+        when(linkSearchService.findByUrl("http://example.org")).thenReturn(link);
 
         OAuth2User principal = createUser("user");
         String result = controller.submitLink(principal, "description", "<b>Title</b>", "http://example.org", "Category");
@@ -128,14 +216,12 @@ public class LinkControllerTests {
     }
 
     @Test
-    public void testSubmitExistingUnApprovedLinkRedirectsToMain() {
+    public void testSubmitExistingUnApprovedLinkRedirectsToMain() throws Exception {
         Link link = new Link();
         link.setId("123");
         link.setUrl("http://example.org");
         link.setApproved(false);
-        final SearchHit<Link> searchHit = mock(SearchHit.class);
-        when(searchHit.getContent()).thenReturn(link);
-        when(elasticsearchOperations.searchOne(any(), eq(Link.class))).thenReturn(searchHit);
+        when(linkSearchService.findByUrl("http://example.org")).thenReturn(link);
 
         OAuth2User principal = createUser("user");
         String result = controller.submitLink(principal, "description", "<b>Title</b>", "http://example.org", "Category");
@@ -144,8 +230,8 @@ public class LinkControllerTests {
     }
 
     @Test
-    public void testUserCannotSubmitMoreThanTenLinks() {
-        when(elasticsearchOperations.count(any(), eq(Link.class))).thenReturn(11L);
+    public void testUserCannotSubmitMoreThanTenLinks() throws Exception {
+        when(linkSearchService.countPending("user")).thenReturn(11L);
         OAuth2User principal = createUser("user");
 
         String result = controller.submitLink(principal, "description", "<b>Title</b>", "http://example.org", "Category");
@@ -159,6 +245,11 @@ public class LinkControllerTests {
         String result = controller.delete(createUser("admin"), "123");
         assertThat(result).isEqualTo("redirect:/");
         verify(elasticsearchOperations).delete(eq("123"), eq(Link.class));
+
+        ArgumentCaptor<LinkChangedEvent> eventCaptor = ArgumentCaptor.forClass(LinkChangedEvent.class);
+        verify(eventPublisher).publishEvent(eventCaptor.capture());
+        assertThat(eventCaptor.getValue().getId()).isEqualTo("123");
+        assertThat(eventCaptor.getValue().getType()).isEqualTo(LinkChangedEvent.Type.DELETED);
     }
 
     @Test
@@ -176,6 +267,10 @@ public class LinkControllerTests {
         verify(elasticsearchOperations).update(updateCaptor.capture(), any());
         final UpdateQuery updateQuery = updateCaptor.getValue();
         assertThat(updateQuery.getId()).isEqualTo("123");
+
+        ArgumentCaptor<LinkChangedEvent> eventCaptor = ArgumentCaptor.forClass(LinkChangedEvent.class);
+        verify(eventPublisher).publishEvent(eventCaptor.capture());
+        assertThat(eventCaptor.getValue().getType()).isEqualTo(LinkChangedEvent.Type.APPROVED);
     }
 
     @Test
@@ -185,15 +280,130 @@ public class LinkControllerTests {
                 .withMessage("404 NOT_FOUND");
     }
 
+    @BeforeEach
+    public void countVotes() {
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("users")))
+                .thenReturn(new UpdateResponse(UpdateResponse.Result.UPDATED));
+    }
+
     @Test
     public void testVoteUserDoesNotExist() {
         OAuth2User principal = createUser("user");
         when(elasticsearchOperations.get(eq("user"), eq(User.class))).thenReturn(null);
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("users")))
+                .thenReturn(new UpdateResponse(UpdateResponse.Result.CREATED));
 
         String result = controller.vote(principal, "123", null);
         assertThat(result).isEqualTo("redirect:/");
 
         assertUserVoteAndLinkVote("user", "123");
+        // the page after the redirect shows the vote without loading the user again
+        assertThat(votedLinks.get("user").contains("123")).isTrue();
+        verify(elasticsearchOperations, times(1)).get(eq("user"), eq(User.class));
+    }
+
+    @Test
+    public void testVoteIsRetriedWhileIndexIsWriteBlocked() {
+        OAuth2User principal = createUser("user");
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("links")))
+                .thenThrow(new ElasticsearchStatusException("Elasticsearch exception [type=cluster_block_exception, " +
+                        "reason=index [links-000001] blocked by: [FORBIDDEN/8/index write (api)];]", RestStatus.FORBIDDEN))
+                .thenReturn(null);
+
+        controller.vote(principal, "123", null);
+
+        verify(elasticsearchOperations, times(2)).update(any(UpdateQuery.class), index("links"));
+    }
+
+    @Test
+    public void testVoteCountIsSentAgainAfterConflict() {
+        OAuth2User principal = createUser("user");
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("links")))
+                .thenThrow(new OptimisticLockingFailureException("version conflict"))
+                .thenReturn(null);
+
+        controller.vote(principal, "123", null);
+
+        verify(elasticsearchOperations, times(2)).update(any(UpdateQuery.class), index("links"));
+        verify(elasticsearchOperations, times(1)).update(any(UpdateQuery.class), index("users"));
+        verify(eventPublisher).publishEvent(any(LinkChangedEvent.class));
+    }
+
+    @Test
+    public void testDeleteIsRetriedWhileIndexIsWriteBlocked() {
+        when(elasticsearchOperations.delete(eq("123"), eq(Link.class)))
+                .thenThrow(new ElasticsearchStatusException("Elasticsearch exception [type=cluster_block_exception, " +
+                        "reason=index [links-000001] blocked by: [FORBIDDEN/8/index write (api)];]", RestStatus.FORBIDDEN))
+                .thenReturn("123");
+
+        assertThat(controller.delete(createUser("admin"), "123")).isEqualTo("redirect:/");
+
+        verify(elasticsearchOperations, times(2)).delete(eq("123"), eq(Link.class));
+        verify(eventPublisher).publishEvent(any(LinkChangedEvent.class));
+    }
+
+    @Test
+    public void testAdminWritesAreRejectedWhileCircuitIsOpen() {
+        for (int i = 0; i < 5; i++) {
+            assertThatExceptionOfType(DataAccessResourceFailureException.class).isThrownBy(() -> guard.executeBlocking(() -> {
+                throw new DataAccessResourceFailureException("connection refused");
+            }));
+        }
+        assertThat(guard.isOpen()).isTrue();
+
+        assertThatExceptionOfType(DataAccessResourceFailureException.class).isThrownBy(() -> controller.delete(createUser("admin"), "123"));
+        assertThatExceptionOfType(DataAccessResourceFailureException.class).isThrownBy(() -> controller.approve(createUser("admin"), "123"));
+
+        verify(elasticsearchOperations, never()).delete(anyString(), eq(Link.class));
+        verify(elasticsearchOperations, never()).update(any(UpdateQuery.class), index("links"));
+        verify(eventPublisher, never()).publishEvent(any(LinkChangedEvent.class));
+    }
+
+    @Test
+    public void testVoteIsNotRetriedOnOtherErrors() {
+        OAuth2User principal = createUser("user");
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("links")))
+                .thenThrow(new ElasticsearchStatusException("document missing", RestStatus.NOT_FOUND));
+
+        assertThatExceptionOfType(ElasticsearchStatusException.class).isThrownBy(() -> controller.vote(principal, "123", null));
+        verify(elasticsearchOperations, times(1)).update(any(UpdateQuery.class), index("links"));
+    }
+
+    @Test
+    public void testUncountedVoteIsRemovedFromUser() {
+        OAuth2User principal = createUser("user");
+        User existingUser = new User();
+        existingUser.setId("user");
+        existingUser.setIds(new ArrayList<>(List.of("456")));
+        when(elasticsearchOperations.get(eq("user"), eq(User.class))).thenReturn(existingUser);
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("links")))
+                .thenThrow(new ElasticsearchStatusException("document missing", RestStatus.NOT_FOUND));
+
+        assertThatExceptionOfType(ElasticsearchStatusException.class).isThrownBy(() -> controller.vote(principal, "123", null));
+        ArgumentCaptor<UpdateQuery> userUpdates = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations, times(2)).update(userUpdates.capture(), index("users"));
+        assertThat(userUpdates.getAllValues()).extracting(UpdateQuery::getScript).element(0).asString().contains("ids.add(params.id)");
+        assertThat(userUpdates.getAllValues()).extracting(UpdateQuery::getScript).element(1).asString().contains("ids.remove(i)");
+        assertThat(userUpdates.getAllValues()).extracting(query -> query.getParams().get("id")).containsOnly("123");
+        verify(eventPublisher, never()).publishEvent(any(LinkChangedEvent.class));
+    }
+
+    @Test
+    public void testConcurrentVoteOfSameUserIsNotCounted() {
+        OAuth2User principal = createUser("user");
+        User existingUser = new User();
+        existingUser.setId("user");
+        existingUser.setIds(new ArrayList<>());
+        when(elasticsearchOperations.get(eq("user"), eq(User.class))).thenReturn(existingUser);
+        // another request of the user added the id after the user document was read
+        when(elasticsearchOperations.update(any(UpdateQuery.class), index("users")))
+                .thenReturn(new UpdateResponse(UpdateResponse.Result.NOOP));
+
+        controller.vote(principal, "123", null);
+
+        verify(elasticsearchOperations, never()).update(any(UpdateQuery.class), index("links"));
+        verify(eventPublisher, never()).publishEvent(any(LinkChangedEvent.class));
+        assertThat(votedLinks.get("user").contains("123")).isTrue();
     }
 
     @Test
@@ -223,7 +433,8 @@ public class LinkControllerTests {
         String result = controller.vote(principal, "123", null);
         assertThat(result).isEqualTo("redirect:/");
 
-        assertUserVoteAndLinkVote("user", "123", "456");
+        assertUserVoteAndLinkVote("user", "123");
+        assertThat(votedLinks.get("user").contains("456")).isTrue();
     }
 
     @Test
@@ -255,24 +466,25 @@ public class LinkControllerTests {
         assertThat(result).isEqualTo("redirect:/link/123");
     }
 
-    private void assertUserVoteAndLinkVote(String username, String votedLinkId, String ... votedLinkIds) {
-        ArgumentCaptor<User> userCaptor = ArgumentCaptor.forClass(User.class);
-        verify(elasticsearchOperations).save(userCaptor.capture());
+    private void assertUserVoteAndLinkVote(String username, String votedLinkId) {
+        ArgumentCaptor<UpdateQuery> userCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations).update(userCaptor.capture(), index("users"));
         ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
-        verify(elasticsearchOperations).update(updateCaptor.capture(), any());
+        verify(elasticsearchOperations).update(updateCaptor.capture(), index("links"));
+        verify(elasticsearchOperations, never()).save(any(User.class));
 
-        User user = userCaptor.getValue();
-        assertThat(user.getId()).isEqualTo(username);
-        if (votedLinkIds.length == 0) {
-            assertThat(user.getIds()).containsOnly(votedLinkId);
-        } else {
-            assertThat(user.getIds()).contains(votedLinkId);
-            assertThat(user.getIds()).contains(votedLinkIds);
-        }
+        UpdateQuery userUpdate = userCaptor.getValue();
+        assertThat(userUpdate.getId()).isEqualTo(username);
+        assertThat(userUpdate.getParams()).containsEntry("id", votedLinkId);
+        assertThat(userUpdate.getUpsert()).containsEntry("ids", List.of(votedLinkId));
 
         UpdateQuery updateQuery = updateCaptor.getValue();
         assertThat(updateQuery.getId()).isEqualTo(votedLinkId);
+        assertThat(votedLinks.get(username).contains(votedLinkId)).isTrue();
+    }
 
+    private static IndexCoordinates index(String name) {
+        return argThat(index -> index != null && name.equals(index.getIndexName()));
     }
 
     static OAuth2User createUser(String githubLogin) {
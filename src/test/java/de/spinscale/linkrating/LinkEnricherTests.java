@@ -0,0 +1,185 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import com.sun.net.httpserver.HttpServer;
+import de.spinscale.linkrating.entity.Link;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LinkEnricherTests {
+
+    private static final String PAGE = "<html><head>\n" +
+            "<title>\n  Fetched &amp; <b>title</b>\n</title>\n" +
+            "<meta property=\"og:description\" content=\"og description\">\n" +
+            "<meta name=\"description\" content='The meta description'>\n" +
+            "<link rel=\"canonical\" href=\"/canonical\">\n" +
+            "</head><body></body></html>";
+
+    private final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+    private final LinkSearchService linkSearchService = mock(LinkSearchService.class);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HttpServer server;
+    private LinkEnricher enricher;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/page", exchange -> {
+            final byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/redirect", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/page");
+            exchange.sendResponseHeaders(301, -1);
+            exchange.close();
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        enricher = new LinkEnricher(elasticsearchOperations, linkSearchService, true, 2, 10, 2, Duration.ofSeconds(5), true);
+    }
+
+    @AfterEach
+    public void stopServer() {
+        release.countDown();
+        enricher.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testSubmittedLinkIsEnrichedInBackground() {
+        mockLink("123", "/redirect", false);
+
+        enricher.onApplicationEvent(new LinkChangedEvent(this, "123", LinkChangedEvent.Type.SUBMITTED));
+
+        final ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations, timeout(5000)).update(updateCaptor.capture(), any());
+        final UpdateQuery updateQuery = updateCaptor.getValue();
+        assertThat(updateQuery.getId()).isEqualTo("123");
+        assertThat(updateQuery.getScript()).contains("ctx.op = 'noop'");
+        final Map<String, Object> fields = (Map<String, Object>) updateQuery.getParams().get("fields");
+        assertThat(fields).containsEntry("title", "Fetched & title")
+                .containsEntry("description", "The meta description")
+                .containsEntry("url", baseUrl() + "/canonical");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCanonicalUrlOfExistingLinkIsFlaggedAsDuplicate() throws Exception {
+        mockLink("123", "/page", false);
+        final Link existing = new Link();
+        existing.setId("456");
+        when(linkSearchService.findByUrl(eq(baseUrl() + "/canonical"))).thenReturn(existing);
+
+        enricher.enrich("123");
+
+        final ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations).update(updateCaptor.capture(), any());
+        final Map<String, Object> fields = (Map<String, Object>) updateCaptor.getValue().getParams().get("fields");
+        assertThat(fields).doesNotContainKey("url")
+                .containsEntry("duplicate_of", "456")
+                .containsEntry("title", "Fetched & title");
+    }
+
+    @Test
+    public void testEnrichmentDoesNotBlockTheCaller() {
+        mockLink("123", "/slow", false);
+
+        final long start = System.nanoTime();
+        enricher.onApplicationEvent(new LinkChangedEvent(this, "123", LinkChangedEvent.Type.SUBMITTED));
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+
+        release.countDown();
+        verify(elasticsearchOperations, after(500).never()).update(any(UpdateQuery.class), any());
+    }
+
+    @Test
+    public void testApprovedLinkIsNotFetched() {
+        mockLink("123", "/page", true);
+
+        enricher.enrich("123");
+
+        verify(elasticsearchOperations, never()).update(any(UpdateQuery.class), any());
+    }
+
+    @Test
+    public void testPrivateAddressesAreNotFetchedByDefault() {
+        final LinkEnricher guardedEnricher = new LinkEnricher(elasticsearchOperations, linkSearchService, true, 1, 1, 1, Duration.ofSeconds(5), false);
+        mockLink("123", "/page", false);
+
+        guardedEnricher.enrich("123");
+        guardedEnricher.close();
+
+        verify(elasticsearchOperations, never()).update(any(UpdateQuery.class), any());
+        assertThat(new PublicAddressGuard(false).isAllowed(URI.create(baseUrl()))).isFalse();
+        assertThat(new PublicAddressGuard(false).isAllowed(URI.create("file:///etc/passwd"))).isFalse();
+    }
+
+    @Test
+    public void testExtractWithoutMetadata() {
+        final LinkEnricher.Metadata metadata = LinkEnricher.extract("<html><body>nothing here</body></html>");
+        assertThat(metadata.toFields(URI.create("https://example.org/"))).isEmpty();
+    }
+
+    private void mockLink(String id, String path, boolean approved) {
+        final Link link = new Link("Title", "Description", baseUrl() + path, "elasticsearch", new Date(), 1L, approved, "user");
+        link.setId(id);
+        when(elasticsearchOperations.get(eq(id), eq(Link.class))).thenReturn(link);
+    }
+
+    private String baseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+}
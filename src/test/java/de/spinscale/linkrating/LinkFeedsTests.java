@@ -0,0 +1,241 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.controller.FeedController;
+import de.spinscale.linkrating.entity.Link;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHitsImpl;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LinkFeedsTests {
+
+    private final LinkFeeds linkFeeds = new LinkFeeds(mock(ElasticsearchOperations.class), "https://links.example.org/", 2, 500, Runnable::run);
+    private final FeedController controller = new FeedController(linkFeeds);
+
+    @Test
+    public void testAtomFeed() throws Exception {
+        linkFeeds.update(List.of(link("3", "kibana", "2020-10-03T10:00:00Z"), link("2", "elasticsearch", "2020-10-02T10:00:00Z"),
+                link("1", "elasticsearch", "2020-10-01T10:00:00Z")));
+
+        final Element feed = parse(linkFeeds.get(LinkFeeds.Format.ATOM, null));
+        assertThat(feed.getNamespaceURI()).isEqualTo("http://www.w3.org/2005/Atom");
+        assertThat(text(feed, "id")).isEqualTo("https://links.example.org/feed.atom");
+        assertThat(text(feed, "updated")).isEqualTo("2020-10-03T10:00:00Z");
+        // limited to the configured size
+        assertThat(feed.getElementsByTagName("entry").getLength()).isEqualTo(2);
+        final Element entry = (Element) feed.getElementsByTagName("entry").item(0);
+        assertThat(text(entry, "id")).isEqualTo("https://links.example.org/link/3");
+        assertThat(text(entry, "title")).isEqualTo("Title <3> & more");
+        assertThat(((Element) entry.getElementsByTagName("link").item(0)).getAttribute("href")).isEqualTo("https://example.org/3");
+
+        final Element categoryFeed = parse(linkFeeds.get(LinkFeeds.Format.ATOM, "elasticsearch"));
+        assertThat(text(categoryFeed, "title")).isEqualTo("Link Rating: elasticsearch");
+        assertThat(categoryFeed.getElementsByTagName("entry").getLength()).isEqualTo(2);
+        assertThat(linkFeeds.get(LinkFeeds.Format.ATOM, "cloud")).isNull();
+    }
+
+    @Test
+    public void testRssFeed() throws Exception {
+        linkFeeds.update(List.of(link("1", "elasticsearch", "2020-10-01T10:00:00Z")));
+
+        final Element rss = parse(linkFeeds.get(LinkFeeds.Format.RSS, "elasticsearch"));
+        assertThat(rss.getAttribute("version")).isEqualTo("2.0");
+        final Element item = (Element) rss.getElementsByTagName("item").item(0);
+        assertThat(text(item, "link")).isEqualTo("https://example.org/1");
+        assertThat(text(item, "guid")).isEqualTo("https://links.example.org/link/1");
+        assertThat(text(item, "pubDate")).isEqualTo("Thu, 1 Oct 2020 10:00:00 GMT");
+    }
+
+    @Test
+    public void testUnchangedFeedKeepsEtag() {
+        final List<Link> links = List.of(link("2", "kibana", "2020-10-02T10:00:00Z"), link("1", "elasticsearch", "2020-10-01T10:00:00Z"));
+        linkFeeds.update(links);
+        final LinkFeeds.Feed feed = linkFeeds.get(LinkFeeds.Format.ATOM, null);
+        final LinkFeeds.Feed kibana = linkFeeds.get(LinkFeeds.Format.ATOM, "kibana");
+
+        linkFeeds.update(links);
+        assertThat(linkFeeds.get(LinkFeeds.Format.ATOM, null)).isSameAs(feed);
+
+        // only the feeds containing the deleted link change
+        linkFeeds.remove("1");
+        assertThat(linkFeeds.get(LinkFeeds.Format.ATOM, null).getEtag()).isNotEqualTo(feed.getEtag());
+        assertThat(linkFeeds.get(LinkFeeds.Format.ATOM, "kibana")).isSameAs(kibana);
+        assertThat(linkFeeds.get(LinkFeeds.Format.ATOM, "elasticsearch")).isNull();
+    }
+
+    @Test
+    public void testConditionalRequests() {
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.atom(webRequest(new MockHttpServletRequest())))
+                .withMessage("503 SERVICE_UNAVAILABLE");
+
+        linkFeeds.update(List.of(link("1", "elasticsearch", "2020-10-01T10:00:00Z")));
+        final ResponseEntity<byte[]> response = controller.rss(webRequest(new MockHttpServletRequest()));
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType().toString()).isEqualTo("application/rss+xml;charset=UTF-8");
+        assertThat(response.getBody()).isEqualTo(linkFeeds.get(LinkFeeds.Format.RSS, null).getContent());
+
+        final MockHttpServletRequest conditional = new MockHttpServletRequest("GET", "/feed.rss");
+        conditional.addHeader("If-None-Match", linkFeeds.get(LinkFeeds.Format.RSS, null).getEtag());
+        final MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        final ResponseEntity<byte[]> notModified = controller.rss(new ServletWebRequest(conditional, servletResponse));
+        assertThat(notModified.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        assertThat(notModified.getBody()).isNull();
+        assertThat(servletResponse.getHeader("ETag")).isEqualTo(linkFeeds.get(LinkFeeds.Format.RSS, null).getEtag());
+
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.categoryAtom("cloud", webRequest(new MockHttpServletRequest())))
+                .withMessage("404 NOT_FOUND");
+    }
+
+    @Test
+    public void testConcurrentReloadsApplyLatestResult() throws Exception {
+        final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+        final LinkFeeds feeds = new LinkFeeds(elasticsearchOperations, "https://links.example.org/", 2, 500, Runnable::run);
+        final CountDownLatch firstSearchStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstSearch = new CountDownLatch(1);
+        when(elasticsearchOperations.search(any(Query.class), eq(Link.class)))
+                .thenAnswer(invocation -> {
+                    firstSearchStarted.countDown();
+                    releaseFirstSearch.await(10, TimeUnit.SECONDS);
+                    return hits(link("1", "elasticsearch", "2020-10-01T10:00:00Z"));
+                })
+                .thenReturn(hits(link("2", "kibana", "2020-10-02T10:00:00Z"), link("1", "elasticsearch", "2020-10-01T10:00:00Z")));
+
+        final Thread slowReload = new Thread(feeds::reload);
+        slowReload.start();
+        firstSearchStarted.await(10, TimeUnit.SECONDS);
+        final Thread reload = new Thread(feeds::reload);
+        reload.start();
+        // either waiting for the slow reload, or done already
+        while (reload.getState() != Thread.State.BLOCKED && reload.getState() != Thread.State.TERMINATED) {
+            Thread.sleep(10);
+        }
+        releaseFirstSearch.countDown();
+        slowReload.join();
+        reload.join();
+
+        assertThat(feeds.get(LinkFeeds.Format.ATOM, "kibana")).isNotNull();
+    }
+
+    @Test
+    public void testApprovalsCollapseIntoOneQueuedReload() {
+        final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+        when(elasticsearchOperations.search(any(Query.class), eq(Link.class))).thenReturn(hits(link("1", "elasticsearch", "2020-10-01T10:00:00Z")));
+        final List<Runnable> queue = new ArrayList<>();
+        final LinkFeeds feeds = new LinkFeeds(elasticsearchOperations, "https://links.example.org/", 2, 500, queue::add);
+
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "1", LinkChangedEvent.Type.APPROVED));
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "2", LinkChangedEvent.Type.APPROVED));
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "3", LinkChangedEvent.Type.APPROVED));
+        assertThat(queue).hasSize(1);
+        verify(elasticsearchOperations, never()).search(any(Query.class), eq(Link.class));
+
+        queue.remove(0).run();
+        verify(elasticsearchOperations, times(1)).search(any(Query.class), eq(Link.class));
+        assertThat(feeds.get(LinkFeeds.Format.ATOM, "elasticsearch")).isNotNull();
+
+        // once the reload started, the next approval needs another one
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "4", LinkChangedEvent.Type.APPROVED));
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "1", LinkChangedEvent.Type.DELETED));
+        assertThat(queue).hasSize(2);
+    }
+
+    @Test
+    public void testFullQueueDoesNotBlockLaterReloads() {
+        final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+        when(elasticsearchOperations.search(any(Query.class), eq(Link.class))).thenReturn(hits(link("1", "elasticsearch", "2020-10-01T10:00:00Z")));
+        final List<Runnable> queue = new ArrayList<>();
+        final AtomicBoolean full = new AtomicBoolean(true);
+        final LinkFeeds feeds = new LinkFeeds(elasticsearchOperations, "https://links.example.org/", 2, 500, task -> {
+            if (full.get()) {
+                throw new RejectedExecutionException();
+            }
+            queue.add(task);
+        });
+
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "1", LinkChangedEvent.Type.APPROVED));
+        full.set(false);
+        feeds.onApplicationEvent(new LinkChangedEvent(this, "2", LinkChangedEvent.Type.APPROVED));
+        assertThat(queue).hasSize(1);
+    }
+
+    private static SearchHitsImpl<Link> hits(Link... links) {
+        final List<SearchHit<Link>> hits = List.of(links).stream()
+                .map(link -> new SearchHit<>(link.getId(), 1.0f, null, null, link))
+                .collect(Collectors.toList());
+        return new SearchHitsImpl<>(hits.size(), TotalHitsRelation.EQUAL_TO, 1.0f, null, hits, null);
+    }
+
+    private static ServletWebRequest webRequest(MockHttpServletRequest request) {
+        request.setMethod("GET");
+        return new ServletWebRequest(request, new MockHttpServletResponse());
+    }
+
+    private static Link link(String id, String category, String createdAt) {
+        final Link link = new Link("Title <" + id + "> & more", "Description " + id, "https://example.org/" + id, category,
+                Date.from(Instant.parse(createdAt)), 1L, true, "user");
+        link.setId(id);
+        return link;
+    }
+
+    private static Element parse(LinkFeeds.Feed feed) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(feed.getContent()));
+        return document.getDocumentElement();
+    }
+
+    private static String text(Element element, String name) {
+        return element.getElementsByTagName(name).item(0).getTextContent();
+    }
+}
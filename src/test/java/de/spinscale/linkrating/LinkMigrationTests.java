@@ -0,0 +1,315 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+public class LinkMigrationTests {
+
+    private FakeCluster cluster;
+
+    @AfterEach
+    public void stopCluster() throws IOException {
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    @Test
+    public void testWriteBeforeBlockIsCopied() throws Exception {
+        cluster = new FakeCluster("links-000001");
+        cluster.index("links-000001", "1", true);
+        cluster.index("links-000001", "2", true);
+        // lands within the last refresh interval before the write block
+        cluster.beforeBlock = () -> cluster.index("links-000001", "3", false);
+
+        cluster.migration().migrate();
+        assertThat(cluster.ids("links-000002")).containsExactlyInAnyOrder("1", "2", "3");
+        assertThat(cluster.writeIndex).isEqualTo("links-000002");
+    }
+
+    @Test
+    public void testNextIndexName() {
+        assertThat(LinkMigration.nextIndexName(Set.of("links-000001"))).isEqualTo("links-000002");
+        assertThat(LinkMigration.nextIndexName(Set.of("links-000009", "links-000010", "links-000002"))).isEqualTo("links-000011");
+        // indices not created by rollover or a migration are ignored
+        assertThat(LinkMigration.nextIndexName(Set.of("links-restored", "links-000003"))).isEqualTo("links-000004");
+    }
+
+    @Test
+    public void testProgressFromTaskStatus() {
+        final Map<String, Object> status = Map.of("total", 1000, "created", 400, "updated", 100, "batches", 1);
+        assertThat(LinkMigration.copied(status)).isEqualTo(500);
+        assertThat(LinkMigration.copied(null)).isEqualTo(0);
+
+        assertThat(LinkMigration.progress(500, 1000, TimeUnit.SECONDS.toNanos(2)))
+                .isEqualTo("copied [500/1000] links (50.0%), [250] links/s");
+        assertThat(LinkMigration.progress(0, 0, 0)).startsWith("copied [0/0] links (100.0%)");
+    }
+
+    @Test
+    public void testFailedMigrationKeepsExistingWriteBlocks() throws Exception {
+        // the old index is in the warm phase of the link policy
+        cluster = new FakeCluster("links-000001", "links-000002");
+        cluster.writeBlocks.put("links-000001", true);
+        cluster.index("links-000001", "1", true);
+        cluster.index("links-000002", "2", true);
+        cluster.failAliasUpdate = true;
+
+        assertThatExceptionOfType(Exception.class).isThrownBy(() -> cluster.migration().migrate());
+        assertThat(cluster.writeBlocks).containsEntry("links-000001", true).containsEntry("links-000002", false);
+        assertThat(cluster.writeIndex).isEqualTo("links-000002");
+    }
+
+    @Test
+    public void testFailedReindexSliceAbortsMigration() throws Exception {
+        cluster = new FakeCluster("links-000001");
+        cluster.index("links-000001", "1", true);
+        cluster.reindexFailures = "[{\"index\":\"links-000002\",\"id\":\"1\",\"cause\":{\"type\":\"mapper_parsing_exception\","
+                + "\"reason\":\"failed to parse field [votes]\"},\"status\":400}]";
+
+        assertThatIllegalStateException().isThrownBy(() -> cluster.migration().migrate())
+                .withMessageContaining("failed for [1] links")
+                .withMessageContaining("failed to parse field [votes]");
+        assertThat(cluster.writeIndex).isEqualTo("links-000001");
+        assertThat(cluster.writeBlocks).containsEntry("links-000001", false);
+    }
+
+    @Test
+    public void testTaskResult() {
+        LinkMigration.checkTaskResult("node:1", Map.of("completed", true, "response", Map.of("version_conflicts", 0, "failures", List.of())));
+        assertThatIllegalStateException()
+                .isThrownBy(() -> LinkMigration.checkTaskResult("node:1", Map.of("completed", true, "error", Map.of("type", "task_cancelled_exception"))))
+                .withMessageContaining("task_cancelled_exception");
+        assertThatIllegalStateException()
+                .isThrownBy(() -> LinkMigration.checkTaskResult("node:1", Map.of("completed", true, "response", Map.of("version_conflicts", 3, "failures", List.of()))))
+                .withMessage("reindex task [node:1] had [3] version conflicts");
+    }
+
+    /**
+     * Just enough of the Elasticsearch REST API for a migration. Searches, counts and reindex only see refreshed
+     * documents, like a real cluster, and reindex copies all matching documents at once.
+     */
+    static class FakeCluster implements AutoCloseable {
+
+        private final ObjectMapper mapper = new ObjectMapper();
+        private final HttpServer server;
+        private final RestHighLevelClient client;
+        // document ids per index with their sequence number and whether they have been refreshed
+        private final Map<String, Map<String, long[]>> indices = new LinkedHashMap<>();
+        final Map<String, Boolean> writeBlocks = new LinkedHashMap<>();
+        final List<String> requests = new ArrayList<>();
+        String writeIndex;
+        Runnable beforeBlock = () -> {};
+        boolean failAliasUpdate = false;
+        String reindexFailures = "[]";
+
+        FakeCluster(String... sourceIndices) throws IOException {
+            for (String index : sourceIndices) {
+                indices.put(index, new LinkedHashMap<>());
+                writeBlocks.put(index, false);
+            }
+            writeIndex = sourceIndices[sourceIndices.length - 1];
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", exchange -> {
+                try {
+                    handle(exchange);
+                } catch (Exception e) {
+                    respond(exchange, 500, "{\"error\":\"" + e + "\",\"status\":500}");
+                }
+            });
+            server.start();
+            client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())));
+        }
+
+        LinkMigration migration() {
+            return new LinkMigration(client, 1, Duration.ofMillis(1), 10, 0);
+        }
+
+        synchronized void index(String index, String id, boolean refreshed) {
+            final Map<String, long[]> docs = indices.get(index);
+            final long seqNo = docs.values().stream().mapToLong(d -> d[0]).max().orElse(-1) + 1;
+            docs.put(id, new long[] { seqNo, refreshed ? 1 : 0 });
+        }
+
+        synchronized Set<String> ids(String index) {
+            return indices.get(index).keySet();
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+            server.stop(0);
+        }
+
+        private synchronized void handle(HttpExchange exchange) throws IOException {
+            final String method = exchange.getRequestMethod();
+            final String path = exchange.getRequestURI().getPath();
+            final JsonNode body = mapper.readTree(exchange.getRequestBody().readAllBytes());
+            requests.add(method + " " + path);
+            final String[] parts = path.substring(1).split("/");
+            final String ack = "{\"acknowledged\":true}";
+
+            if (path.startsWith("/_template/")) {
+                respond(exchange, 200, ack);
+            } else if (path.equals("/_alias/links")) {
+                final Map<String, Object> aliases = new LinkedHashMap<>();
+                for (String index : writeBlocks.keySet()) {
+                    aliases.put(index, Map.of("aliases", Map.of("links", Map.of("is_write_index", index.equals(writeIndex)))));
+                }
+                respond(exchange, 200, mapper.writeValueAsString(aliases));
+            } else if (method.equals("PUT") && parts.length == 1) {
+                indices.put(parts[0], new LinkedHashMap<>());
+                respond(exchange, 200, "{\"acknowledged\":true,\"shards_acknowledged\":true,\"index\":\"" + parts[0] + "\"}");
+            } else if (path.endsWith("/_search")) {
+                final List<long[]> visible = visible(parts[0]);
+                final long maxSeqNo = visible.stream().mapToLong(d -> d[0]).max().orElse(-1);
+                final String hits = maxSeqNo < 0 ? "" : "{\"_index\":\"" + parts[0] + "\",\"_type\":\"_doc\",\"_id\":\"x\",\"_seq_no\":"
+                        + maxSeqNo + ",\"_primary_term\":1,\"_score\":null,\"sort\":[" + maxSeqNo + "]}";
+                respond(exchange, 200, "{\"took\":1,\"timed_out\":false,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+                        + "\"hits\":{\"total\":{\"value\":" + visible.size() + ",\"relation\":\"eq\"},\"max_score\":null,\"hits\":[" + hits + "]}}");
+            } else if (path.endsWith("/_count")) {
+                long count = 0;
+                for (String index : parts[0].split(",")) {
+                    count += visible(index).size();
+                }
+                respond(exchange, 200, "{\"count\":" + count + ",\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}}");
+            } else if (path.equals("/_reindex")) {
+                final long copied = reindex(body);
+                if ("false".equals(query(exchange, "wait_for_completion"))) {
+                    respond(exchange, 200, "{\"task\":\"node:1\"}");
+                } else {
+                    respond(exchange, 200, "{\"took\":1,\"timed_out\":false,\"total\":" + copied + ",\"updated\":0,\"created\":" + copied
+                            + ",\"deleted\":0,\"batches\":1,\"version_conflicts\":0,\"noops\":0,\"retries\":{\"bulk\":0,\"search\":0},"
+                            + "\"throttled_millis\":0,\"requests_per_second\":-1.0,\"throttled_until_millis\":0,\"failures\":[]}");
+                }
+            } else if (path.startsWith("/_tasks/")) {
+                respond(exchange, 200, "{\"completed\":true,\"task\":{\"node\":\"node\",\"id\":1,\"type\":\"transport\","
+                        + "\"action\":\"indices:data/write/reindex\",\"status\":{\"created\":0},\"start_time_in_millis\":0,"
+                        + "\"running_time_in_nanos\":0,\"cancellable\":true},\"response\":{\"created\":0,\"version_conflicts\":0,"
+                        + "\"failures\":" + reindexFailures + "}}");
+            } else if (path.endsWith("/_settings") && method.equals("PUT")) {
+                final JsonNode block = body.has("index.blocks.write") ? body.get("index.blocks.write") : body.path("index").path("blocks").path("write");
+                for (String index : parts[0].split(",")) {
+                    if (block.asBoolean(false) && !writeBlocks.getOrDefault(index, false)) {
+                        beforeBlock.run();
+                        beforeBlock = () -> {};
+                    }
+                    if (!block.isMissingNode()) {
+                        writeBlocks.put(index, block.asBoolean(false));
+                    }
+                }
+                respond(exchange, 200, ack);
+            } else if (path.contains("/_settings") && method.equals("GET")) {
+                final Map<String, Object> settings = new LinkedHashMap<>();
+                for (String index : parts[0].split(",")) {
+                    final Map<String, Object> indexSettings = writeBlocks.getOrDefault(index, false)
+                            ? Map.of("index", Map.of("blocks", Map.of("write", "true"))) : Map.of();
+                    settings.put(index, Map.of("settings", indexSettings));
+                }
+                respond(exchange, 200, mapper.writeValueAsString(settings));
+            } else if (path.endsWith("/_refresh")) {
+                for (String index : parts[0].split(",")) {
+                    indices.get(index).values().forEach(d -> d[1] = 1);
+                }
+                respond(exchange, 200, "{\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0}}");
+            } else if (path.equals("/_aliases")) {
+                if (failAliasUpdate) {
+                    respond(exchange, 500, "{\"error\":\"alias update failed\",\"status\":500}");
+                    return;
+                }
+                for (JsonNode action : body.path("actions")) {
+                    if (action.has("add")) {
+                        writeIndex = action.get("add").path("indices").get(0).asText();
+                    }
+                }
+                respond(exchange, 200, ack);
+            } else {
+                respond(exchange, 400, "{\"error\":\"unexpected request " + method + " " + path + "\",\"status\":400}");
+            }
+        }
+
+        // copies the refreshed documents of the source indices matching the optional _seq_no range
+        private long reindex(JsonNode body) {
+            final String target = body.path("dest").path("index").asText();
+            final JsonNode range = body.path("source").path("query").path("range").path("_seq_no");
+            long copied = 0;
+            for (JsonNode source : body.path("source").path("index")) {
+                for (Map.Entry<String, long[]> doc : indices.get(source.asText()).entrySet()) {
+                    final long seqNo = doc.getValue()[0];
+                    final boolean inRange = range.isMissingNode()
+                            || ((range.path("from").isNull() || seqNo > range.path("from").asLong())
+                            && (range.path("to").isNull() || seqNo <= range.path("to").asLong()));
+                    if (doc.getValue()[1] == 1 && inRange) {
+                        indices.get(target).put(doc.getKey(), new long[] { 0, 1 });
+                        copied++;
+                    }
+                }
+            }
+            return copied;
+        }
+
+        private List<long[]> visible(String index) {
+            return indices.get(index).values().stream().filter(d -> d[1] == 1).collect(Collectors.toList());
+        }
+
+        private static String query(HttpExchange exchange, String name) {
+            final String query = exchange.getRequestURI().getQuery();
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    if (parameter.startsWith(name + "=")) {
+                        return parameter.substring(name.length() + 1);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+            final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+    }
+}
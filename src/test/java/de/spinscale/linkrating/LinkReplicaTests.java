@@ -0,0 +1,101 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class LinkReplicaTests {
+
+    private final LinkReplica replica = new LinkReplica(null, mock(ElasticsearchOperations.class), true, 60);
+
+    @Test
+    public void testNotReadyBeforeFirstSync() {
+        assertThat(replica.isReady()).isFalse();
+        assertThat(new LinkReplica(null, mock(ElasticsearchOperations.class), false, 60).isReady()).isFalse();
+    }
+
+    @Test
+    public void testRankingPrefersRecentAndPopularLinks() {
+        final Link old = link("old", "Old news", 30, 1, true);
+        final Link popular = link("popular", "Popular news", 30, 500, true);
+        final Link fresh = link("fresh", "Fresh news", 0, 1, true);
+        replica.apply(List.of(old, popular, fresh), Collections.emptySet(), true);
+
+        assertThat(replica.isReady()).isTrue();
+        assertThat(replica.ranked()).extracting(Link::getId).containsExactly("popular", "fresh", "old");
+    }
+
+    @Test
+    public void testUnapprovedLinksAreNotReplicated() {
+        replica.apply(List.of(link("a", "Approved", 1, 1, true), link("b", "Pending", 1, 1, false)), Collections.emptySet(), true);
+
+        assertThat(replica.ranked()).extracting(Link::getId).containsExactly("a");
+        assertThat(replica.get("b")).isNull();
+    }
+
+    @Test
+    public void testIncrementalChangesAndDeletes() {
+        replica.apply(List.of(link("a", "First", 1, 1, true), link("b", "Second", 1, 1, true)), Collections.emptySet(), true);
+
+        // b gets unapproved, c gets approved
+        replica.apply(List.of(link("b", "Second", 1, 1, false), link("c", "Third", 1, 1, true)), Collections.emptySet(), false);
+        assertThat(replica.ranked()).extracting(Link::getId).containsExactlyInAnyOrder("a", "c");
+
+        replica.onApplicationEvent(new LinkChangedEvent(this, "a", LinkChangedEvent.Type.DELETED));
+        assertThat(replica.ranked()).extracting(Link::getId).containsExactly("c");
+        assertThat(replica.get("c").getTitle()).isEqualTo("Third");
+    }
+
+    @Test
+    public void testKeywordSearch() {
+        replica.apply(List.of(link("a", "Elasticsearch Rocks", 1, 1, true), link("b", "Kibana dashboards", 1, 1, true)), Collections.emptySet(), true);
+
+        assertThat(replica.search("elasticsearch")).extracting(Link::getId).containsExactly("a");
+        assertThat(replica.search(" KIBANA ")).extracting(Link::getId).containsExactly("b");
+        // description is searched as well
+        assertThat(replica.search("description")).hasSize(2);
+        assertThat(replica.search("logstash")).isEmpty();
+    }
+
+    @Test
+    public void testSimpleQuery() {
+        assertThat(LinkReplica.isSimpleQuery("elasticsearch")).isTrue();
+        assertThat(LinkReplica.isSimpleQuery(" elasticsearch ")).isTrue();
+        assertThat(LinkReplica.isSimpleQuery("elasticsearch kibana")).isFalse();
+        assertThat(LinkReplica.isSimpleQuery("elastic*")).isFalse();
+        assertThat(LinkReplica.isSimpleQuery(null)).isFalse();
+    }
+
+    private static Link link(String id, String title, int ageInDays, long votes, boolean approved) {
+        final Date createdAt = Date.from(Instant.now().minus(Duration.ofDays(ageInDays)));
+        final Link link = new Link(title, "A description", "https://example.org/" + id, "elasticsearch", createdAt, votes, approved, "user");
+        link.setId(id);
+        return link;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.MappingElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LinkSearchServiceTests {
+
+    private final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+    private final ElasticsearchGuard guard = mock(ElasticsearchGuard.class);
+    private final LinkSearchService service = createService();
+
+    @Test
+    public void testRankedRequestIsCacheable() {
+        final SearchTemplateRequest request = service.rankedRequest(null, Instant.parse("2020-10-01T10:15:42.123Z"));
+
+        assertThat(request.getScriptType()).isEqualTo(ScriptType.STORED);
+        assertThat(request.getScript()).isEqualTo(SearchTemplates.RANKED);
+        assertThat(request.getRequest().indices()).containsExactly("links");
+        assertThat(request.getRequest().requestCache()).isTrue();
+        assertThat(request.getRequest().preference()).isEqualTo("linkrating");
+        assertThat(request.getScriptParams()).containsOnly(entry("origin", "2020-10-01T10:15:00Z"), entry("size", LinkSearchService.PAGE_SIZE),
+                entry("timeout", "500ms"));
+
+        // requests within the same minute are identical, so they can be served from the request cache
+        final SearchTemplateRequest sameMinute = service.rankedRequest(null, Instant.parse("2020-10-01T10:15:59.999Z"));
+        assertThat(sameMinute.getScriptParams()).isEqualTo(request.getScriptParams());
+        final SearchTemplateRequest nextMinute = service.rankedRequest(null, Instant.parse("2020-10-01T10:16:00Z"));
+        assertThat(nextMinute.getScriptParams()).isNotEqualTo(request.getScriptParams());
+    }
+
+    @Test
+    public void testRankedRequestWithQuery() {
+        final SearchTemplateRequest request = service.rankedRequest("my query", Instant.now());
+        assertThat(request.getScriptParams()).containsEntry("q", "my query");
+        assertThat(request.getScriptParams()).containsEntry("terminate_after", 1000);
+
+        // the main page without a query does not stop early
+        assertThat(service.rankedRequest("", Instant.now()).getScriptParams()).doesNotContainKeys("q", "terminate_after");
+    }
+
+    @Test
+    public void testTrendingRequest() {
+        final SearchTemplateRequest request = service.trendingRequest("my query", Instant.parse("2020-10-01T10:15:42.123Z"));
+
+        assertThat(request.getScript()).isEqualTo(SearchTemplates.TRENDING);
+        assertThat(request.getRequest().requestCache()).isTrue();
+        assertThat(request.getScriptParams()).containsOnly(entry("origin", "2020-10-01T10:15:00Z"), entry("size", LinkSearchService.PAGE_SIZE),
+                entry("timeout", "500ms"), entry("q", "my query"));
+    }
+
+    @Test
+    public void testLimitQuery() {
+        assertThat(LinkSearchService.limitQuery(null, 20, 3)).isNull();
+        assertThat(LinkSearchService.limitQuery("spring  boot", 20, 3)).isEqualTo("spring  boot");
+        assertThat(LinkSearchService.limitQuery("one two three four", 20, 3)).isEqualTo("one two three");
+        assertThat(LinkSearchService.limitQuery("elasticsearch kibana logstash", 20, 3)).isEqualTo("elasticsearch kibana");
+        assertThat(LinkSearchService.limitQuery("a".repeat(30) + " b", 20, 3)).isEqualTo("a".repeat(20));
+    }
+
+    @Test
+    public void testShortenedQueryIsPartial() throws Exception {
+        final SearchTemplateResponse response = response("{\"title\":\"Some title\"}", false);
+        when(guard.execute(any())).thenReturn(response);
+
+        final String q = "this query has far too many terms to be searched for";
+        final LinkSearchResult result = service.searchRanked(q);
+        assertThat(result.isPartial()).isTrue();
+        assertThat(result.isStale()).isFalse();
+        assertThat(service.searchRanked("my query").isPartial()).isFalse();
+    }
+
+    @Test
+    public void testTimedOutSearchIsPartialAndNotKeptForStaleResults() throws Exception {
+        final SearchTemplateResponse response = response("{\"title\":\"Some title\"}", true);
+        when(guard.execute(any())).thenReturn(response);
+        assertThat(service.searchRanked("my query").isPartial()).isTrue();
+
+        when(guard.execute(any())).thenThrow(new IOException("connection refused"));
+        assertThatExceptionOfType(IOException.class).isThrownBy(() -> service.searchRanked("my query"));
+    }
+
+    @Test
+    public void testUnapprovedRequest() {
+        final SearchTemplateRequest request = service.unapprovedRequest();
+
+        assertThat(request.getScript()).isEqualTo(SearchTemplates.UNAPPROVED);
+        assertThat(request.getRequest().indices()).containsExactly("links");
+        assertThat(request.getScriptParams()).containsOnly(entry("size", LinkSearchService.UNAPPROVED_PAGE_SIZE));
+    }
+
+    @Test
+    public void testDuplicateCheckRequests() {
+        final SearchTemplateRequest byUrl = service.byUrlRequest("https://example.org");
+        assertThat(byUrl.getScript()).isEqualTo(SearchTemplates.BY_URL);
+        assertThat(byUrl.getScriptParams()).containsOnly(entry("url", "https://example.org"));
+
+        final SearchTemplateRequest pending = service.pendingByUserRequest("user");
+        assertThat(pending.getScript()).isEqualTo(SearchTemplates.PENDING_BY_USER);
+        assertThat(pending.getScriptParams()).containsOnly(entry("login", "user"));
+    }
+
+    @Test
+    public void testStaleResultsAreServedWhenElasticsearchIsUnavailable() throws Exception {
+        final SearchTemplateResponse response = response("{\"title\":\"Some title\",\"approved\":true}", false);
+        when(guard.execute(any())).thenReturn(response);
+        final LinkSearchResult result = service.searchRanked("my query");
+        assertThat(result.isStale()).isFalse();
+        assertThat(result.getLinks()).extracting(Link::getTitle).containsExactly("Some title");
+
+        when(guard.execute(any())).thenThrow(new IOException("circuit to Elasticsearch is open, rejecting request"));
+        final LinkSearchResult staleResult = service.searchRanked("my query");
+        assertThat(staleResult.isStale()).isTrue();
+        assertThat(staleResult.getLinks()).isEqualTo(result.getLinks());
+
+        // nothing to fall back to for other queries
+        assertThatExceptionOfType(IOException.class).isThrownBy(() -> service.searchRanked("another query"));
+    }
+
+    @Test
+    public void testStaleCacheIsBounded() throws Exception {
+        final SearchTemplateResponse response = response("{\"title\":\"Some title\"}", false);
+        when(guard.execute(any())).thenReturn(response);
+        for (int i = 0; i < 3; i++) {
+            service.searchRanked("query " + i);
+        }
+        // the least recently used query has been evicted
+        when(guard.execute(any())).thenThrow(new IOException("connection refused"));
+        assertThatExceptionOfType(IOException.class).isThrownBy(() -> service.searchRanked("query 0"));
+        assertThat(service.searchRanked("query 2").isStale()).isTrue();
+    }
+
+    @Test
+    public void testRoundedOrigin() {
+        final Instant now = Instant.parse("2020-10-01T10:15:42.123Z");
+        assertThat(LinkSearchService.roundedOrigin(now, Duration.ofMinutes(1))).isEqualTo("2020-10-01T10:15:00Z");
+        assertThat(LinkSearchService.roundedOrigin(now, Duration.ofHours(1))).isEqualTo("2020-10-01T10:00:00Z");
+        assertThat(LinkSearchService.roundedOrigin(now, Duration.ZERO)).isEqualTo("2020-10-01T10:15:42.123Z");
+    }
+
+    private LinkSearchService createService() {
+        when(elasticsearchOperations.getElasticsearchConverter()).thenReturn(new MappingElasticsearchConverter(new SimpleElasticsearchMappingContext()));
+        return new LinkSearchService(mock(RestHighLevelClient.class), elasticsearchOperations, guard, "linkrating", Duration.ofMinutes(1), 2,
+                30, 3, Duration.ofMillis(500), 1000);
+    }
+
+    private static SearchTemplateResponse response(String source, boolean timedOut) {
+        final SearchHit hit = new SearchHit(1, "my_id", new Text("_doc"), Map.of());
+        hit.sourceRef(new BytesArray(source));
+        final SearchHits hits = new SearchHits(new SearchHit[] { hit }, new TotalHits(1, TotalHits.Relation.EQUAL_TO), 1.0f);
+        final SearchResponseSections sections = new SearchResponseSections(hits, null, null, timedOut, null, null, 1);
+        final SearchTemplateResponse response = mock(SearchTemplateResponse.class);
+        when(response.getResponse()).thenReturn(new SearchResponse(sections, null, 1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY));
+        return response;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.Link;
+import de.spinscale.linkrating.entity.RelatedLink;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHitsImpl;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RelatedLinksTests {
+
+    private final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+    private final RelatedLinks relatedLinks = new RelatedLinks(elasticsearchOperations, 5, Runnable::run);
+
+    @Test
+    public void testApprovedLinkStoresRelatedLinks() {
+        final Link link = link("new", true);
+        final Link other = link("other", true);
+        when(elasticsearchOperations.get(eq("new"), eq(Link.class))).thenReturn(link);
+        when(elasticsearchOperations.get(eq("other"), eq(Link.class))).thenReturn(other);
+        when(elasticsearchOperations.search(any(NativeSearchQuery.class), eq(Link.class)))
+                .thenReturn(hits(other))
+                .thenReturn(hits(link));
+
+        relatedLinks.onApplicationEvent(new LinkChangedEvent(this, "new", LinkChangedEvent.Type.APPROVED));
+
+        final ArgumentCaptor<NativeSearchQuery> queryCaptor = ArgumentCaptor.forClass(NativeSearchQuery.class);
+        verify(elasticsearchOperations, times(2)).search(queryCaptor.capture(), eq(Link.class));
+        final String query = queryCaptor.getAllValues().get(0).getQuery().toString();
+        assertThat(query).contains("more_like_this", "\"category\"", "\"approved\"", "\"ids\"");
+        assertThat(queryCaptor.getAllValues().get(0).getPageable().getPageSize()).isEqualTo(5);
+
+        // the new link and the link it is related to are both updated
+        final ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations, times(2)).update(updateCaptor.capture(), any());
+        assertThat(updateCaptor.getAllValues()).extracting(UpdateQuery::getId).containsExactly("new", "other");
+        assertThat(relatedIds(updateCaptor.getAllValues().get(0))).containsExactly("other");
+        assertThat(relatedIds(updateCaptor.getAllValues().get(1))).containsExactly("new");
+    }
+
+    @Test
+    public void testApprovalIsHandledInBackground() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final RelatedLinks background = new RelatedLinks(elasticsearchOperations, 5, tasks::add);
+
+        background.onApplicationEvent(new LinkChangedEvent(this, "new", LinkChangedEvent.Type.APPROVED));
+        background.onApplicationEvent(new LinkChangedEvent(this, "new", LinkChangedEvent.Type.VOTED));
+        assertThat(tasks).hasSize(1);
+        verify(elasticsearchOperations, never()).get(any(), any());
+
+        tasks.get(0).run();
+        verify(elasticsearchOperations).get(eq("new"), eq(Link.class));
+
+        // a full queue only logs
+        new RelatedLinks(elasticsearchOperations, 5, task -> {
+            throw new RejectedExecutionException();
+        }).onApplicationEvent(new LinkChangedEvent(this, "new", LinkChangedEvent.Type.APPROVED));
+    }
+
+    @Test
+    public void testRelatedLinksAreStoredWhileIndexIsWriteBlocked() {
+        final Link link = link("new", true);
+        when(elasticsearchOperations.get(eq("new"), eq(Link.class))).thenReturn(link);
+        when(elasticsearchOperations.search(any(NativeSearchQuery.class), eq(Link.class))).thenReturn(hits(link("other", true)));
+        when(elasticsearchOperations.update(any(UpdateQuery.class), any()))
+                .thenThrow(new ElasticsearchStatusException("Elasticsearch exception [type=cluster_block_exception, " +
+                        "reason=index [links-000001] blocked by: [FORBIDDEN/8/index write (api)];]", RestStatus.FORBIDDEN))
+                .thenReturn(null);
+
+        relatedLinks.update("new");
+
+        verify(elasticsearchOperations, times(2)).update(any(UpdateQuery.class), any());
+    }
+
+    @Test
+    public void testUnapprovedLinkIsIgnored() {
+        when(elasticsearchOperations.get(eq("new"), eq(Link.class))).thenReturn(link("new", false));
+
+        assertThat(relatedLinks.update("new")).isEmpty();
+
+        verify(elasticsearchOperations, never()).search(any(NativeSearchQuery.class), eq(Link.class));
+        verify(elasticsearchOperations, never()).update(any(UpdateQuery.class), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDeletedLinkIsRemovedFromRelatedLinks() {
+        final SearchHitsIterator<Link> iterator = mock(SearchHitsIterator.class);
+        when(iterator.hasNext()).thenReturn(true, false);
+        when(iterator.next()).thenReturn(new SearchHit<>("other", 1.0f, null, null, null));
+        when(elasticsearchOperations.searchForStream(any(NativeSearchQuery.class), eq(Link.class))).thenReturn(iterator);
+        final Link other = link("other", true);
+        other.setRelated(List.of(new RelatedLink("deleted", "Deleted"), new RelatedLink("kept", "Kept")));
+        when(elasticsearchOperations.get(eq("other"), eq(Link.class))).thenReturn(other);
+
+        relatedLinks.onApplicationEvent(new LinkChangedEvent(this, "deleted", LinkChangedEvent.Type.DELETED));
+
+        // no more like this query, as the deleted link might still be visible
+        verify(elasticsearchOperations, never()).search(any(NativeSearchQuery.class), eq(Link.class));
+        final ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations).update(updateCaptor.capture(), any());
+        assertThat(relatedIds(updateCaptor.getValue())).containsExactly("kept");
+    }
+
+    @Test
+    public void testFailingNeighbourDoesNotStopTheOthers() {
+        final Link link = link("new", true);
+        final Link second = link("second", true);
+        when(elasticsearchOperations.get(eq("new"), eq(Link.class))).thenReturn(link);
+        when(elasticsearchOperations.get(eq("first"), eq(Link.class))).thenThrow(new RuntimeException("timeout"));
+        when(elasticsearchOperations.get(eq("second"), eq(Link.class))).thenReturn(second);
+        when(elasticsearchOperations.search(any(NativeSearchQuery.class), eq(Link.class)))
+                .thenReturn(hits(link("first", true), second))
+                .thenReturn(hits(link));
+
+        relatedLinks.onApplicationEvent(new LinkChangedEvent(this, "new", LinkChangedEvent.Type.APPROVED));
+
+        final ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations, times(2)).update(updateCaptor.capture(), any());
+        assertThat(updateCaptor.getAllValues()).extracting(UpdateQuery::getId).containsExactly("new", "second");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailingRemovalDoesNotStopTheOthers() {
+        final SearchHitsIterator<Link> iterator = mock(SearchHitsIterator.class);
+        when(iterator.hasNext()).thenReturn(true, true, false);
+        when(iterator.next()).thenReturn(new SearchHit<>("first", 1.0f, null, null, null), new SearchHit<>("second", 1.0f, null, null, null));
+        when(elasticsearchOperations.searchForStream(any(NativeSearchQuery.class), eq(Link.class))).thenReturn(iterator);
+        when(elasticsearchOperations.get(eq("first"), eq(Link.class))).thenThrow(new RuntimeException("timeout"));
+        final Link second = link("second", true);
+        second.setRelated(List.of(new RelatedLink("deleted", "Deleted")));
+        when(elasticsearchOperations.get(eq("second"), eq(Link.class))).thenReturn(second);
+
+        relatedLinks.onApplicationEvent(new LinkChangedEvent(this, "deleted", LinkChangedEvent.Type.DELETED));
+
+        final ArgumentCaptor<UpdateQuery> updateCaptor = ArgumentCaptor.forClass(UpdateQuery.class);
+        verify(elasticsearchOperations).update(updateCaptor.capture(), any());
+        assertThat(updateCaptor.getValue().getId()).isEqualTo("second");
+        assertThat(relatedIds(updateCaptor.getValue())).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> relatedIds(UpdateQuery updateQuery) {
+        final List<Map<String, String>> related = (List<Map<String, String>>) updateQuery.getDocument().get("related");
+        return related.stream().map(m -> m.get("id")).collect(Collectors.toList());
+    }
+
+    private static SearchHitsImpl<Link> hits(Link... links) {
+        final List<SearchHit<Link>> hits = List.of(links).stream()
+                .map(link -> new SearchHit<>(link.getId(), 1.0f, null, null, link))
+                .collect(Collectors.toList());
+        return new SearchHitsImpl<>(hits.size(), TotalHitsRelation.EQUAL_TO, 1.0f, null, hits, null);
+    }
+
+    private static Link link(String id, boolean approved) {
+        final Link link = new Link("Title " + id, "Description " + id, "https://example.org/" + id, "elasticsearch", new Date(), 1L, approved, "user");
+        link.setId(id);
+        return link;
+    }
+}
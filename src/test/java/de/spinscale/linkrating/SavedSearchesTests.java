@@ -0,0 +1,171 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.controller.SavedSearchController;
+import de.spinscale.linkrating.entity.InboxEntry;
+import de.spinscale.linkrating.entity.Link;
+import de.spinscale.linkrating.entity.SavedSearch;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static de.spinscale.linkrating.LinkControllerTests.createUser;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SavedSearchesTests {
+
+    private final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+    private final SavedSearches savedSearches = new SavedSearches(mock(RestHighLevelClient.class), elasticsearchOperations,
+            new ElasticsearchGuard(20, Duration.ofSeconds(2), 5, Duration.ofSeconds(10)), true, 100);
+
+    @Test
+    public void testSavedQueryMatchesLikeTheMainPageSearch() {
+        final Map<String, Object> query = (Map<String, Object>) SavedSearches.query("spring boot", "kibana").get("bool");
+
+        final Map<String, Object> multiMatch = (Map<String, Object>) ((List<Map<String, Object>>) query.get("must")).get(0).get("multi_match");
+        assertThat(multiMatch).containsEntry("query", "spring boot");
+        assertThat(multiMatch).containsEntry("minimum_should_match", "66%");
+        assertThat((List<String>) multiMatch.get("fields")).containsExactlyInAnyOrder("title^1.0", "description^1.0");
+        final Map<String, Object> term = (Map<String, Object>) ((List<Map<String, Object>>) query.get("filter")).get(0).get("term");
+        assertThat(term).containsKey("category");
+
+        assertThat((Map<String, Object>) SavedSearches.query(null, "kibana").get("bool")).doesNotContainKey("must");
+    }
+
+    @Test
+    public void testPercolateQueryContainsAllLinks() throws Exception {
+        final String json = SavedSearches.percolateQuery(List.of(link("1", "First"), link("2", "Second")));
+        final Map<String, Object> percolate = (Map<String, Object>) XContentHelper.convertToMap(new BytesArray(json), false, XContentType.JSON)
+                .v2().get("percolate");
+
+        assertThat(percolate).containsEntry("field", "query");
+        final List<Map<String, Object>> documents = (List<Map<String, Object>>) percolate.get("documents");
+        assertThat(documents).extracting(document -> document.get("title")).containsExactly("First", "Second");
+        assertThat(documents.get(0)).containsOnlyKeys("title", "description", "category");
+    }
+
+    @Test
+    public void testMatchesAreGroupedPerUserAndLink() {
+        final List<Link> links = List.of(link("1", "First"), link("2", "Second"));
+        final SearchHit[] hits = new SearchHit[] {
+                hit("{\"login\":\"user\",\"q\":\"spring\"}", 0, 1),
+                hit("{\"login\":\"user\",\"category\":\"kibana\"}", 1),
+                hit("{\"login\":\"other\",\"q\":\"boot\",\"category\":\"kibana\"}", 0)
+        };
+        final Map<String, InboxEntry> entries = new LinkedHashMap<>();
+        SavedSearches.addEntries(links, hits, entries);
+
+        assertThat(entries).containsOnlyKeys("user:1", "user:2", "other:1");
+        assertThat(entries.get("user:2").getSearch()).isEqualTo("spring");
+        assertThat(entries.get("user:2").getUrl()).isEqualTo("https://example.org/2");
+        assertThat(entries.get("other:1").getSearch()).isEqualTo("boot in kibana");
+        assertThat(entries.get("other:1").getLinkId()).isEqualTo("1");
+    }
+
+    @Test
+    public void testSave() {
+        when(elasticsearchOperations.save(any(SavedSearch.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        final SavedSearch savedSearch = savedSearches.save("user", " spring ", "Kibana");
+        assertThat(savedSearch.getLogin()).isEqualTo("user");
+        assertThat(savedSearch.getQ()).isEqualTo("spring");
+        assertThat(savedSearch.getCategory()).isEqualTo("kibana");
+        assertThat(savedSearch.getQuery()).isEqualTo(SavedSearches.query("spring", "kibana"));
+
+        assertThatIllegalArgumentException().isThrownBy(() -> savedSearches.save("user", " ", null))
+                .withMessage("a saved search needs a query or a category");
+        assertThatIllegalArgumentException().isThrownBy(() -> savedSearches.save("user", "a".repeat(201), null));
+
+        when(elasticsearchOperations.count(any(Query.class), eq(SavedSearch.class))).thenReturn((long) SavedSearches.MAX_PER_USER);
+        assertThatIllegalArgumentException().isThrownBy(() -> savedSearches.save("user", "spring", null))
+                .withMessage("at most 20 searches can be saved");
+    }
+
+    @Test
+    public void testApprovedLinksAreRetriedAfterFailure() {
+        when(elasticsearchOperations.multiGet(any(Query.class), eq(Link.class), any(IndexCoordinates.class)))
+                .thenThrow(new RuntimeException("connection refused"))
+                .thenReturn(List.of());
+
+        savedSearches.onApplicationEvent(new LinkChangedEvent(this, "1", LinkChangedEvent.Type.APPROVED));
+        savedSearches.onApplicationEvent(new LinkChangedEvent(this, "2", LinkChangedEvent.Type.SUBMITTED));
+        savedSearches.percolatePending();
+        savedSearches.percolatePending();
+        // nothing pending anymore
+        savedSearches.percolatePending();
+
+        final ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        verify(elasticsearchOperations, times(2)).multiGet(captor.capture(), eq(Link.class), any(IndexCoordinates.class));
+        assertThat(captor.getAllValues()).allSatisfy(query -> assertThat(query.getIds()).containsExactly("1"));
+    }
+
+    @Test
+    public void testOnlyOwnSearchesCanBeDeleted() {
+        final SavedSearchController controller = new SavedSearchController(new AdminService("admin"), savedSearches);
+        final SavedSearch savedSearch = new SavedSearch();
+        savedSearch.setId("search_id");
+        savedSearch.setLogin("other");
+        when(elasticsearchOperations.get("search_id", SavedSearch.class)).thenReturn(savedSearch);
+
+        assertThatExceptionOfType(ResponseStatusException.class)
+                .isThrownBy(() -> controller.delete(createUser("user"), "search_id"))
+                .withMessage("404 NOT_FOUND");
+        verify(elasticsearchOperations, never()).delete(any(String.class), eq(SavedSearch.class));
+
+        assertThat(controller.delete(createUser("other"), "search_id")).isEqualTo("redirect:/inbox");
+        verify(elasticsearchOperations).delete("search_id", SavedSearch.class);
+    }
+
+    private static Link link(String id, String title) {
+        final Link link = new Link(title, "Description " + id, "https://example.org/" + id, "kibana", new Date(), 1L, true, "user");
+        link.setId(id);
+        return link;
+    }
+
+    private static SearchHit hit(String source, Integer... slots) {
+        final SearchHit hit = new SearchHit(0, "id", null,
+                Map.of("_percolator_document_slot", new DocumentField("_percolator_document_slot", List.of((Object[]) slots))));
+        return hit.sourceRef(new BytesArray(source));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MultiMatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RankFeatureQueryBuilder;
+import org.elasticsearch.script.TemplateScript;
+import org.elasticsearch.script.mustache.MustacheScriptEngine;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// renders the templates the same way Elasticsearch does and parses the result as a search request
+public class SearchTemplatesTests {
+
+    @Test
+    public void testRankedTemplate() throws IOException {
+        final SearchSourceBuilder source = render(SearchTemplates.RANKED, Map.of("origin", "2020-10-01T10:15:00Z", "size", 10, "timeout", "500ms"));
+
+        assertThat(source.size()).isEqualTo(10);
+        assertThat(source.timeout()).isEqualTo(TimeValue.timeValueMillis(500));
+        assertThat(source.terminateAfter()).isEqualTo(SearchContext.DEFAULT_TERMINATE_AFTER);
+        final BoolQueryBuilder query = (BoolQueryBuilder) source.query();
+        assertThat(query.filter()).containsExactly(QueryBuilders.termQuery("approved", true));
+        assertThat(query.must()).isEmpty();
+        assertThat(query.should()).hasSize(2);
+        assertThat(query.should().get(0).toString()).contains("2020-10-01T10:15:00Z");
+        assertThat(query.should().get(1)).isInstanceOf(RankFeatureQueryBuilder.class);
+    }
+
+    @Test
+    public void testRankedTemplateWithQuery() throws IOException {
+        // quotes must not break out of the JSON string
+        final String q = "my \"query\"";
+        final SearchSourceBuilder source = render(SearchTemplates.RANKED, Map.of("origin", "2020-10-01T10:15:00Z", "size", 10,
+                "timeout", "500ms", "q", q, "terminate_after", 1000));
+        assertThat(source.terminateAfter()).isEqualTo(1000);
+
+        final BoolQueryBuilder query = (BoolQueryBuilder) source.query();
+        assertThat(query.must()).hasSize(1);
+        final MultiMatchQueryBuilder multiMatch = (MultiMatchQueryBuilder) query.must().get(0);
+        assertThat(multiMatch.value()).isEqualTo(q);
+        assertThat(multiMatch.fields()).containsOnlyKeys("title", "description");
+        assertThat(multiMatch.minimumShouldMatch()).isEqualTo("66%");
+    }
+
+    @Test
+    public void testTrendingTemplate() throws IOException {
+        final SearchSourceBuilder source = render(SearchTemplates.TRENDING, Map.of("origin", "2020-10-01T10:15:00Z", "size", 10,
+                "timeout", "500ms", "q", "spring"));
+
+        assertThat(source.size()).isEqualTo(10);
+        final BoolQueryBuilder query = (BoolQueryBuilder) source.query();
+        assertThat(query.filter()).containsExactly(QueryBuilders.termQuery("approved", true));
+        assertThat(query.must()).hasSize(1);
+        assertThat(query.should()).hasSize(2);
+        assertThat(query.should().get(0)).isInstanceOf(RankFeatureQueryBuilder.class);
+        assertThat(query.should().get(0).toString()).contains("velocity");
+        assertThat(query.should().get(1).boost()).isEqualTo(0.1f);
+    }
+
+    @Test
+    public void testUnapprovedTemplate() throws IOException {
+        final SearchSourceBuilder source = render(SearchTemplates.UNAPPROVED, Map.of("size", 50));
+
+        assertThat(source.size()).isEqualTo(50);
+        assertThat(source.trackTotalHitsUpTo()).isEqualTo(SearchContext.TRACK_TOTAL_HITS_DISABLED);
+        // same order as the index sort, see StoreTemplateOnApplicationListener
+        assertThat(source.sorts()).containsExactly(SortBuilders.fieldSort("created_at").order(SortOrder.DESC));
+        assertThat(source.query()).isEqualTo(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("approved", false)));
+    }
+
+    @Test
+    public void testDuplicateCheckTemplates() throws IOException {
+        final SearchSourceBuilder byUrl = render(SearchTemplates.BY_URL, Map.of("url", "https://example.org/?a=\"b\""));
+        assertThat(byUrl.size()).isEqualTo(1);
+        assertThat(byUrl.query()).isEqualTo(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("url", "https://example.org/?a=\"b\"")));
+
+        final SearchSourceBuilder pending = render(SearchTemplates.PENDING_BY_USER, Map.of("login", "user"));
+        assertThat(pending.size()).isEqualTo(0);
+        assertThat(pending.trackTotalHitsUpTo()).isEqualTo(SearchContext.TRACK_TOTAL_HITS_ACCURATE);
+        assertThat(pending.query()).isEqualTo(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("submitted_by", "user"))
+                .filter(QueryBuilders.termQuery("approved", false)));
+    }
+
+    @Test
+    public void testApiTemplate() throws IOException {
+        final SearchSourceBuilder firstPage = render(SearchTemplates.API, Map.of("origin", "2020-10-01T10:15:00Z", "size", 20,
+                "timeout", "500ms", "fields", List.of("title", "url")));
+        assertThat(firstPage.size()).isEqualTo(20);
+        assertThat(firstPage.trackTotalHitsUpTo()).isEqualTo(SearchContext.TRACK_TOTAL_HITS_DISABLED);
+        assertThat(firstPage.fetchSource().includes()).containsExactly("title", "url");
+        assertThat(firstPage.searchAfter()).isNull();
+        assertThat(firstPage.sorts()).containsExactly(SortBuilders.scoreSort(), SortBuilders.fieldSort("url").order(SortOrder.ASC));
+        assertThat(((BoolQueryBuilder) firstPage.query()).must()).isEmpty();
+
+        final SearchSourceBuilder nextPage = render(SearchTemplates.API, Map.of("origin", "2020-10-01T10:15:00Z", "size", 20,
+                "timeout", "500ms", "fields", List.of("title"), "q", "spring", "after", Map.of("score", 1.25f, "url", "https://example.org/?a=\"b\"")));
+        assertThat(nextPage.searchAfter()).containsExactly(1.25, "https://example.org/?a=\"b\"");
+        assertThat(((BoolQueryBuilder) nextPage.query()).must()).hasSize(1);
+    }
+
+    private static SearchSourceBuilder render(String id, Map<String, Object> params) throws IOException {
+        final TemplateScript.Factory factory = new MustacheScriptEngine()
+                .compile(id, SearchTemplates.TEMPLATES.get(id), TemplateScript.CONTEXT, Map.of());
+        final String json = factory.newInstance(params).execute();
+
+        final List<NamedXContentRegistry.Entry> entries = new ArrayList<>(new SearchModule(Settings.EMPTY, false, List.of()).getNamedXContents());
+        entries.add(new NamedXContentRegistry.Entry(QueryBuilder.class, new ParseField(RankFeatureQueryBuilder.NAME),
+                p -> RankFeatureQueryBuilder.PARSER.parse(p, null)));
+        try (XContentParser parser = XContentType.JSON.xContent()
+                .createParser(new NamedXContentRegistry(entries), DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            return SearchSourceBuilder.fromXContent(parser);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.client.indexlifecycle.ForceMergeAction;
+import org.elasticsearch.client.indexlifecycle.LifecyclePolicy;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class StoreTemplateOnApplicationListenerTests {
+
+    @Test
+    public void testLinkPolicy() {
+        final LifecyclePolicy policy = StoreTemplateOnApplicationListener.linkPolicy(Duration.ofDays(30), Duration.ofDays(365));
+        assertThat(policy.getPhases()).containsOnlyKeys("hot", "warm", "cold");
+        assertThat(policy.getPhases().get("warm").getMinimumAge()).isEqualTo(TimeValue.timeValueDays(30));
+        assertThat(policy.getPhases().get("warm").getActions()).containsOnlyKeys("forcemerge", "readonly", "set_priority");
+        assertThat(((ForceMergeAction) policy.getPhases().get("warm").getActions().get("forcemerge")).getMaxNumSegments()).isEqualTo(1);
+        // nothing that would hide old links from searches
+        assertThat(policy.getPhases().get("cold").getActions()).containsOnlyKeys("set_priority");
+
+        final Map<String, Object> json = XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(policy), false);
+        assertThat(XContentMapValues.extractValue("phases.hot.actions.rollover.max_age", json)).isEqualTo("365d");
+        assertThat(XContentMapValues.extractValue("phases.cold.min_age", json)).isEqualTo("365d");
+        assertThat(XContentMapValues.extractValue("phases.warm.min_age", json)).isEqualTo("30d");
+        assertThat(XContentMapValues.extractValue("phases.warm.min_age",
+                XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(
+                        StoreTemplateOnApplicationListener.linkPolicy(Duration.ofHours(36), Duration.ofDays(365))), false))).isEqualTo("36h");
+    }
+
+    @Test
+    public void testRelatedMappingMatchesTemplate() {
+        final Map<String, Object> template = XContentHelper.convertToMap(XContentType.JSON.xContent(), StoreTemplateOnApplicationListener.LINKS_MAPPING, false);
+        final Map<String, Object> related = XContentHelper.convertToMap(XContentType.JSON.xContent(), StoreTemplateOnApplicationListener.RELATED_MAPPING, false);
+        assertThat(XContentMapValues.extractValue("properties.related", related)).isEqualTo(XContentMapValues.extractValue("properties.related", template));
+    }
+
+    @Test
+    public void testColdPhaseMustFollowWarmPhase() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> StoreTemplateOnApplicationListener.linkPolicy(Duration.ofDays(30), Duration.ofDays(30)))
+                .withMessageContaining("linkrating.lifecycle.cold-after");
+    }
+}
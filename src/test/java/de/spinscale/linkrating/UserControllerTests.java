@@ -19,20 +19,12 @@ package de.spinscale.linkrating;
 
 import de.spinscale.linkrating.controller.UserController;
 import de.spinscale.linkrating.entity.Link;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.MultiMatchQueryBuilder;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
-import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
-import org.springframework.data.elasticsearch.core.SearchHit;
-import org.springframework.data.elasticsearch.core.SearchHits;
-import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
-import org.springframework.data.elasticsearch.core.query.Query;
 import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
@@ -41,20 +33,25 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class UserControllerTests {
 
-    private ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
-    private final UserController controller = new UserController(elasticsearchOperations, new AdminService("admin"));
+    private LinkReplica linkReplica = mock(LinkReplica.class);
+    private LinkSearchService linkSearchService = mock(LinkSearchService.class);
+    private VotedLinks votedLinks = mock(VotedLinks.class);
+    private final UserController controller = new UserController(new AdminService("admin"), linkReplica, linkSearchService, votedLinks);
     private final Model model = new ExtendedModelMap();
 
     @Test
-    public void testMainPage() {
-        mockSearchResponse();
+    public void testMainPage() throws Exception {
+        Link link = new Link();
+        link.setId("my_id");
+        when(linkSearchService.searchRanked(null)).thenReturn(new LinkSearchResult(List.of(link), false, false));
 
-        String result = controller.main(null, null, model);
+        String result = controller.main(null, null, null, model);
         assertThat(result).isEqualTo("main");
         assertThat(model.asMap()).containsKey("links");
         final List<Link> links = (List<Link>) model.asMap().get("links");
@@ -63,35 +60,95 @@ public class UserControllerTests {
     }
 
     @Test
-    public void testMainPageWithException() {
-        String result = controller.main(null, null, model);
+    public void testMainPageWithStaleResults() throws Exception {
+        Link link = new Link();
+        link.setId("my_id");
+        when(linkSearchService.searchRanked("my query")).thenReturn(new LinkSearchResult(List.of(link), true, false));
+
+        controller.main(null, "my query", null, model);
+        assertThat(model.asMap()).containsEntry("links", List.of(link));
+        assertThat(model.asMap()).containsEntry("stale", true);
+    }
+
+    @Test
+    public void testMainPageWithPartialResults() throws Exception {
+        when(linkSearchService.searchRanked("my query")).thenReturn(new LinkSearchResult(List.of(), false, true));
+
+        controller.main(null, "my query", null, model);
+        assertThat(model.asMap()).containsEntry("partial", true);
+        assertThat(model.asMap()).containsEntry("stale", false);
+    }
+
+    @Test
+    public void testMainPageWithException() throws Exception {
+        when(linkSearchService.searchRanked(null)).thenThrow(new IOException("connection refused"));
+
+        String result = controller.main(null, null, null, model);
         assertThat(result).isEqualTo("main");
         assertThat(model.asMap()).containsEntry("links", Collections.emptyList());
     }
 
     @Test
-    public void testMainPageWithQuery() {
-        controller.main(null, "my query", model);
+    public void testMainPageWithQuery() throws Exception {
+        controller.main(null, "my query", null, model);
 
         // ensure model is enriched
         assertThat(model.asMap()).containsEntry("q", "my query");
+        verify(linkSearchService).searchRanked("my query");
+    }
+
+    @Test
+    public void testMainPageFromReplica() throws Exception {
+        Link link = new Link();
+        link.setId("my_id");
+        when(linkReplica.isReady()).thenReturn(true);
+        when(linkReplica.ranked()).thenReturn(List.of(link));
+
+        controller.main(null, null, null, model);
+        assertThat(model.asMap()).containsEntry("links", List.of(link));
+        verify(linkSearchService, never()).searchRanked(any());
+    }
+
+    @Test
+    public void testMainPageFullTextQueryBypassesReplica() throws Exception {
+        when(linkReplica.isReady()).thenReturn(true);
 
-        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
-        verify(elasticsearchOperations).search(queryCaptor.capture(), any(Class.class));
-        final NativeSearchQuery query = (NativeSearchQuery) queryCaptor.getValue();
-        assertThat(query.getQuery()).isInstanceOf(BoolQueryBuilder.class);
-
-        // ensure query is sent with second must clause
-        BoolQueryBuilder queryBuilder = (BoolQueryBuilder) query.getQuery();
-        assertThat(queryBuilder.must()).hasSize(2);
-        assertThat(queryBuilder.must().get(1)).isInstanceOf(MultiMatchQueryBuilder.class);
-        MultiMatchQueryBuilder multiMatchQueryBuilder = (MultiMatchQueryBuilder) queryBuilder.must().get(1);
-        assertThat(multiMatchQueryBuilder.value()).isEqualTo("my query");
+        controller.main(null, "two words", null, model);
+        verify(linkReplica, never()).search(any());
+        verify(linkSearchService).searchRanked("two words");
     }
 
     @Test
-    public void testUnapproved() {
-        mockSearchResponse();
+    public void testTrendingBypassesReplica() throws Exception {
+        when(linkReplica.isReady()).thenReturn(true);
+        when(linkSearchService.searchTrending(null)).thenReturn(new LinkSearchResult(List.of(), false, false));
+
+        controller.main(null, null, "trending", model);
+        assertThat(model.asMap()).containsEntry("sort", "trending");
+        verify(linkReplica, never()).ranked();
+        verify(linkSearchService, never()).searchRanked(any());
+    }
+
+    @Test
+    public void testMainPageMarksVotedLinks() throws Exception {
+        final VotedLinks.Voted voted = VotedLinks.Voted.of(List.of("my_id"));
+        when(votedLinks.get("user")).thenReturn(voted);
+        when(linkSearchService.searchRanked(null)).thenReturn(new LinkSearchResult(List.of(), false, false));
+
+        controller.main(createUser("user"), null, null, model);
+        assertThat(model.asMap()).containsEntry("voted", voted);
+
+        // nothing to mark without a login
+        final Model anonymousModel = new ExtendedModelMap();
+        controller.main(null, null, null, anonymousModel);
+        assertThat(anonymousModel.asMap()).doesNotContainKey("voted");
+    }
+
+    @Test
+    public void testUnapproved() throws Exception {
+        Link link = new Link();
+        link.setId("my_id");
+        when(linkSearchService.searchUnapproved()).thenReturn(List.of(link));
 
         String result = controller.showUnapproved(createUser("admin"), model);
         assertThat(result).isEqualTo("main");
@@ -110,15 +167,4 @@ public class UserControllerTests {
                 .isThrownBy(() -> controller.showUnapproved(createUser("user"), model))
                 .withMessage("404 NOT_FOUND");
     }
-
-    private void mockSearchResponse() {
-        SearchHits<Link> searchHits = mock(SearchHits.class);
-        when(searchHits.isEmpty()).thenReturn(false);
-        List<SearchHit<Link>> hits = new ArrayList<>();
-        Link link = new Link();
-        link.setId("my_id");
-        hits.add(new SearchHit<>(link.getId(), 1.0f, null, null, link));
-        when(searchHits.getSearchHits()).thenReturn(hits);
-        when(elasticsearchOperations.search(any(Query.class), any(Class.class))).thenReturn(searchHits);
-    }
 }
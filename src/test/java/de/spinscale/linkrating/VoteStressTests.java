@@ -0,0 +1,207 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.controller.LinkController;
+import de.spinscale.linkrating.entity.Link;
+import de.spinscale.linkrating.entity.User;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.data.elasticsearch.core.query.UpdateResponse;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.core.user.DefaultOAuth2User;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Fires concurrent votes of many users at a few hot links through {@link LinkController#vote} and checks that
+ * every user is counted exactly once per link. Every user votes more than once for each link, as double clicks
+ * and several open tabs do. Needs a cluster the application has been started against once, so that the
+ * {@code links} alias and the {@code users} index exist. All documents written are removed afterwards. Start it
+ * with {@code ELASTICSEARCH_URL=http://localhost:9200 ./gradlew stress}, the load can be changed with
+ * {@code -Dstress.users}, {@code -Dstress.links}, {@code -Dstress.repeat} and {@code -Dstress.threads}.
+ */
+@Tag("stress")
+public class VoteStressTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(VoteStressTests.class);
+
+    private static final int USERS = Integer.getInteger("stress.users", 500);
+    private static final int LINKS = Integer.getInteger("stress.links", 3);
+    private static final int REPEAT = Integer.getInteger("stress.repeat", 2);
+    private static final int THREADS = Integer.getInteger("stress.threads", 32);
+
+    private final String runId = UUID.randomUUID().toString().substring(0, 8);
+    private final List<String> linkIds = new ArrayList<>();
+    private final List<String> logins = new ArrayList<>();
+    private final AtomicLong linkUpdates = new AtomicLong();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+    private RestHighLevelClient client;
+    private ElasticsearchOperations operations;
+    private LinkController controller;
+
+    @BeforeEach
+    public void createLinks() throws IOException {
+        assumeTrue(System.getenv("ELASTICSEARCH_URL") != null, "ELASTICSEARCH_URL is not set");
+        client = new RestClientConfig().elasticsearchClient();
+        assumeTrue(client.indices().existsAlias(new GetAliasesRequest("links"), RequestOptions.DEFAULT), "links alias does not exist");
+        assumeTrue(client.indices().exists(new GetIndexRequest("users"), RequestOptions.DEFAULT), "users index does not exist");
+
+        operations = new CountingTemplate(client);
+        final ElasticsearchGuard guard = new ElasticsearchGuard(THREADS, Duration.ofSeconds(2), 5, Duration.ofSeconds(10));
+        controller = new LinkController(operations, new AdminService("admin"), mock(LinkReplica.class),
+                mock(ApplicationEventPublisher.class), new DuplicateIndex(operations, 3), mock(LinkSearchService.class),
+                new VotedLinks(operations, guard, USERS), guard);
+
+        for (int i = 0; i < LINKS; i++) {
+            final Link link = new Link("Stress test link " + i, "Hot link voted on by many users at once",
+                    "https://example.org/stress/" + runId + "/" + i, "misc", new Date(), 0L, true, "stress");
+            link.setId("stress-" + runId + "-" + i);
+            operations.save(link);
+            linkIds.add(link.getId());
+        }
+        for (int i = 0; i < USERS; i++) {
+            logins.add("stress-" + runId + "-user-" + i);
+        }
+        operations.indexOps(Link.class).refresh();
+    }
+
+    @AfterEach
+    public void deleteDocuments() {
+        if (operations == null) {
+            return;
+        }
+        linkIds.forEach(id -> operations.delete(id, Link.class));
+        logins.forEach(login -> operations.delete(login, User.class));
+    }
+
+    @RepeatedTest(3)
+    public void testNoVotesAreLost() throws Exception {
+        final List<Runnable> votes = new ArrayList<>();
+        for (String login : logins) {
+            final OAuth2User principal = new DefaultOAuth2User(Set.of(new SimpleGrantedAuthority("ROLE_USER")), Map.of("login", login), "login");
+            for (String linkId : linkIds) {
+                for (int i = 0; i < REPEAT; i++) {
+                    votes.add(() -> controller.vote(principal, linkId, null));
+                }
+            }
+        }
+        Collections.shuffle(votes, new Random(runId.hashCode()));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<>(votes.size());
+        for (Runnable vote : votes) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                vote.run();
+                return null;
+            }));
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                final Throwable cause = e.getCause() != null ? e.getCause() : e;
+                failures.computeIfAbsent(cause.getClass().getSimpleName() + ": " + firstLine(cause.getMessage()), k -> new AtomicLong())
+                        .incrementAndGet();
+            }
+        }
+        final Duration took = Duration.ofNanos(System.nanoTime() - startNanos);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        operations.indexOps(Link.class).refresh();
+        operations.indexOps(User.class).refresh();
+        final Map<String, Long> votesByLink = linkIds.stream()
+                .collect(Collectors.toMap(id -> id, id -> operations.get(id, Link.class).getVotes()));
+        final long usersMissingVotes = logins.stream()
+                .map(login -> operations.get(login, User.class))
+                .filter(user -> user == null || user.getIds() == null || !user.getIds().containsAll(linkIds))
+                .count();
+
+        logger.info("[{}] votes by [{}] users on [{}] links with [{}] threads in [{}ms], [{}] votes/s",
+                votes.size(), USERS, LINKS, THREADS, took.toMillis(), votes.size() * 1000 / Math.max(1, took.toMillis()));
+        logger.info("[{}] link updates sent, failed votes {}, users with votes missing in their user document [{}]",
+                linkUpdates.get(), failures, usersMissingVotes);
+        logger.info("votes by link {}, expected [{}] each", votesByLink, USERS);
+
+        assertThat(failures).as("failed votes").isEmpty();
+        assertThat(votesByLink.values()).as("votes per link").containsOnly((long) USERS);
+        assertThat(usersMissingVotes).as("users with votes missing").isZero();
+    }
+
+    private static String firstLine(String message) {
+        return message == null ? "" : message.lines().findFirst().orElse("");
+    }
+
+    // counts the vote increments sent to the links index, the controller itself does not expose them
+    private class CountingTemplate extends ElasticsearchRestTemplate {
+
+        CountingTemplate(RestHighLevelClient client) {
+            super(client);
+        }
+
+        @Override
+        public UpdateResponse update(UpdateQuery query, IndexCoordinates index) {
+            if ("links".equals(index.getIndexName())) {
+                linkUpdates.incrementAndGet();
+            }
+            return super.update(query, index);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class VoteVelocityTests {
+
+    private static final Instant NOW = Instant.parse("2020-10-01T10:00:30Z");
+
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+
+    @Test
+    public void testVotesWithinWindow() {
+        final VoteVelocity velocity = velocity(NOW);
+        velocity.record("1", NOW);
+        velocity.record("1", NOW.minusSeconds(60));
+        velocity.record("1", NOW.minus(Duration.ofMinutes(9)));
+        // outside of the window
+        velocity.record("1", NOW.minus(Duration.ofMinutes(10)));
+        velocity.record("2", NOW.minus(Duration.ofHours(1)));
+
+        assertThat(velocity.velocity("1")).isEqualTo(3);
+        assertThat(velocity.velocity("2")).isZero();
+        assertThat(velocity.velocity("3")).isZero();
+    }
+
+    @Test
+    public void testWindowSlides() {
+        final VoteVelocity.Ring ring = new VoteVelocity.Ring(10);
+        ring.add(100);
+        ring.add(100);
+        ring.add(105);
+        assertThat(ring.sum(105)).isEqualTo(3);
+        assertThat(ring.sum(109)).isEqualTo(3);
+        assertThat(ring.sum(110)).isEqualTo(1);
+        assertThat(ring.sum(115)).isZero();
+
+        // minute 110 reuses the bucket of minute 100
+        ring.add(110);
+        assertThat(ring.sum(110)).isEqualTo(2);
+        // a vote for an older minute than the bucket holds is dropped
+        ring.add(100);
+        assertThat(ring.sum(110)).isEqualTo(2);
+    }
+
+    @Test
+    public void testConcurrentVotes() throws Exception {
+        final VoteVelocity.Ring ring = new VoteVelocity.Ring(60);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.submit(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    ring.add(1000 + j % 2);
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(ring.sum(1001)).isEqualTo(80_000);
+    }
+
+    @Test
+    public void testDeletedLinkIsRemoved() {
+        final VoteVelocity velocity = velocity(NOW);
+        velocity.record("1", NOW);
+        velocity.onApplicationEvent(new LinkChangedEvent(this, "1", LinkChangedEvent.Type.DELETED));
+        assertThat(velocity.velocity("1")).isZero();
+    }
+
+    @Test
+    public void testDisabled() {
+        final VoteVelocity velocity = new VoteVelocity(client, false, Duration.ofMinutes(10), Clock.fixed(NOW, ZoneOffset.UTC));
+        velocity.onApplicationEvent(new LinkChangedEvent(this, "1", LinkChangedEvent.Type.VOTED));
+        velocity.sync();
+        assertThat(velocity.velocity("1")).isZero();
+        verifyNoInteractions(client);
+    }
+
+    @Test
+    public void testWindowMustBeAtLeastOneMinute() {
+        assertThatIllegalArgumentException()
+                .isThrownBy(() -> new VoteVelocity(client, true, Duration.ofSeconds(30), Clock.systemUTC()))
+                .withMessage("linkrating.trending.window must be at least one minute");
+    }
+
+    private VoteVelocity velocity(Instant now) {
+        return new VoteVelocity(client, true, Duration.ofMinutes(10), Clock.fixed(now, ZoneOffset.UTC));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import de.spinscale.linkrating.entity.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class VotedLinksTests {
+
+    private final ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+    private final VotedLinks votedLinks = new VotedLinks(elasticsearchOperations,
+            new ElasticsearchGuard(20, Duration.ofSeconds(2), 5, Duration.ofSeconds(10)), 2);
+
+    @Test
+    public void testVotesAreLoadedOnce() {
+        when(elasticsearchOperations.get(eq("user"), eq(User.class))).thenReturn(user("user", "1", "2"));
+
+        assertThat(votedLinks.get("user").contains("1")).isTrue();
+        assertThat(votedLinks.get("user").contains("2")).isTrue();
+        assertThat(votedLinks.get("user").contains("3")).isFalse();
+        verify(elasticsearchOperations, times(1)).get(eq("user"), eq(User.class));
+
+        votedLinks.put("user", List.of("1", "2", "3"));
+        assertThat(votedLinks.get("user").contains("3")).isTrue();
+        verify(elasticsearchOperations, times(1)).get(eq("user"), eq(User.class));
+    }
+
+    @Test
+    public void testUserWithoutVotes() {
+        assertThat(votedLinks.get("user").size()).isZero();
+        assertThat(votedLinks.get("user").contains("1")).isFalse();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        votedLinks.put("a", List.of("1"));
+        votedLinks.put("b", List.of("1"));
+        votedLinks.get("a");
+        votedLinks.put("c", List.of("1"));
+
+        // b is loaded again, a is still cached
+        assertThat(votedLinks.get("a").contains("1")).isTrue();
+        assertThat(votedLinks.get("b").contains("1")).isFalse();
+        verify(elasticsearchOperations, times(1)).get(eq("b"), eq(User.class));
+    }
+
+    @Test
+    public void testLoadingFailureIsNotCached() {
+        when(elasticsearchOperations.get(eq("user"), eq(User.class)))
+                .thenThrow(new RuntimeException("connection refused"))
+                .thenReturn(user("user", "1"));
+
+        assertThat(votedLinks.get("user")).isNull();
+        assertThat(votedLinks.get("user").contains("1")).isTrue();
+    }
+
+    @Test
+    public void testOpenCircuitSkipsLoading() {
+        final VotedLinks guarded = new VotedLinks(elasticsearchOperations,
+                new ElasticsearchGuard(20, Duration.ofSeconds(2), 1, Duration.ofMinutes(1)), 2);
+        when(elasticsearchOperations.get(eq("user"), eq(User.class))).thenThrow(new RuntimeException("connection refused"));
+
+        assertThat(guarded.get("user")).isNull();
+        assertThat(guarded.get("user")).isNull();
+        verify(elasticsearchOperations, times(1)).get(eq("user"), eq(User.class));
+    }
+
+    private static User user(String login, String... ids) {
+        final User user = new User();
+        user.setId(login);
+        user.setIds(new ArrayList<>(List.of(ids)));
+        return user;
+    }
+}
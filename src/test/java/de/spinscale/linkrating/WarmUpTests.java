@@ -0,0 +1,99 @@
+/*
+ * Copyright [2020] [Alexander Reelsen]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.spinscale.linkrating;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WarmUpTests {
+
+    private final LinkSearchService linkSearchService = mock(LinkSearchService.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final Queue<String> requests = new ConcurrentLinkedQueue<>();
+    private HttpServer server;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestURI().toString());
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        final WarmUp warmUp = new WarmUp(linkSearchService, registry, true, 3, List.of("spring boot"), Duration.ofSeconds(10));
+        final Duration duration = warmUp.run(baseUri());
+
+        verify(linkSearchService).searchRanked(null);
+        verify(linkSearchService).searchTrending(null);
+        verify(linkSearchService).searchRanked("spring boot");
+        assertThat(requests).containsExactly("/", "/", "/", "/?q=spring+boot");
+        assertThat(registry.get("linkrating.warmup.duration").timeGauge().value(TimeUnit.MILLISECONDS)).isEqualTo(duration.toMillis());
+    }
+
+    @Test
+    public void testFailingSearchesDoNotStopWarmUp() throws Exception {
+        when(linkSearchService.searchRanked(any())).thenThrow(new RuntimeException("connection refused"));
+
+        new WarmUp(linkSearchService, registry, true, 1, List.of(), Duration.ofSeconds(10)).run(baseUri());
+        assertThat(requests).containsExactly("/");
+    }
+
+    @Test
+    public void testWarmUpIsBoundedByTimeout() throws Exception {
+        when(linkSearchService.searchRanked(any())).thenAnswer(invocation -> {
+            Thread.sleep(10_000);
+            return null;
+        });
+
+        final Duration duration = new WarmUp(linkSearchService, registry, true, 1, List.of(), Duration.ofMillis(200)).run(baseUri());
+        assertThat(duration).isLessThan(Duration.ofSeconds(5));
+        assertThat(requests).isEmpty();
+    }
+
+    private URI baseUri() {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+}